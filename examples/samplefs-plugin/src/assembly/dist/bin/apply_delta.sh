@@ -0,0 +1,81 @@
+#!/bin/bash
+#
+# Usage: apply_delta.sh targetFile deltaFile...
+#
+# Applies the given block deltas (.sfdelta files staged by the SampleFS plugin)
+# to the target file in place, in the given order (oldest first).
+#
+# A delta consists of the changed blocks of the file, followed by a manifest and
+# the offset of the manifest in the last 21 bytes. The manifest lists the runs of
+# changed blocks and the final length and attributes of the file. A delta whose
+# base is "none" holds the whole file, so the deltas before it are skipped.
+
+set -e -o pipefail
+export LC_ALL=C
+
+target=$1
+shift
+deltas=("$@")
+
+manifest() {
+  local size offset
+  size=$(stat -c %s "$1")
+  offset=$(tail -c 21 "$1")
+  # Never evaluate anything but digits, in case the file is not a delta
+  [[ $offset =~ ^[0-9]{20}$ ]] || return 0
+  offset=$((10#$offset))
+  tail -c +$((offset + 1)) "$1" | head -c $((size - 21 - offset))
+}
+
+start=0
+for ((i = ${#deltas[@]} - 1; i > 0; i--)); do
+  if manifest "${deltas[$i]}" | grep -qx 'base none'; then
+    start=$i
+    break
+  fi
+done
+
+mkdir -p "$(dirname "$target")"
+# The blocks are written in place, so a file hard linked from elsewhere is copied first
+if [ -f "$target" ] && [ "$(stat -c %h "$target")" -gt 1 ]; then
+  cp -p "$target" "$target.sfdelta-tmp"
+  mv -f "$target.sfdelta-tmp" "$target"
+fi
+for ((i = start; i < ${#deltas[@]}; i++)); do
+  delta=${deltas[$i]}
+  version=
+  while read -r key a b c; do
+    case "$key" in
+      SFDELTA)
+        if [ "$a" != 1 ]; then
+          echo "Unsupported version $a of $delta" >&2
+          exit 1
+        fi
+        version=$a ;;
+      base)
+        if [ "$a" = none ]; then
+          rm -f "$target"
+          : > "$target"
+        elif [ ! -f "$target" ]; then
+          echo "No file to apply $delta to: $target" >&2
+          exit 1
+        fi ;;
+      length) length=$a ;;
+      mode) mode=$a ;;
+      owner) owner=$a:$b ;;
+      mtime) mtime=$a ;;
+      run)
+        dd if="$delta" of="$target" bs=1M iflag=skip_bytes,count_bytes oflag=seek_bytes conv=notrunc status=none \
+          skip="$c" seek="$a" count="$b" ;;
+    esac
+  done < <(manifest "$delta")
+  if [ -z "$version" ]; then
+    echo "Not a delta: $delta" >&2
+    exit 1
+  fi
+  truncate -s "$length" "$target"
+done
+
+chown "$owner" "$target"
+chmod "$mode" "$target"
+touch -m -d "@$mtime" "$target"
@@ -1,13 +1,97 @@
 #!/bin/bash
+#
+# Usage: copy_files.sh sourceDir destDir [parallelism [batchSize [mode]]]
+#
+# Copies the files listed on the standard input (one path under sourceDir per
+# line) to the same relative paths under destDir and prints the number of files
+# copied. The files are copied in batches of batchSize files per cp process, with
+# up to parallelism processes running at a time. The parent directories of each
+# batch are created beforehand, one batch at a time, since concurrent cp --parents
+# fail on the directories they create at the same time. A batch that fails is
+# copied again file by file; the script then exits with a non-zero status if any
+# file could not be copied.
+#
+# mode is one of
+#   copy      copies the files (default)
+#   reflink   clones the files where the file system supports it, copies otherwise
+#   hardlink  links the files where possible (same file system), copies otherwise;
+#             existing files in destDir are replaced, never written to
 
-sourceDir=$1
+set -o pipefail
+export LC_ALL=C
+
+sourceDir=${1%/}
 destDir=$2
-count=0
-mkdir -p "$destDir/temp"
-while read srcFile; do
-  cp -p --parents "$srcFile" "$destDir/temp"
-  ((count++))
+parallelism=${3:-4}
+batchSize=${4:-1000}
+mode=${5:-copy}
+
+case "$mode" in
+  copy)
+    copy='copy() { cp -p --parents -t "$0" -- "$@"; }' ;;
+  reflink)
+    copy='copy() { cp -p --reflink=auto --parents -t "$0" -- "$@"; }' ;;
+  hardlink)
+    # A failed batch is copied again with --remove-destination, so that cp never
+    # writes through a link that was already created, i.e. into the source file.
+    copy='copy() { cp -L -l -f --parents -t "$0" -- "$@" 2>/dev/null || cp -p --remove-destination --parents -t "$0" -- "$@"; }' ;;
+  *)
+    echo "Unknown mode: $mode" >&2
+    exit 1 ;;
+esac
+
+batch="$copy"'
+if copy "$@"; then
+  echo $#
+  exit 0
+fi
+copied=0
+status=0
+for file; do
+  if copy "$file"; then copied=$((copied + 1)); else status=1; fi
 done
-mv "$destDir/temp/$sourceDir"/* "$destDir"
-rm -r "$destDir/temp"
-echo "$count"
+echo $copied
+exit $status'
+
+mkdir -p "$destDir" || exit 1
+destDir=$(cd "$destDir" && pwd) || exit 1
+cd "${sourceDir:-/}" || exit 1
+
+# Paths relative to sourceDir, so that --parents recreates them right under destDir.
+# Each batch of paths is passed on once the directories new to it exist, which tar
+# creates with the attributes of the source directories (following symbolic links,
+# like cp --parents does).
+awk -v prefix="$sourceDir/" -v batchSize="$batchSize" \
+    -v mkdirs="tar -c -h --no-recursion --verbatim-files-from -T - | tar -x -p -C \"$destDir\"" '
+  function flush(i) {
+    for(i = 1; i <= dirCount; i++)
+      print dirs[i] | mkdirs
+    if(dirCount > 0)
+      close(mkdirs)
+    for(i = 1; i <= pathCount; i++)
+      print paths[i]
+    fflush()
+    dirCount = 0
+    pathCount = 0
+  }
+  index($0, prefix) == 1 { $0 = substr($0, length(prefix) + 1) }
+  {
+    # The parent directories not seen yet, outermost first
+    n = 0
+    for(dir = $0; (slash = match(dir, /\/[^\/]*$/)) > 1; ) {
+      dir = substr(dir, 1, slash - 1)
+      if(dir in seen)
+        break
+      seen[dir] = 1
+      parents[++n] = dir
+    }
+    for(; n > 0; n--)
+      dirs[++dirCount] = parents[n]
+    paths[++pathCount] = $0
+    if(pathCount >= batchSize)
+      flush()
+  }
+  END { flush() }' |
+  xargs -r -d '\n' -n "$batchSize" -P "$parallelism" \
+    sh -c "$batch" "$destDir" |
+  awk '{ count += $1 } END { print count + 0 }'
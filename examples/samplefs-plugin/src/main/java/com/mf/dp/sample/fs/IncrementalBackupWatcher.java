@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the incremental backups of a restore while the chain is still being received.
+ *
+ * The Media Agent writes the chain into the log directory in order, one sub-directory
+ * per backup (LOG:0 being that of the full backup). So, once the sub-directory of an
+ * incremental backup appears, all the ones before it are complete. The watcher polls
+ * the log directory and hands each complete incremental backup over to the applier,
+ * in the order of the chain. The last one is only known to be complete when the
+ * transfer is over, and is applied by {@link #applyRemaining()}.
+ */
+final class IncrementalBackupWatcher {
+
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+
+	private static Logger logger = LoggerFactory.getLogger(IncrementalBackupWatcher.class);
+
+	private final File logDir;
+	private final Consumer<File> applier;
+	private final Thread thread;
+	private volatile boolean receiving = true;
+	private volatile RuntimeException failure;
+	// Number (i.e. name of the LOG:n directory) of the last incremental backup applied
+	private int applied = 0;
+	private int count = 0;
+
+	IncrementalBackupWatcher(File logDir, Consumer<File> applier) {
+		this.logDir = logDir;
+		this.applier = applier;
+		this.thread = new Thread(this::watch, "samplefs-restore-watcher");
+		this.thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stops watching, i.e. when the transfer is over or failed. Waits for the incremental
+	 * backup being applied, if any.
+	 */
+	void stop() throws InterruptedException {
+		receiving = false;
+		thread.join();
+	}
+
+	/**
+	 * Applies the incremental backups not applied yet, in order, after {@link #stop()}.
+	 * Rethrows the failure of the watcher, if any. Returns the number of incremental
+	 * backups applied in total.
+	 */
+	int applyRemaining() {
+		if(failure != null)
+			throw failure;
+		for(File incrBackupDir : pendingIncrBackups())
+			apply(incrBackupDir);
+		return count;
+	}
+
+	private void watch() {
+		try {
+			while(receiving) {
+				List<File> pending = pendingIncrBackups();
+				// All but the last one are complete
+				for(int i = 0; i < pending.size() - 1; i++)
+					apply(pending.get(i));
+				Thread.sleep(POLL_INTERVAL_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.error("Could not apply incremental backup", e);
+			failure = e;
+		}
+	}
+
+	private void apply(File incrBackupDir) {
+		logger.info("({}) Applying the content of {}", incrBackupDir.getName(), incrBackupDir.getAbsoluteFile());
+		applier.accept(incrBackupDir);
+		applied = Integer.parseInt(incrBackupDir.getName());
+		count++;
+	}
+
+	private List<File> pendingIncrBackups() {
+		File[] dirs = logDir.listFiles(file -> file.isDirectory() && file.getName().matches("\\d+"));
+		if(dirs == null)
+			return List.of();
+		return Arrays.stream(dirs)
+				.filter(file -> Integer.parseInt(file.getName()) > applied) // Also excludes LOG:0 of full backup
+				.sorted(Comparator.comparing(file -> Integer.parseInt(file.getName())))
+				.collect(Collectors.toList());
+	}
+}
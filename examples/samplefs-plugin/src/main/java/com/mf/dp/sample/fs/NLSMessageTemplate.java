@@ -44,5 +44,31 @@ public class NLSMessageTemplate {
 	public static final String NLS_APPLYING_INCREMENTAL 				= "There are %s incremental backups to apply.";
 	public static final String NLS_APPLYING_INCREMENTAL_COMPLETED 		= "All incremental backups have been applied.";
 	public static final String NLS_FAILED_TO_APPLY_INCREMENTAL 			= "Could not apply incremental backups:\n\t\t%s";
+	public static final String NLS_INCREMENTAL_APPLIED 					= "Incremental backup %s has been applied.";
 	public static final String NLS_FAILED_TO_PREPARE_FOR_RESTORE 		= "Could not prepare for restore:\n\t\t%s";
+	public static final String NLS_RESTORE_PLANNED 						= "Restoring %s files from the incremental backups, skipping %s superseded copies.";
+	public static final String NLS_RESTORE_WORKERS 						= "Applying the incremental backups with %s workers.";
+	public static final String NLS_START_SYNTHETIC_FULL_BACKUP			= "Starting synthetic full backup from the backup chain of session %s.";
+	public static final String NLS_SYNTHETIC_FULL_REQUIRES_PREVIOUS_BACKUP = "Synthetic full backup requires previous backup recorded with its session.";
+	public static final String NLS_SYNTHETIC_FULL_CONSOLIDATED 			= "Consolidated %s incremental backups into the full backup, removing %s deleted files.";
+	public static final String NLS_CHANGES_TRACKED 						= "Backing up the %s paths changed since the last backup according to the change tracker.";
+	public static final String NLS_PRESTAGED_FILES 						= "Revalidating %s files staged ahead of the backup.";
+	public static final String NLS_SHARDS_STAGED 						= "Staged %s shards of %s to %s bytes for the full backup.";
+	public static final String NLS_TRANSFER_SHARDS_TO_MA 				= "Transferring %s shards of the backup data to Media Agent in parallel.";
+	public static final String NLS_TRANSFER_SHARDS_FROM_MA 				= "Transferring %s more shards of the full backup from Media Agent in parallel.";
+	public static final String NLS_BACKUP_DIRECTORIES 					= "Backing up %s directories, %s at a time.";
+	public static final String NLS_START_DIRECTORY_BACKUP 				= "Starting backup of the directory %s as object %s.";
+	public static final String NLS_DIRECTORY_BACKUP_COMPLETED 			= "Backup of the directory %s completed.";
+	public static final String NLS_DIRECTORY_BACKUP_FAILED 				= "Backup of the directory %s failed: %s";
+	public static final String NLS_CATALOG_SELECTION 					= "The catalog selects %s files, held by the backup chain up to session %s.";
+	public static final String NLS_CATALOG_NOT_FOUND 					= "There is no catalog of session %s; receiving the whole backup chain.";
+	public static final String NLS_CATALOG_NO_MATCH 					= "None of the paths to restore is in the backup of session %s.";
+	public static final String NLS_SELECTED_FILES_RESTORED 				= "Restored %s selected files.";
+	public static final String NLS_CHANGE_ESTIMATE 						= "About %s files of %s bytes changed since the last backup (estimated from a sample of the directory).";
+	public static final String NLS_STAGED_FILES_COMPRESSED 				= "Compressed %s staged files from %s to %s bytes (%s%%) at %s MB/s, leaving %s files as they are.";
+	public static final String NLS_STAGED_FILES_NOT_COMPRESSED 			= "Could not compress the staged files; transferring them as they are:\n\t\t%s";
+	public static final String NLS_FILES_DECOMPRESSED 					= "Decompressed %s files from %s to %s bytes at %s MB/s.";
+	public static final String NLS_STAGED_FILES_DEDUPLICATED 			= "Stored %s staged files of %s bytes as %s chunks, of which %s new chunks of %s bytes are sent, leaving %s files as they are.";
+	public static final String NLS_STAGED_FILES_NOT_DEDUPLICATED 		= "Could not store the staged files as chunks; transferring them as they are:\n\t\t%s";
+	public static final String NLS_FILES_REBUILT 						= "Rebuilt %s files of %s bytes from %s chunks.";
 }
@@ -16,11 +16,25 @@
 package com.mf.dp.sample.fs;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.mail.DefaultAuthenticator;
 import org.apache.commons.mail.Email;
 import org.apache.commons.mail.EmailException;
@@ -35,15 +49,30 @@ import org.springframework.stereotype.Component;
 import org.springframework.validation.Validator;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.mf.dp.sample.fs.model.BackupAppOptions;
 import com.mf.dp.sample.fs.model.BackupContext;
+import com.mf.dp.sample.fs.model.ChangeEstimate;
+import com.mf.dp.sample.fs.model.CompressionStats;
+import com.mf.dp.sample.fs.model.DedupStats;
 import com.mf.dp.sample.fs.model.RestoreContext;
+import com.mf.dp.sample.fs.model.RestorePlan;
 import com.mf.dp.sample.fs.model.SampleFSBackupRequest;
 import com.mf.dp.sample.fs.model.SampleFSLastBackupDetail;
 import com.mf.dp.sample.fs.model.SampleFSObjectOptions;
 import com.mf.dp.sample.fs.model.SampleFSObjectVerOptions;
 import com.mf.dp.sample.fs.model.SampleFSRestoreRequest;
+import com.mf.dp.sample.fs.model.ShardManifest;
+import com.mf.dp.sample.fs.service.ChangeEstimator;
+import com.mf.dp.sample.fs.service.ChangeTracker;
 import com.mf.dp.sample.fs.service.DPService;
 import com.mf.dp.sample.fs.service.FSService;
+import com.mf.dp.sample.fs.service.FileStateIndex;
+import com.mf.dp.sample.fs.service.PreStage;
+import com.mf.dp.sample.fs.service.PreStager;
+import com.mf.dp.sample.fs.service.RestorePlanner;
+import com.mf.dp.sample.fs.service.StagedFileCompressor;
+import com.mf.dp.sample.fs.service.StagedFileDeduplicator;
+import com.mf.dp.sample.fs.service.VersionCatalog;
 import com.mf.dp.uic.command.OSCommand;
 import com.mf.dp.uic.exception.ServiceException;
 import com.mf.dp.uic.model.BackupRequest;
@@ -57,6 +86,7 @@ import com.mf.dp.uic.plugin.spi.RestoreInterface;
 import com.mf.dp.uic.util.ConfigProperties;
 import com.mf.dp.uic.util.DPUtil;
 import com.mf.dp.uic.util.ExceptionUtil;
+import com.mf.dp.uic.util.JsonUtil;
 
 @Component
 @PropertySources({
@@ -78,6 +108,30 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 
 	@Autowired
 	private FSService fsService;
+
+	@Autowired
+	private FileStateIndex fileStateIndex;
+
+	@Autowired
+	private RestorePlanner restorePlanner;
+
+	@Autowired
+	private ChangeEstimator changeEstimator;
+	
+	@Autowired
+	private ChangeTracker changeTracker;
+
+	@Autowired
+	private PreStager preStager;
+
+	@Autowired
+	private VersionCatalog versionCatalog;
+
+	@Autowired
+	private StagedFileCompressor stagedFileCompressor;
+
+	@Autowired
+	private StagedFileDeduplicator stagedFileDeduplicator;
 	
 	@Override
 	public void backup(IProgressStatus status, BackupRequest backupRequest)
@@ -85,19 +139,94 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		// Transform and validate the input
 		SampleFSBackupRequest request = validateInput(status, backupRequest);
 		
+		// Each directory is backed up as an object of its own, all with the same backup time
+		long time = System.currentTimeMillis();
+		List<String> dirPaths = request.getAppOptions().getDirPathList();
+		if(dirPaths.size() > 1)
+			backupDirectories(status, request, dirPaths, time);
+		else
+			backup(status, new SampleFSBackupRequest(request, request.getAppOptions().forDirectory(
+					request.getAppOptions().getAppName(), dirPaths.get(0))), new BackupContext(time, String.valueOf(time)));
+	}
+	
+	private void backupDirectories(IProgressStatus status, SampleFSBackupRequest request, List<String> dirPaths, long time)
+			throws InterruptedException {
+		int workers = Math.max(1, Math.min(dirPaths.size(), ConfigProperties.getPropertyInteger("samplefs.backup.directory-parallelism", 4)));
+		logger.info("Backing up {} directories, {} at a time", dirPaths.size(), workers);
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_BACKUP_DIRECTORIES, dirPaths.size(), workers)));
+		
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<?>> backups = new ArrayList<>();
+			for(int i = 0; i < dirPaths.size(); i++) {
+				// The first directory is the application object itself, and it records all of them
+				BackupAppOptions appOptions = request.getAppOptions().forDirectory(
+						i == 0 ? request.getAppOptions().getAppName() : getDirectoryAppName(request.getAppOptions().getAppName(), dirPaths.get(i)),
+						dirPaths.get(i));
+				if(i == 0)
+					appOptions.setDirPaths(dirPaths.toArray(new String[0]));
+				SampleFSBackupRequest dirRequest = new SampleFSBackupRequest(request, appOptions);
+				BackupContext context = new BackupContext(time, time + "-" + i);
+				backups.add(executor.submit(() -> backupDirectory(status, dirRequest, context)));
+			}
+			
+			// Let the other directories complete when one fails, then report the first failure
+			ServiceException failure = null;
+			for(Future<?> backup : backups) {
+				try {
+					backup.get();
+				} catch (ExecutionException e) {
+					if(failure == null)
+						failure = ExceptionUtil.convertToServiceException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+				}
+			}
+			if(failure != null)
+				throw failure;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	// Named after the path rather than the position, so that the list can be reordered or extended
+	private static String getDirectoryAppName(String appName, String dirPath) {
+		return appName + "-dir-" + DigestUtils.sha1Hex(dirPath).substring(0, 12);
+	}
+	
+	private void backupDirectory(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
+		String dirPath = request.getAppOptions().getDirPath();
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_START_DIRECTORY_BACKUP, dirPath, request.getAppOptions().getAppName())));
+		try {
+			backup(status, request, context);
+		} catch (RuntimeException e) {
+			logger.error("Backup of the directory {} failed", dirPath, e);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_DIRECTORY_BACKUP_FAILED, dirPath, ExceptionUtil.getMessageForSessionReport(e))));
+			throw e;
+		}
+		logger.info("Backup of the directory {} is complete", dirPath);
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_DIRECTORY_BACKUP_COMPLETED, dirPath)));
+	}
+	
+	private void backup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
 		// Establish backup context (convenience object to work with during backup)	
-		BackupContext backupContext = establishBackupContext(status, request);
+		BackupContext backupContext = establishBackupContext(status, request, context);
 
 		try {
 			// Perform backup
-			if(Constant.BACKUP_TYPE_FULL.equalsIgnoreCase(backupRequest.getBackupType())) {
-				fullBackup(status, request, backupContext);
+			if(Constant.BACKUP_TYPE_FULL.equalsIgnoreCase(request.getBackupType())) {
+				if(request.getAppOptions().isSyntheticFull())
+					syntheticFullBackup(status, request, backupContext);
+				else
+					fullBackup(status, request, backupContext);
 			} else {
 				incrBackup(status, request, backupContext);
 			}
 		} finally {
 			// Clean up resources
-			cleanup(status, backupContext);
+			try {
+				cleanup(status, backupContext);
+			} finally {
+				preStager.release(request.getAppOptions().getDirPath());
+			}
 		}	
 	}
 	
@@ -108,8 +237,19 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		// Plugin-specific part of the full backup logic
 		doFullBackup(status, request, context);
 		
+		// Every file of the directory is held by this backup
+		writeCatalog(context, pendingCatalogFile -> versionCatalog.write(Paths.get(context.getPendingIndexFilePath()),
+				request.getAppOptions().getDirPath(), null, null, context.getTime(),
+				context.getObjectVerOptions().getSessionId(), pendingCatalogFile));
+		
 		// Transfer the backed-up data to DP MA
-		sendFullBackup(status, request, context);
+		if(isShardedFullBackup(request))
+			sendShardedFullBackup(status, request, context);
+		else
+			sendFullBackup(status, request, context);
+
+		// Make the scan of this backup the base for the next incremental backup
+		commitFileStateIndex(request, context);
 	}
 	
 	private void doFullBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
@@ -118,7 +258,182 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		// set to the location of the source directory earlier in the getBackupContext()
 		// method. Consequently, the data will be transfered directly from the source
 		// directly to the Media Agent after this method returns.
-		// No processing required here.
+		// The only processing required here is to record the state of the files being
+		// backed up, against which the next incremental backup detects the changes.
+		// The block signatures of the large files are dropped, since the first block delta
+		// after a full backup must hold the whole file. So is the chunk index, since the
+		// chunks of the previous chain are not restored along with the new one.
+		try {
+			fileStateIndex.clearSignatures(Paths.get(context.getIndexFilePath()));
+			stagedFileDeduplicator.clear(Paths.get(context.getIndexFilePath()));
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		fsService.scanFileStates(request.getAppOptions().getDirPath(),
+				ConfigProperties.getPropertyBoolean("samplefs.backup.follow-symbolic-links"),
+				context.getPendingIndexFilePath());
+		
+		// A sharded full backup cannot be transferred from the source directory directly. The
+		// files listed by the scan are staged into one data directory per shard instead.
+		if(isShardedFullBackup(request))
+			stageShards(status, request, context);
+	}
+	
+	private boolean isShardedFullBackup(SampleFSBackupRequest request) {
+		return request.getAppOptions().getShards() > 1 && !request.getAppOptions().isSyntheticFull();
+	}
+	
+	private String getShardDataDirPath(BackupContext context, int shard) {
+		return Paths.get(context.getDataDirPath(), String.valueOf(shard)).toString();
+	}
+	
+	// Shard 0 is sent with the log directory of the backup, which holds the shard manifest
+	private String getShardLogDirPath(BackupContext context, int shard) {
+		return shard == 0 ? context.getLogDirPath() : Paths.get(context.getDataDirPath(), "log" + shard).toString();
+	}
+	
+	private void stageShards(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
+		int shards = request.getAppOptions().getShards();
+		String dirPath = request.getAppOptions().getDirPath();
+		List<String> shardDirPaths = IntStream.range(0, shards)
+				.mapToObj(shard -> getShardDataDirPath(context, shard))
+				.collect(Collectors.toList());
+		long[] sizes = fsService.stageShards(dirPath, context.getPendingIndexFilePath(), shardDirPaths);
+		// The directories and the entries other than regular files go along with shard 0
+		fsService.stageDirectoryTree(dirPath, shardDirPaths.get(0), ConfigProperties.getPropertyBoolean("samplefs.backup.follow-symbolic-links"));
+		for(int shard = 1; shard < shards; shard++)
+			prepareBackupDirectory(getShardLogDirPath(context, shard));
+		
+		// A restore of the chain finds the other shards through the manifest in LOG:0
+		ShardManifest manifest = new ShardManifest();
+		manifest.setSessionId(context.getObjectVerOptions().getSessionId());
+		manifest.setAppId(request.getAppOptions().getAppId());
+		manifest.setShardAppNames(IntStream.range(1, shards)
+				.mapToObj(shard -> ShardManifest.getShardAppName(request.getAppOptions().getAppName(), shard))
+				.toArray(String[]::new));
+		try {
+			fsService.writeFile(Paths.get(context.getLogDirPath(), ShardManifest.FILE_NAME).toString(), JsonUtil.serializeToJson(manifest));
+		} catch (JsonProcessingException e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		
+		LongSummaryStatistics stats = Arrays.stream(sizes).summaryStatistics();
+		logger.info("Staged {} shards of {} to {} bytes", shards, stats.getMin(), stats.getMax());
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_SHARDS_STAGED, shards, stats.getMin(), stats.getMax())));
+	}
+
+	private void syntheticFullBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
+		logger.info("Starting synthetic full backup...");
+
+		// Obtain last backup details from DP IDB
+		SampleFSLastBackupDetail lastBackupDetail = getLastBackupDetail(status, request);
+		
+		// Check synthetic full backup constraint
+		checkSyntheticFullBackupConstraint(status, lastBackupDetail);
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_START_SYNTHETIC_FULL_BACKUP, lastBackupDetail.getObjectVerOptions().getSessionId())));
+		
+		// Consolidate the last backup chain into the data directory
+		doSyntheticFullBackup(status, request, context, lastBackupDetail);
+		
+		// The files of the last backup are now all held by this one
+		Path previousCatalogFile = getPreviousCatalogFile(context, lastBackupDetail);
+		if(previousCatalogFile != null) {
+			writeCatalog(context, pendingCatalogFile -> versionCatalog.writeConsolidated(previousCatalogFile,
+					context.getObjectVerOptions().getBackupTime(), context.getObjectVerOptions().getSessionId(), pendingCatalogFile));
+		}
+		
+		// Transfer the consolidated data to DP MA
+		sendFullBackup(status, request, context);
+		
+		// The file state index (and the block signatures) of the last backup describe the
+		// consolidated files as well, so they remain the base for the next incremental backup.
+		commitCatalog(context);
+	}
+	
+	private void doSyntheticFullBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context, SampleFSLastBackupDetail lastBackupDetail) {
+		// The new full backup stands for the state of the last backup
+		context.getObjectVerOptions().setBackupTime(lastBackupDetail.getObjectVerOptions().getBackupTime());
+		context.getObjectVerOptions().setSynthetic(true);
+		
+		// Unlike the block signatures, the chunk index does not carry over to the new chain
+		try {
+			stagedFileDeduplicator.clear(Paths.get(context.getIndexFilePath()));
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		
+		// Receive the chain up to the last backup, the full backup into the data directory
+		// and the incremental backups into a separate temp directory
+		String chainDirPath = createBackupTempDirectory("chain-" + context.getId());
+		try {
+			logger.info("Transferring the backup chain from MA. This may take a while...");
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_TRANSFER_FROM_MA));
+			try {
+				dpService.receiveBackupFromDP(status, request, lastBackupDetail.getObjectVerOptions().getSessionId(),
+						context.getDataDirPath(), chainDirPath);
+				receiveShards(status, request.getBarlist(), request.getAppHost(), chainDirPath, context.getDataDirPath());
+				status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_TRANSFER_FROM_MA_COMPLETED));
+			} catch (Exception e) {
+				logger.error("Could not transfer the backup chain from MA", e);
+				status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_TRANSFER_FROM_MA_FAILED, ExceptionUtil.getMessageForSessionReport(e))));
+				throw e;
+			}
+			
+			// Apply the incremental backups to the full one the same way as on restore
+			List<File> incrBackups = listIncrBackups(chainDirPath);
+			if(!incrBackups.isEmpty()) {
+				RestorePlan plan = restorePlanner.plan(incrBackups.stream()
+						.map(File::getAbsolutePath)
+						.collect(Collectors.toList()));
+				int workers = Math.max(1, ConfigProperties.getPropertyInteger("samplefs.restore.parallelism", 4));
+				restorePlanner.apply(plan, context.getDataDirPath(), true, workers);
+			}
+			
+			// Unlike a restore of the chain, remove the files that were deleted by the time of the
+			// last backup, as a real full backup would not have them
+			int removed = removeUnindexedFiles(request, context, lastBackupDetail);
+			
+			logger.info("Consolidated {} incremental backups into the full backup, removing {} deleted files", incrBackups.size(), removed);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_SYNTHETIC_FULL_CONSOLIDATED, incrBackups.size(), removed)));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ExceptionUtil.convertToServiceException(e);
+		} finally {
+			try {
+				new OSCommand().removeDirectoryAndContent(chainDirPath);
+			} catch (Exception e) {
+				logger.warn("Could not remove the backup chain directory {}", chainDirPath, e);
+			}
+		}
+	}
+	
+	// The file state index is only updated after a successful backup, so it can be older than
+	// the last backup, in which case it lacks the files added since. Nothing is removed then.
+	private int removeUnindexedFiles(SampleFSBackupRequest request, BackupContext context, SampleFSLastBackupDetail lastBackupDetail) {
+		try {
+			Path indexFile = Paths.get(context.getIndexFilePath());
+			if(!Files.exists(indexFile)
+					|| Files.getLastModifiedTime(indexFile).toMillis() < lastBackupDetail.getObjectVerOptions().getBackupTime()) {
+				logger.warn("The file state index {} does not match the last backup; keeping all the files", indexFile);
+				return 0;
+			}
+			List<String> deleted = fileStateIndex.selectUnindexedFiles(indexFile, request.getAppOptions().getDirPath(),
+					fsService.listFiles(context.getDataDirPath()));
+			if(deleted == null || deleted.isEmpty())
+				return 0;
+			fsService.removeFiles(context.getDataDirPath(), deleted);
+			return deleted.size();
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+
+	private void checkSyntheticFullBackupConstraint(IProgressStatus status, SampleFSLastBackupDetail lastBackupDetail) {
+		if(lastBackupDetail.getObjectVerOptions() == null || StringUtils.isBlank(lastBackupDetail.getObjectVerOptions().getSessionId())) {
+			logger.warn("Synthetic full backup requires previous backup recorded with its session");
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, NLSMessageTemplate.NLS_SYNTHETIC_FULL_REQUIRES_PREVIOUS_BACKUP));
+			throw new ServiceException(HttpStatus.CONFLICT, "Synthetic full backup requires previous backup recorded with its session");
+		}
 	}
 
 	private void incrBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
@@ -131,18 +446,187 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		// Check incr backup constraint
 		checkIncrBackupConstraint(status, lastBackupDetail);
 		
+		// Tell the size of this backup before copying anything
+		if(changeEstimator.isEnabledOnBackup())
+			reportChangeEstimate(status, request, context, lastBackupDetail);
+		
 		// Plugin-specific part of the incr backup logic
 		doIncrBackup(status, request, context, lastBackupDetail);
 		
+		// Store the staged files as chunks, leaving out those the chain holds already
+		if(stagedFileDeduplicator.isEnabled())
+			deduplicateStagedFiles(status, context);
+		
+		// Compress the staged files before they are transferred
+		if(stagedFileCompressor.isEnabled())
+			compressStagedFiles(status, context);
+		
+		// The files staged in the log directory are held by this backup, and the others by
+		// the same backups as in the catalog of the last one
+		writeCatalog(context, pendingCatalogFile -> versionCatalog.write(Paths.get(context.getPendingIndexFilePath()),
+				request.getAppOptions().getDirPath(), getPreviousCatalogFile(context, lastBackupDetail),
+				listStagedFiles(context), context.getTime(),
+				context.getObjectVerOptions().getSessionId(), pendingCatalogFile));
+		
 		// Transfer the data to DP MA
 		sendIncrBackup(status, request, context);
+
+		// Make the scan of this backup the base for the next incremental backup
+		commitFileStateIndex(request, context);
+	}
+
+	// A sampled estimate takes seconds, so it does not hold the backup up; the backup proceeds without it if it fails
+	private void reportChangeEstimate(IProgressStatus status, SampleFSBackupRequest request, BackupContext context, SampleFSLastBackupDetail lastBackupDetail) {
+		try {
+			ChangeEstimate estimate = changeEstimator.estimate(request.getAppOptions().getDirPath(),
+					lastBackupDetail.getObjectVerOptions().getBackupTime(),
+					ConfigProperties.getPropertyBoolean("samplefs.backup.follow-symbolic-links"),
+					Paths.get(context.getIndexFilePath()), true, 0);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_CHANGE_ESTIMATE, estimate.getFiles(), estimate.getBytes())));
+		} catch (Exception e) {
+			logger.warn("Could not estimate the size of the incremental backup", e);
+		}
+	}
+
+	// The staged files are left as they are if this fails, so the backup proceeds without deduplication
+	private void deduplicateStagedFiles(IProgressStatus status, BackupContext context) {
+		try {
+			DedupStats stats = stagedFileDeduplicator.deduplicate(context.getLogDirPath(), context.getPendingIndexFilePath() + ".dedup",
+					Paths.get(context.getIndexFilePath()), context.getTime());
+			context.setDeduplicated(stats.getFiles() > 0);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_STAGED_FILES_DEDUPLICATED,
+					stats.getFiles(), stats.getBytes(), stats.getChunks(), stats.getNewChunks(), stats.getNewBytes(), stats.getSkippedFiles())));
+		} catch (Exception e) {
+			logger.warn("Could not deduplicate the staged files in {}", context.getLogDirPath(), e);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_STAGED_FILES_NOT_DEDUPLICATED, ExceptionUtil.getMessageForSessionReport(e))));
+		}
+	}
+	
+	// The files stored as chunks are listed in the manifest rather than in the staging directory
+	private List<String> listStagedFiles(BackupContext context) {
+		List<String> stagedFiles = new ArrayList<>(fsService.listFiles(context.getLogDirPath()));
+		if(context.isDeduplicated())
+			stagedFiles.addAll(stagedFileDeduplicator.listFiles(context.getLogDirPath()));
+		return stagedFiles;
+	}
+	
+	// The staged files are complete either way, so the backup proceeds uncompressed if the compression fails
+	private void compressStagedFiles(IProgressStatus status, BackupContext context) {
+		try {
+			CompressionStats stats = stagedFileCompressor.compress(context.getLogDirPath(), context.getPendingIndexFilePath() + ".sfz");
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_STAGED_FILES_COMPRESSED,
+					stats.getFiles(), stats.getBytes(), stats.getCompressedBytes(), formatRatio(stats), formatThroughput(stats), stats.getSkippedFiles())));
+		} catch (Exception e) {
+			logger.warn("Could not compress the staged files in {}", context.getLogDirPath(), e);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_STAGED_FILES_NOT_COMPRESSED, ExceptionUtil.getMessageForSessionReport(e))));
+		}
+	}
+	
+	// Compressed size in percent of the original size
+	private static String formatRatio(CompressionStats stats) {
+		return String.format("%.1f", stats.getBytes() == 0 ? 100.0 : stats.getCompressedBytes() * 100.0 / stats.getBytes());
+	}
+	
+	// Original bytes per second, in MB/s
+	private static String formatThroughput(CompressionStats stats) {
+		return String.format("%.1f", stats.getBytes() / 1000.0 / Math.max(1, stats.getMillis()));
 	}
 
 	private void doIncrBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context, SampleFSLastBackupDetail lastBackupDetail) {
-		// Copy all files modified since the last backup time to the prepared log directory
+		// The files copied ahead of the backup are revalidated in their staging directory,
+		// which becomes the log directory instead of the one prepared earlier
+		PreStage preStage = preStager.claim(request.getAppOptions().getDirPath());
+		if(preStage != null) {
+			try {
+				new OSCommand().removeDirectoryAndContent(context.getLogDirPath());
+			} catch (Exception e) {
+				logger.warn("Could not remove the unused log directory {}", context.getLogDirPath(), e);
+			}
+			context.setLogDirPath(preStage.getDirPath());
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_PRESTAGED_FILES, preStage.getFileCount())));
+		}
+		
+		// If the change tracker knows every change since the last backup, only the changed
+		// files are looked at, instead of scanning the whole directory
+		Set<String> changedPaths = changeTracker.getChangedPaths(request.getAppOptions().getDirPath(),
+				lastBackupDetail.getObjectVerOptions().getBackupTime());
+		if(changedPaths != null) {
+			try {
+				if(fsService.copyChangedFiles(request.getAppOptions().getDirPath(), context.getLogDirPath(), changedPaths,
+						lastBackupDetail.getObjectVerOptions().getBackupTime(),
+						ConfigProperties.getPropertyBoolean("samplefs.backup.follow-symbolic-links"),
+						context.getIndexFilePath(), context.getPendingIndexFilePath(), preStage)) {
+					status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_CHANGES_TRACKED, changedPaths.size())));
+					return;
+				}
+			} catch (Exception e) {
+				logger.warn("Could not back up the tracked changes; scanning the directory instead", e);
+			}
+		}
+		
+		// Copy all files changed since the last backup to the prepared log directory
 		fsService.copyFilesModifiedSince(request.getAppOptions().getDirPath(), context.getLogDirPath(),
 				lastBackupDetail.getObjectVerOptions().getBackupTime(),
-				ConfigProperties.getPropertyBoolean("samplefs.backup.follow-symbolic-links"));
+				ConfigProperties.getPropertyBoolean("samplefs.backup.follow-symbolic-links"),
+				context.getIndexFilePath(), context.getPendingIndexFilePath(), preStage);
+	}
+	
+	private void commitFileStateIndex(SampleFSBackupRequest request, BackupContext context) {
+		try {
+			fileStateIndex.commit(Paths.get(context.getPendingIndexFilePath()), Paths.get(context.getIndexFilePath()));
+			// The next incremental backup only needs the changes since this one started
+			changeTracker.compact(request.getAppOptions().getDirPath(), context.getTime());
+		} catch (Exception e) {
+			// The backup itself succeeded. The next incremental backup merely compares
+			// against an older index, which can only make it copy more files than needed.
+			logger.warn("Could not update the file state index {}", context.getIndexFilePath(), e);
+		}
+		if(context.isDeduplicated()) {
+			try {
+				stagedFileDeduplicator.commit(Paths.get(context.getIndexFilePath()), context.getTime());
+			} catch (Exception e) {
+				// The next backups merely store the chunks of this one again
+				logger.warn("Could not commit the chunks of the backup to the chunk index", e);
+			}
+		}
+		commitCatalog(context);
+	}
+	
+	@FunctionalInterface
+	private interface CatalogWriter {
+		long write(Path pendingCatalogFile) throws Exception;
+	}
+	
+	// The catalog is referenced from the object version options, so it must be written before the transfer
+	private void writeCatalog(BackupContext context, CatalogWriter writer) {
+		if(context.getPendingCatalogFilePath() == null)
+			return;
+		Path pendingCatalogFile = Paths.get(context.getPendingCatalogFilePath());
+		try {
+			writer.write(pendingCatalogFile);
+			context.getObjectVerOptions().setCatalog(Paths.get(context.getCatalogFilePath()).getFileName().toString());
+		} catch (Exception e) {
+			// Without the catalog, a restore of selected paths merely receives the whole backup chain
+			logger.warn("Could not write the catalog {}", pendingCatalogFile, e);
+			versionCatalog.discard(pendingCatalogFile);
+		}
+	}
+	
+	private void commitCatalog(BackupContext context) {
+		if(context.getObjectVerOptions().getCatalog() == null)
+			return;
+		try {
+			versionCatalog.commit(Paths.get(context.getPendingCatalogFilePath()), Paths.get(context.getCatalogFilePath()));
+		} catch (Exception e) {
+			logger.warn("Could not update the catalog {}", context.getCatalogFilePath(), e);
+		}
+	}
+	
+	private Path getPreviousCatalogFile(BackupContext context, SampleFSLastBackupDetail lastBackupDetail) {
+		if(context.getCatalogFilePath() == null || lastBackupDetail.getObjectVerOptions() == null
+				|| StringUtils.isBlank(lastBackupDetail.getObjectVerOptions().getCatalog()))
+			return null;
+		return Paths.get(context.getCatalogFilePath()).resolveSibling(lastBackupDetail.getObjectVerOptions().getCatalog());
 	}
 	
 	private SampleFSLastBackupDetail getLastBackupDetail(IProgressStatus status, SampleFSBackupRequest request) {
@@ -172,9 +656,9 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		}
 	}
 
-	private BackupContext establishBackupContext(IProgressStatus status, SampleFSBackupRequest request) {
+	private BackupContext establishBackupContext(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
 		try {
-			return getBackupContext(request);
+			return getBackupContext(request, context);
 		} catch (Exception e) {
 			logger.error("Could not prepare for backup operation", e);
 			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_FAILED_TO_PREPARE_FOR_BACKUP, ExceptionUtil.getMessageForSessionReport(e))));
@@ -182,30 +666,50 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		}
 	}
 	
-	private BackupContext getBackupContext(SampleFSBackupRequest request) {
-		BackupContext context = new BackupContext();
+	private BackupContext getBackupContext(SampleFSBackupRequest request, BackupContext context) {
 		
 		// If full backup, set up a data directory in proper place required for backup.
 		if(Constant.BACKUP_TYPE_FULL.equalsIgnoreCase(request.getBackupType())) {
-			// With SampleFS, the data transfer will take place directly on the
-			// source directory without a staging area.
-			context.setDataDirPath(request.getAppOptions().getDirPath());
-			// Do NOT call context.setDeleteDataDirAfterUse(true) in this case, 
-			// since we don't want the data source to be deleted after backup!!
+			if(request.getAppOptions().isSyntheticFull()) {
+				// A synthetic full backup is consolidated from the last backup chain in a
+				// temp directory, without reading the source directory.
+				context.setDataDirPath(createBackupTempDirectory("data-" + context.getId()));
+				context.setDeleteDataDirAfterUse(true);
+			} else if(request.getAppOptions().getShards() > 1) {
+				// The shards of a sharded full backup are staged by the configured copy mode,
+				// so preferably in a staging directory on the file system of the source
+				context.setDataDirPath(createStagingDirectory(request.getAppOptions().getDirPath(), "data-" + context.getId()));
+				context.setDeleteDataDirAfterUse(true);
+			} else {
+				// With SampleFS, the data transfer will take place directly on the
+				// source directory without a staging area.
+				context.setDataDirPath(request.getAppOptions().getDirPath());
+				// Do NOT call context.setDeleteDataDirAfterUse(true) in this case, 
+				// since we don't want the data source to be deleted after backup!!
+			}
 		}
 		
 		// Set up a log directory in proper place required for backup.		
 		// The log directory must be empty to begin with and should be deleted after use.
-		String logDirPath = createBackupTempDirectory("log-" + context.getTime());
+		String logDirPath = Constant.BACKUP_TYPE_FULL.equalsIgnoreCase(request.getBackupType())
+				? createBackupTempDirectory("log-" + context.getId())
+				: createStagingDirectory(request.getAppOptions().getDirPath(), "log-" + context.getId());
 		context.setLogDirPath(logDirPath);
 		context.setDeleteLogDirAfterUse(true);
 		
+		// Locate the file state index of this application object
+		Path stateDir = fileStateIndex.getStateDirectory(request.getAppOptions().getAppName(),
+				request.getAppOptions().getAppId(), request.getAppHost());
+		context.setIndexFilePath(fileStateIndex.getIndexFile(stateDir, request.getAppOptions().getDirPath()).toString());
+		context.setPendingIndexFilePath(fileStateIndex.getPendingIndexFile(stateDir, request.getAppOptions().getDirPath()).toString());
+		
 		// Set up object options
 		SampleFSObjectOptions objectOptions = new SampleFSObjectOptions();
 		context.setObjectOptions(objectOptions);
 		objectOptions.setAppName(request.getAppOptions().getAppName());
 		objectOptions.setAppId(request.getAppOptions().getAppId());
-		objectOptions.setDirPaths(new String[] {request.getAppOptions().getDirPath()});
+		objectOptions.setDirPaths(request.getAppOptions().getDirPaths() != null
+				? request.getAppOptions().getDirPaths() : new String[] {request.getAppOptions().getDirPath()});
 		
 		// Set up object version options
 		SampleFSObjectVerOptions objectVerOptions = new SampleFSObjectVerOptions();
@@ -213,13 +717,48 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		objectVerOptions.setSourceClient(request.getAppHost());
 		objectVerOptions.setBackupType(request.getBackupType());
 		objectVerOptions.setBackupTime(context.getTime());
+		// The session ID may come with the extra backslashes added by the poco library during serialization
+		objectVerOptions.setSessionId(StringUtils.remove(request.getSessionId(), '\\'));
+		if(isShardedFullBackup(request) && Constant.BACKUP_TYPE_FULL.equalsIgnoreCase(request.getBackupType())) {
+			objectVerOptions.setShards(request.getAppOptions().getShards());
+			objectVerOptions.setShard(0);
+		}
+		
+		// Locate the catalog of the files of this backup
+		if(versionCatalog.isEnabled() && StringUtils.isNotBlank(objectVerOptions.getSessionId())) {
+			Path catalogFile = versionCatalog.getCatalogFile(stateDir, objectVerOptions.getSessionId());
+			context.setCatalogFilePath(catalogFile.toString());
+			context.setPendingCatalogFilePath(versionCatalog.getPendingCatalogFile(catalogFile).toString());
+		}
 				
 		return context;
 	}
 	
 	private String createBackupTempDirectory(String subDirName) {
-		String dirPath = DPUtil.getBackupTempDirectory(Constant.PLUGIN_NAME, subDirName);
-		
+		return prepareBackupDirectory(DPUtil.getBackupTempDirectory(Constant.PLUGIN_NAME, subDirName));
+	}
+	
+	// The files of an incremental backup can only be staged by reflink into a directory on the
+	// file system of the source. If one of the configured staging directories is on that file
+	// system, the staging area is created there instead of the temp directory.
+	private String createStagingDirectory(String srcDirPath, String subDirName) {
+		String stagingDirs = ConfigProperties.getPropertyString("samplefs.backup.staging-dirs");
+		if(StringUtils.isNotBlank(stagingDirs)) {
+			List<String> stagingDirPaths = Arrays.stream(stagingDirs.split(","))
+					.map(String::trim)
+					.filter(StringUtils::isNotEmpty)
+					.collect(Collectors.toList());
+			String stagingDirPath = fsService.findDirectoryOnFileSystemOf(srcDirPath, stagingDirPaths);
+			if(stagingDirPath != null) {
+				logger.info("Staging the changed files in {}, which is on the file system of {}", stagingDirPath, srcDirPath);
+				return prepareBackupDirectory(Paths.get(stagingDirPath, Constant.PLUGIN_NAME, subDirName).toString());
+			}
+			logger.info("None of the staging directories is on the file system of {}", srcDirPath);
+		}
+		return createBackupTempDirectory(subDirName);
+	}
+	
+	private String prepareBackupDirectory(String dirPath) {
 		try {
 			OSCommand osCommand = new OSCommand();
 			// Create the backup directory as needed
@@ -236,6 +775,14 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 	}
 	
 	private void cleanup(IProgressStatus status, BackupContext context) {
+		// Discard the scan of a backup that did not complete
+		if(context.getPendingIndexFilePath() != null) {
+			fileStateIndex.discard(Paths.get(context.getPendingIndexFilePath()));
+		}
+		if(context.getPendingCatalogFilePath() != null) {
+			versionCatalog.discard(Paths.get(context.getPendingCatalogFilePath()));
+		}
+
 		// Clean up the data directory if the system owns it (i.e. a temp directory)
 		if(context.isDeleteDataDirAfterUse()) {
 			String dataDirPath = context.getDataDirPath();
@@ -280,6 +827,35 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		}	
 	}
 	
+	private void sendShardedFullBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
+		int shards = request.getAppOptions().getShards();
+		logger.info("Transferring {} shards of full backup data to MA in parallel. This may take a while...", shards);
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_TRANSFER_SHARDS_TO_MA, shards)));
+
+		ExecutorService executor = Executors.newFixedThreadPool(shards);
+		try {
+			List<Future<?>> transfers = new ArrayList<>();
+			for(int i = 0; i < shards; i++) {
+				int shard = i;
+				transfers.add(executor.submit(() -> dpService.sendFullBackupShard(status, request, context, shard,
+						getShardDataDirPath(context, shard), getShardLogDirPath(context, shard))));
+			}
+			for(Future<?> transfer : transfers)
+				transfer.get();
+			logger.info("Transfer of full backup data to MA is complete");
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_TRANSFER_TO_MA_COMPLETED));
+		} catch (Exception e) {
+			Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			if(e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			logger.error("Could not transfer full backup data to MA", cause);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_TRANSFER_TO_MA_FAILED, ExceptionUtil.getMessageForSessionReport(cause))));
+			throw ExceptionUtil.convertToServiceException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
 	private void sendIncrBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) {
 		logger.info("Transferring incremental backup data to MA. This may take a while...");
 		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_TRANSFER_TO_MA));
@@ -301,8 +877,20 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 			SampleFSBackupRequest request = toSampleFSBackupRequest(backupRequest);
 			// Basic validation of the input fields
 			request.validate(validator);
-			// Make sure that the specified directory to back up is indeed a directory
-			fsService.assertDirectory(request.getAppOptions().getDirPath(), true, false);
+			// Make sure that the specified directories to back up are indeed directories
+			List<String> dirPaths = request.getAppOptions().getDirPathList();
+			if(dirPaths.isEmpty())
+				throw new ServiceException(HttpStatus.BAD_REQUEST, "Either dirPath or dirPaths is required");
+			if(dirPaths.stream().distinct().count() < dirPaths.size())
+				throw new ServiceException(HttpStatus.BAD_REQUEST, "dirPaths has duplicates");
+			for(String dirPath : dirPaths)
+				fsService.assertDirectory(dirPath, true, false);
+			// The other directories are named after their paths, but the application object itself
+			// is the first one, which must stay the same until the next full backup
+			if(dirPaths.size() > 1 && !Constant.BACKUP_TYPE_FULL.equalsIgnoreCase(request.getBackupType())
+					&& !fileStateIndex.isLastIndexed(fileStateIndex.getStateDirectory(request.getAppOptions().getAppName(),
+							request.getAppOptions().getAppId(), request.getAppHost()), dirPaths.get(0)))
+				throw new ServiceException(HttpStatus.CONFLICT, "The first of dirPaths changed since the last backup; a full backup is required");
 			return request;
 		} catch (Exception e) {
 			logger.error("Input validation failed", e);
@@ -332,20 +920,90 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 			logger.info("Starting restore...");
 			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_START_RESTORE));
 
-			// Retrieve the chain of backed up data
-			receiveBackup(status, request, restoreContext);
-			
-			// First, apply the single full backup
-			doRestoreFullBackup(status, request, restoreContext);
-
-			// Second, apply the sequence of zero or more incremental backups
-			applyIncrementalBackupInSequence(status, request, restoreContext);
+			if(request.getAppOptions().getPaths() != null) {
+				// Receive only the part of the chain holding the selected files, and restore just these
+				restoreSelectedPaths(status, request, restoreContext);
+			} else if(ConfigProperties.getPropertyBoolean("samplefs.restore.pipelined", false)) {
+				// Apply each incremental backup as soon as it is received
+				receiveAndApplyBackup(status, request, restoreContext);
+			} else {
+				// Retrieve the chain of backed up data
+				receiveBackup(status, request, restoreContext);
+				receiveShards(status, request, restoreContext);
+				
+				// First, apply the single full backup
+				doRestoreFullBackup(status, request, restoreContext);
+	
+				// Second, apply the sequence of zero or more incremental backups
+				applyIncrementalBackupInSequence(status, request, restoreContext);
+			}
 		} finally {
 			// Clean up resources
 			cleanup(status, restoreContext);
 		}
 	}
 	
+	private void restoreSelectedPaths(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext restoreContext) {
+		Predicate<String> selected = VersionCatalog.toPathFilter(request.getAppOptions().getPaths());
+		selectVersions(status, request, restoreContext, selected);
+		
+		// The full backup was received into a temp directory
+		receiveBackup(status, request, restoreContext);
+		receiveShards(status, request, restoreContext);
+		
+		// The full backup is planned as the oldest layer below the incremental backups, so
+		// that each selected file is moved once, from the newest backup holding it
+		List<String> sourceDirPaths = new ArrayList<>();
+		sourceDirPaths.add(restoreContext.getDataDirPath());
+		listIncrBackups(restoreContext.getLogDirPath()).forEach(incrBackupDir -> sourceDirPaths.add(incrBackupDir.getAbsolutePath()));
+		RestorePlan plan = restorePlanner.plan(sourceDirPaths);
+		restorePlanner.retain(plan, selected);
+		
+		int workers = Math.max(1, ConfigProperties.getPropertyInteger("samplefs.restore.parallelism", 4));
+		try {
+			restorePlanner.apply(plan, request.getAppOptions().getRestoreDirPath(), true, workers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ExceptionUtil.convertToServiceException(e);
+		} catch (Exception e) {
+			logger.error("Could not restore the selected files", e);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_UNEXPECTED_ERROR, ExceptionUtil.getMessageForSessionReport(e))));
+			throw e;
+		}
+		logger.info("Restored {} selected files", plan.getFileCount());
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_SELECTED_FILES_RESTORED, plan.getFileCount())));
+		
+		sendEmailNotification(request);
+	}
+	
+	// Looks the selected files up in the catalog of the session being restored, so that the chain
+	// is only received up to the newest backup holding any of them. Without a catalog (e.g. when
+	// restoring to another host), the whole chain is received.
+	private void selectVersions(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext restoreContext, Predicate<String> selected) {
+		String sessionId = request.getAppOptions().getSessionId();
+		VersionCatalog.Selection selection = null;
+		try {
+			Path stateDir = fileStateIndex.getStateDirectory(request.getAppOptions().getAppName(),
+					request.getAppOptions().getAppId(), request.getAppHost());
+			selection = versionCatalog.select(versionCatalog.getCatalogFile(stateDir, sessionId), selected);
+		} catch (Exception e) {
+			logger.warn("Could not read the catalog of session {}", sessionId, e);
+		}
+		if(selection == null) {
+			logger.info("There is no catalog of session {}; receiving the whole backup chain", sessionId);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_CATALOG_NOT_FOUND, sessionId)));
+			return;
+		}
+		if(selection.getFileCount() == 0) {
+			logger.error("None of the paths to restore is in the backup of session {}", sessionId);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_CATALOG_NO_MATCH, sessionId)));
+			throw new ServiceException(HttpStatus.NOT_FOUND, "None of the paths to restore is in the backup of session " + sessionId);
+		}
+		logger.info("The catalog selects {} files, held by the backup chain up to session {}", selection.getFileCount(), selection.getSessionId());
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_CATALOG_SELECTION, selection.getFileCount(), selection.getSessionId())));
+		restoreContext.setSessionId(selection.getSessionId());
+	}
+	
 	private void receiveBackup(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext restoreContext) {
 		logger.info("Transferring backup data from MA. This may take a while...");
 		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_TRANSFER_FROM_MA));
@@ -361,6 +1019,104 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		}
 	}
 
+	// All the shards of a sharded full backup must be in place before any incremental backup
+	// is applied. In the pipelined mode, this happens as soon as the first one is complete.
+	private void receiveShards(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext restoreContext) {
+		synchronized(restoreContext) {
+			if(restoreContext.isShardsReceived())
+				return;
+			receiveShards(status, request.getBarlist(), request.getAppHost(), restoreContext.getLogDirPath(), restoreContext.getDataDirPath());
+			restoreContext.setShardsReceived(true);
+		}
+	}
+	
+	/**
+	 * Receives the shards other than shard 0 in parallel into the data directory, if the chain
+	 * received into the log directory starts with a sharded full backup (see {@link ShardManifest}).
+	 * Returns the number of shards received.
+	 */
+	private int receiveShards(IProgressStatus status, String barlist, String appHost, String logDirPath, String dataDirPath) {
+		String fullLogDirPath = Paths.get(logDirPath, "0").toString();
+		String json = fsService.readFile(Paths.get(fullLogDirPath, ShardManifest.FILE_NAME).toString());
+		if(json == null)
+			return 0;
+		
+		ExecutorService executor = null;
+		try {
+			ShardManifest manifest = JsonUtil.deserializeFromJson(json, ShardManifest.class);
+			int shards = manifest.getShardAppNames().length;
+			logger.info("Transferring {} more shards of the full backup from MA in parallel", shards);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_TRANSFER_SHARDS_FROM_MA, shards)));
+			
+			executor = Executors.newFixedThreadPool(Math.max(1, shards));
+			List<Future<?>> transfers = new ArrayList<>();
+			for(int i = 1; i <= shards; i++) {
+				int shard = i;
+				// Each shard needs a log directory of its own, which LOG:0 of the chain can hold
+				String shardLogDirPath = Paths.get(fullLogDirPath, "shard" + shard).toString();
+				new OSCommand().createDirectories(shardLogDirPath);
+				transfers.add(executor.submit(() -> dpService.receiveShardFromDP(status, barlist, appHost, manifest, shard,
+						dataDirPath, shardLogDirPath)));
+			}
+			for(Future<?> transfer : transfers)
+				transfer.get();
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_TRANSFER_FROM_MA_COMPLETED));
+			return shards;
+		} catch (Exception e) {
+			Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			if(e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			logger.error("Could not transfer the shards of the full backup from MA", cause);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_TRANSFER_FROM_MA_FAILED, ExceptionUtil.getMessageForSessionReport(cause))));
+			throw ExceptionUtil.convertToServiceException(cause);
+		} finally {
+			if(executor != null)
+				executor.shutdownNow();
+		}
+	}
+
+	private void receiveAndApplyBackup(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext restoreContext) throws InterruptedException {
+		// The full backup is transferred directly into the target directory, and the incremental
+		// backups are applied one by one as they are complete, removing each one afterwards.
+		// This overlaps the transfer with the apply, and limits the space needed for staging.
+		IncrementalBackupWatcher watcher = new IncrementalBackupWatcher(new File(restoreContext.getLogDirPath()),
+				incrBackupDir -> {
+					receiveShards(status, request, restoreContext);
+					doRestoreIncrBackup(status, request, restoreContext, incrBackupDir);
+					// The next incremental backups may still need the chunks of this one
+					stagedFileDeduplicator.retainChunks(incrBackupDir.getAbsolutePath(), getRetainedChunkDirPath(restoreContext));
+					removeIncrBackup(incrBackupDir);
+					status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_INCREMENTAL_APPLIED, incrBackupDir.getName())));
+				});
+		watcher.start();
+		try {
+			receiveBackup(status, request, restoreContext);
+		} finally {
+			watcher.stop();
+		}
+
+		receiveShards(status, request, restoreContext);
+		doRestoreFullBackup(status, request, restoreContext);
+
+		try {
+			int applied = watcher.applyRemaining();
+			logger.info("All {} incremental backups have been applied", applied);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_APPLYING_INCREMENTAL_COMPLETED));
+		} catch(Exception e) {
+			logger.error("Could not apply incremental backups", e);
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_FAILED_TO_APPLY_INCREMENTAL, ExceptionUtil.getMessageForSessionReport(e))));
+			throw e;
+		}
+	}
+	
+	private void removeIncrBackup(File incrBackupDir) {
+		try {
+			new OSCommand().removeDirectoryAndContent(incrBackupDir.getAbsolutePath());
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+
 	private void doRestoreFullBackup(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext context) {
 		sendEmailNotification(request);
 
@@ -373,10 +1129,7 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		// Get the sorted list of incremental backups to apply, if any	
 		List<File> incrBackups;
 		try {
-			incrBackups = Arrays.stream(new File(restoreContext.getLogDirPath()).listFiles())
-					.filter(file -> !file.getName().equals("0")) // Exclude LOG:0 of full backup
-					.sorted(Comparator.comparing(file -> Integer.parseInt(file.getName())))
-					.collect(Collectors.toList());
+			incrBackups = listIncrBackups(restoreContext.getLogDirPath());
 		} catch(Exception e) {
 			logger.error("Failed to get sorted list of incremental backups", e);
 			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_MAJOR, String.format(NLSMessageTemplate.NLS_UNEXPECTED_ERROR, ExceptionUtil.getMessageForSessionReport(e))));
@@ -390,10 +1143,15 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 			logger.info("There are {} incremental backups to apply", incrBackups.size());
 			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_APPLYING_INCREMENTAL, incrBackups.size())));
 			try {
-				for(int i = 0; i < incrBackups.size(); i++) {
-					logger.info("({}) Applying the content of {}", (i+1), incrBackups.get(i).getAbsoluteFile());
-					// Apply the single incremental backup
-					doRestoreIncrBackup(status, request, restoreContext, incrBackups.get(i));
+				if(ConfigProperties.getPropertyBoolean("samplefs.restore.collapse-incrementals", true)) {
+					// Copy every file only once, from the newest incremental backup containing it
+					doRestoreCollapsedIncrBackups(status, request, restoreContext, incrBackups);
+				} else {
+					for(int i = 0; i < incrBackups.size(); i++) {
+						logger.info("({}) Applying the content of {}", (i+1), incrBackups.get(i).getAbsoluteFile());
+						// Apply the single incremental backup
+						doRestoreIncrBackup(status, request, restoreContext, incrBackups.get(i));
+					}
 				}
 				logger.info("All incremental backups have been applied", String.valueOf(incrBackups.size()));
 				status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, NLSMessageTemplate.NLS_APPLYING_INCREMENTAL_COMPLETED));
@@ -405,8 +1163,75 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		}
 	}
 	
+	private List<File> listIncrBackups(String logDirPath) {
+		return Arrays.stream(new File(logDirPath).listFiles())
+				.filter(file -> !file.getName().equals("0")) // Exclude LOG:0 of full backup
+				.sorted(Comparator.comparing(file -> Integer.parseInt(file.getName())))
+				.collect(Collectors.toList());
+	}
+	
 	private void doRestoreIncrBackup(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext context, File incrBackupDir) {
-		fsService.copyContent(incrBackupDir.getAbsolutePath(), request.getAppOptions().getRestoreDirPath());
+		if(isMoveApplyMode())
+			fsService.moveContent(incrBackupDir.getAbsolutePath(), request.getAppOptions().getRestoreDirPath());
+		else
+			fsService.copyContent(incrBackupDir.getAbsolutePath(), request.getAppOptions().getRestoreDirPath());
+		
+		// The files stored as chunks are rebuilt from the chunks of this and the previous incremental backups
+		DedupStats rebuilt = stagedFileDeduplicator.restoreStagedFiles(incrBackupDir.getAbsolutePath(), request.getAppOptions().getRestoreDirPath(),
+				listChunkSources(context));
+		if(rebuilt.getFiles() > 0)
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_FILES_REBUILT,
+					rebuilt.getFiles(), rebuilt.getBytes(), rebuilt.getChunks())));
+		
+		// The compressed files are replaced with the originals before any delta is applied to them
+		CompressionStats stats = stagedFileCompressor.decompressStagedFiles(incrBackupDir.getAbsolutePath(), request.getAppOptions().getRestoreDirPath());
+		if(stats.getFiles() > 0)
+			status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_FILES_DECOMPRESSED,
+					stats.getFiles(), stats.getCompressedBytes(), stats.getBytes(), formatThroughput(stats))));
+		
+		// The block deltas of the large files were copied along, to be applied to the restored files
+		int deltas = fsService.applyStagedDeltas(incrBackupDir.getAbsolutePath(), request.getAppOptions().getRestoreDirPath());
+		if(deltas > 0)
+			logger.info("Applied {} block deltas from {}", deltas, incrBackupDir);
+	}
+	
+	// The chunks of the incremental backups removed by a pipelined restore are retained in LOG:0
+	private String getRetainedChunkDirPath(RestoreContext context) {
+		return Paths.get(context.getLogDirPath(), "0", StagedFileDeduplicator.DIR_NAME).toString();
+	}
+	
+	// The directories that may hold the chunks referenced by an incremental backup
+	private List<String> listChunkSources(RestoreContext context) {
+		List<String> dirPaths = listIncrBackups(context.getLogDirPath()).stream()
+				.map(File::getAbsolutePath)
+				.collect(Collectors.toList());
+		File[] retained = new File(getRetainedChunkDirPath(context)).listFiles(File::isDirectory);
+		if(retained != null)
+			Arrays.stream(retained).forEach(dir -> dirPaths.add(dir.getAbsolutePath()));
+		return dirPaths;
+	}
+	
+	// The received incremental backups are deleted after the restore, so by default they are
+	// moved into the restore directory (by hard link where it is on the same file system)
+	private boolean isMoveApplyMode() {
+		return !"copy".equals(ConfigProperties.getPropertyString("samplefs.restore.apply-mode"));
+	}
+
+	private void doRestoreCollapsedIncrBackups(IProgressStatus status, SampleFSRestoreRequest request, RestoreContext context, List<File> incrBackups) {
+		RestorePlan plan = restorePlanner.plan(incrBackups.stream()
+				.map(File::getAbsolutePath)
+				.collect(Collectors.toList()));
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_RESTORE_PLANNED, plan.getFileCount(), plan.getSupersededCount())));
+		
+		// The files picked from each backup are disjoint, so they can be applied concurrently
+		int workers = Math.max(1, ConfigProperties.getPropertyInteger("samplefs.restore.parallelism", 4));
+		status.statusMessage(new SessionReport(Constant.PLUGIN_NAME, MessageType.ERH_NORMAL, String.format(NLSMessageTemplate.NLS_RESTORE_WORKERS, workers)));
+		try {
+			restorePlanner.apply(plan, request.getAppOptions().getRestoreDirPath(), isMoveApplyMode(), workers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ExceptionUtil.convertToServiceException(e);
+		}
 	}
 
 	private SampleFSRestoreRequest validateInput(IProgressStatus status, RestoreRequest restoreRequest) {
@@ -455,6 +1280,13 @@ public class SampleFSBackupProvider extends BackupProvider implements BackupInte
 		// Do NOT call context.setDeleteDataDirAfterUse(true) in this case, since we 
 		// don't want the restored target directory to be deleted right after restore!!
 		
+		// A restore of selected paths receives the full backup into a temp directory instead,
+		// from which only the selected files are moved to the target directory
+		if(request.getAppOptions().getPaths() != null) {
+			context.setDataDirPath(createRestoreTempDirectory("data-" + context.getTime()));
+			context.setDeleteDataDirAfterUse(true);
+		}
+		
 		// Set up a log directory in proper place required for restore.
 		// The log directory must be empty to begin with and should be deleted after use.
 		String logDirPath = createRestoreTempDirectory("log-" + context.getTime());
@@ -15,8 +15,14 @@
  */
 package com.mf.dp.sample.fs.model;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotEmpty;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -38,11 +44,27 @@ public class BackupAppOptions {
 	@Schema(requiredMode = RequiredMode.REQUIRED, example = "")	
 	private String appId;
 
-    @NotEmpty
-	@JsonProperty(required = true, value = "dirPath")
-	@Schema(requiredMode = RequiredMode.REQUIRED, example = "/home/tom")	
+	// Either dirPath or dirPaths is required
+	@JsonProperty(value = "dirPath")
+	@Schema(example = "/home/tom")	
 	private String dirPath;
 
+	// Directories backed up in parallel, each as an object of its own (see getDirPathList())
+	@JsonProperty(value = "dirPaths")
+	@Schema(example = "[\"/home/tom\", \"/home/jerry\"]")
+	private String[] dirPaths;
+
+	// Consolidate the last backup chain into a new full backup instead of reading the source
+	@JsonProperty(value = "syntheticFull")
+	@Schema(example = "false")
+	private boolean syntheticFull;
+
+	// Number of parallel streams, each a separate object, that a full backup is split into
+	@Min(1)
+	@JsonProperty(value = "shards")
+	@Schema(example = "1")
+	private Integer shards;
+
 	public String getAppName() {
 		return appName;
 	}
@@ -66,5 +88,52 @@ public class BackupAppOptions {
 	public void setDirPath(String dirPath) {
 		this.dirPath = dirPath;
 	}
+
+	public String[] getDirPaths() {
+		return dirPaths;
+	}
+
+	public void setDirPaths(String[] dirPaths) {
+		this.dirPaths = dirPaths;
+	}
+
+	/**
+	 * Returns the directories to back up, i.e. dirPaths, or else dirPath.
+	 */
+	@JsonIgnore
+	public List<String> getDirPathList() {
+		if(dirPaths != null && dirPaths.length > 0)
+			return Arrays.asList(dirPaths);
+		return dirPath != null ? Collections.singletonList(dirPath) : Collections.emptyList();
+	}
+
+	/**
+	 * Returns a copy of these options for the backup of a single directory, as the given object.
+	 */
+	public BackupAppOptions forDirectory(String appName, String dirPath) {
+		BackupAppOptions appOptions = new BackupAppOptions();
+		appOptions.setAppName(appName);
+		appOptions.setAppId(appId);
+		appOptions.setDirPath(dirPath);
+		appOptions.setSyntheticFull(syntheticFull);
+		appOptions.setShards(shards);
+		return appOptions;
+	}
+
+	public boolean isSyntheticFull() {
+		return syntheticFull;
+	}
+
+	public void setSyntheticFull(boolean syntheticFull) {
+		this.syntheticFull = syntheticFull;
+	}
+
+	public int getShards() {
+		return shards != null ? shards : 1;
+	}
+
+	public void setShards(Integer shards) {
+		this.shards = shards;
+	}
     
 }
@@ -18,19 +18,36 @@ package com.mf.dp.sample.fs.model;
 public class BackupContext {
 
 	private long time;
+	// Names the temp directories of the backup, which must differ between the backups
+	// of several directories running at the same time
+	private String id;
 	private String dataDirPath;
 	private boolean deleteDataDirAfterUse = false;
 	private String logDirPath;
 	private boolean deleteLogDirAfterUse = false;
+	private String indexFilePath;
+	private String pendingIndexFilePath;
+	private String catalogFilePath;
+	private String pendingCatalogFilePath;
+	// Whether the staged files were stored as chunks, whose version must be committed along with the index
+	private boolean deduplicated = false;
 	private SampleFSObjectOptions objectOptions;
 	private SampleFSObjectVerOptions objectVerOptions;
 	
 	public BackupContext() {
 		this.time = System.currentTimeMillis();
+		this.id = String.valueOf(time);
+	}
+	public BackupContext(long time, String id) {
+		this.time = time;
+		this.id = id;
 	}
 	public long getTime() {
 		return time;
 	}
+	public String getId() {
+		return id;
+	}
 	public String getDataDirPath() {
 		return dataDirPath;
 	}
@@ -55,6 +72,36 @@ public class BackupContext {
 	public void setDeleteLogDirAfterUse(boolean deleteLogDirAfterUse) {
 		this.deleteLogDirAfterUse = deleteLogDirAfterUse;
 	}
+	public String getIndexFilePath() {
+		return indexFilePath;
+	}
+	public void setIndexFilePath(String indexFilePath) {
+		this.indexFilePath = indexFilePath;
+	}
+	public String getPendingIndexFilePath() {
+		return pendingIndexFilePath;
+	}
+	public void setPendingIndexFilePath(String pendingIndexFilePath) {
+		this.pendingIndexFilePath = pendingIndexFilePath;
+	}
+	public String getCatalogFilePath() {
+		return catalogFilePath;
+	}
+	public void setCatalogFilePath(String catalogFilePath) {
+		this.catalogFilePath = catalogFilePath;
+	}
+	public String getPendingCatalogFilePath() {
+		return pendingCatalogFilePath;
+	}
+	public void setPendingCatalogFilePath(String pendingCatalogFilePath) {
+		this.pendingCatalogFilePath = pendingCatalogFilePath;
+	}
+	public boolean isDeduplicated() {
+		return deduplicated;
+	}
+	public void setDeduplicated(boolean deduplicated) {
+		this.deduplicated = deduplicated;
+	}
 	public SampleFSObjectOptions getObjectOptions() {
 		return objectOptions;
 	}
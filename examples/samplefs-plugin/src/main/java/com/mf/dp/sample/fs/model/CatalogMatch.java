@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CatalogMatch {
+
+	private String appHost;
+	// Relative to the backed-up directory
+	private String path;
+	// Sessions whose backup (or chain) has the file, newest first
+	private List<String> sessionIds;
+	
+	public CatalogMatch() {}
+	
+	public CatalogMatch(String appHost, String path, List<String> sessionIds) {
+		this.appHost = appHost;
+		this.path = path;
+		this.sessionIds = sessionIds;
+	}
+
+	public String getAppHost() {
+		return appHost;
+	}
+
+	public void setAppHost(String appHost) {
+		this.appHost = appHost;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public List<String> getSessionIds() {
+		return sessionIds;
+	}
+
+	public void setSessionIds(List<String> sessionIds) {
+		this.sessionIds = sessionIds;
+	}
+	
+}
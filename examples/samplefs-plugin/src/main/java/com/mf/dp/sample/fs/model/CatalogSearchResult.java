@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CatalogSearchResult {
+
+	// Versions searched, newest first per host
+	private List<CatalogVersion> versions;
+	// In the order of the paths
+	private List<CatalogMatch> matches;
+	// Whether there are more matches than returned
+	private boolean truncated;
+	
+	public CatalogSearchResult() {}
+	
+	public CatalogSearchResult(List<CatalogVersion> versions, List<CatalogMatch> matches, boolean truncated) {
+		this.versions = versions;
+		this.matches = matches;
+		this.truncated = truncated;
+	}
+
+	public List<CatalogVersion> getVersions() {
+		return versions;
+	}
+
+	public void setVersions(List<CatalogVersion> versions) {
+		this.versions = versions;
+	}
+
+	public List<CatalogMatch> getMatches() {
+		return matches;
+	}
+
+	public void setMatches(List<CatalogMatch> matches) {
+		this.matches = matches;
+	}
+
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+	
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CatalogVersion {
+
+	private String appHost;
+	private String sessionId;
+	private long backupTime;
+	
+	public CatalogVersion() {}
+	
+	public CatalogVersion(String appHost, String sessionId, long backupTime) {
+		this.appHost = appHost;
+		this.sessionId = sessionId;
+		this.backupTime = backupTime;
+	}
+
+	public String getAppHost() {
+		return appHost;
+	}
+
+	public void setAppHost(String appHost) {
+		this.appHost = appHost;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public long getBackupTime() {
+		return backupTime;
+	}
+
+	public void setBackupTime(long backupTime) {
+		this.backupTime = backupTime;
+	}
+	
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChangeEstimate {
+
+	private String dirPath;
+	// Files an incremental backup would copy, and their total size
+	private long files;
+	private long bytes;
+	// Files in the tree; only given for the directory queried
+	private Long scannedFiles;
+	// Whether the figures are extrapolated from a sample of the tree
+	private boolean sampled;
+	// Only given if sampled: number of paths sampled, and standard error of the bytes relative to them
+	private Integer probes;
+	private Double relativeError;
+	// Only given for the directory queried, most changed bytes first
+	private List<ChangeEstimate> largestSubdirectories;
+	
+	public ChangeEstimate() {}
+	
+	public ChangeEstimate(String dirPath, long files, long bytes, boolean sampled) {
+		this.dirPath = dirPath;
+		this.files = files;
+		this.bytes = bytes;
+		this.sampled = sampled;
+	}
+
+	public String getDirPath() {
+		return dirPath;
+	}
+
+	public void setDirPath(String dirPath) {
+		this.dirPath = dirPath;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public void setFiles(long files) {
+		this.files = files;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public Long getScannedFiles() {
+		return scannedFiles;
+	}
+
+	public void setScannedFiles(Long scannedFiles) {
+		this.scannedFiles = scannedFiles;
+	}
+
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	public void setSampled(boolean sampled) {
+		this.sampled = sampled;
+	}
+
+	public Integer getProbes() {
+		return probes;
+	}
+
+	public void setProbes(Integer probes) {
+		this.probes = probes;
+	}
+
+	public Double getRelativeError() {
+		return relativeError;
+	}
+
+	public void setRelativeError(Double relativeError) {
+		this.relativeError = relativeError;
+	}
+
+	public List<ChangeEstimate> getLargestSubdirectories() {
+		return largestSubdirectories;
+	}
+
+	public void setLargestSubdirectories(List<ChangeEstimate> largestSubdirectories) {
+		this.largestSubdirectories = largestSubdirectories;
+	}
+	
+}
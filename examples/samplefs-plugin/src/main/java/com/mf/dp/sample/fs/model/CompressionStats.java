@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CompressionStats {
+
+	// Files compressed (or decompressed), and their size before and after compression
+	private long files;
+	private long bytes;
+	private long compressedBytes;
+	// Files left as they are, e.g. since they would hardly get smaller
+	private long skippedFiles;
+	private long millis;
+	
+	public CompressionStats() {}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public void setFiles(long files) {
+		this.files = files;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getCompressedBytes() {
+		return compressedBytes;
+	}
+
+	public void setCompressedBytes(long compressedBytes) {
+		this.compressedBytes = compressedBytes;
+	}
+
+	public long getSkippedFiles() {
+		return skippedFiles;
+	}
+
+	public void setSkippedFiles(long skippedFiles) {
+		this.skippedFiles = skippedFiles;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	public void setMillis(long millis) {
+		this.millis = millis;
+	}
+	
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DedupStats {
+
+	// Files stored as chunks (or rebuilt from them), and their size
+	private long files;
+	private long bytes;
+	// Chunks of these files, and those of them stored by this backup rather than referenced
+	private long chunks;
+	private long newChunks;
+	private long newBytes;
+	// Files left as they are, e.g. since they are too small
+	private long skippedFiles;
+	private long millis;
+	
+	public DedupStats() {}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public void setFiles(long files) {
+		this.files = files;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getChunks() {
+		return chunks;
+	}
+
+	public void setChunks(long chunks) {
+		this.chunks = chunks;
+	}
+
+	public long getNewChunks() {
+		return newChunks;
+	}
+
+	public void setNewChunks(long newChunks) {
+		this.newChunks = newChunks;
+	}
+
+	public long getNewBytes() {
+		return newBytes;
+	}
+
+	public void setNewBytes(long newBytes) {
+		this.newBytes = newBytes;
+	}
+
+	public long getSkippedFiles() {
+		return skippedFiles;
+	}
+
+	public void setSkippedFiles(long skippedFiles) {
+		this.skippedFiles = skippedFiles;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	public void setMillis(long millis) {
+		this.millis = millis;
+	}
+	
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DirectoryStats {
+
+	private String dirPath;
+	// Total size of the regular files in the tree
+	private long bytes;
+	private long files;
+	// Subdirectories in the tree, at any depth
+	private long directories;
+	// Only given for the directory queried, largest first
+	private List<DirectoryStats> largestSubdirectories;
+	
+	public DirectoryStats() {}
+	
+	public DirectoryStats(String dirPath, long bytes, long files, long directories) {
+		this.dirPath = dirPath;
+		this.bytes = bytes;
+		this.files = files;
+		this.directories = directories;
+	}
+
+	public String getDirPath() {
+		return dirPath;
+	}
+
+	public void setDirPath(String dirPath) {
+		this.dirPath = dirPath;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public long getFiles() {
+		return files;
+	}
+
+	public void setFiles(long files) {
+		this.files = files;
+	}
+
+	public long getDirectories() {
+		return directories;
+	}
+
+	public void setDirectories(long directories) {
+		this.directories = directories;
+	}
+
+	public List<DirectoryStats> getLargestSubdirectories() {
+		return largestSubdirectories;
+	}
+
+	public void setLargestSubdirectories(List<DirectoryStats> largestSubdirectories) {
+		this.largestSubdirectories = largestSubdirectories;
+	}
+	
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FileEntryPage {
+
+	private List<FileEntry> entries;
+	// Cursor of the next page, i.e. the path of the last entry of this page; null on the last page
+	private String nextCursor;
+	
+	public FileEntryPage() {}
+	
+	public FileEntryPage(List<FileEntry> entries, String nextCursor) {
+		this.entries = entries;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<FileEntry> getEntries() {
+		return entries;
+	}
+
+	public void setEntries(List<FileEntry> entries) {
+		this.entries = entries;
+	}
+
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public void setNextCursor(String nextCursor) {
+		this.nextCursor = nextCursor;
+	}
+	
+}
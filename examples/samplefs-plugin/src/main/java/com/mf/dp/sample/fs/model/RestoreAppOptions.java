@@ -52,6 +52,11 @@ public class RestoreAppOptions {
 	@Schema(requiredMode = RequiredMode.REQUIRED, example = "/home/tom")	
 	private String restoreDirPath;
 
+	// Files or directories, relative to the backed-up directory, to restore instead of everything
+	@JsonProperty(value = "paths")
+	@Schema(example = "[\"docs/report.txt\", \"photos\"]")
+	private String[] paths;
+
 	public String getSessionId() {
 		return sessionId;
 	}
@@ -83,5 +88,13 @@ public class RestoreAppOptions {
 	public void setRestoreDirPath(String restoreDirPath) {
 		this.restoreDirPath = restoreDirPath;
 	}
+
+	public String[] getPaths() {
+		return paths;
+	}
+
+	public void setPaths(String[] paths) {
+		this.paths = paths;
+	}
     
 }
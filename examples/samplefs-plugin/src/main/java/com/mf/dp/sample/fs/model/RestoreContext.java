@@ -22,6 +22,9 @@ public class RestoreContext {
 	private boolean deleteDataDirAfterUse = false;
 	private String logDirPath;
 	private boolean deleteLogDirAfterUse = false;
+	private boolean shardsReceived = false;
+	// Session up to which the chain is received, which can precede the one being restored
+	private String sessionId;
 	
 	public RestoreContext() {
 		this.time = System.currentTimeMillis();
@@ -53,5 +56,17 @@ public class RestoreContext {
 	public void setDeleteLogDirAfterUse(boolean deleteLogDirAfterUse) {
 		this.deleteLogDirAfterUse = deleteLogDirAfterUse;
 	}
+	public boolean isShardsReceived() {
+		return shardsReceived;
+	}
+	public void setShardsReceived(boolean shardsReceived) {
+		this.shardsReceived = shardsReceived;
+	}
+	public String getSessionId() {
+		return sessionId;
+	}
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
 
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RestorePlan {
+
+	// Incremental backup directory -> paths (relative to it) of the files to copy from it
+	private Map<String, List<String>> filesBySource = new LinkedHashMap<>();
+	// Path (relative to the restore directory) of a file -> block deltas to apply to it, oldest first
+	private Map<String, List<String>> deltaChains = new LinkedHashMap<>();
+	// Incremental backup directory -> paths (relative to it) of the files to rebuild from its chunk manifest
+	private Map<String, List<String>> chunkedFilesBySource = new LinkedHashMap<>();
+	private long fileCount;
+	private long supersededCount;
+	
+	public Map<String, List<String>> getFilesBySource() {
+		return filesBySource;
+	}
+	public void setFilesBySource(Map<String, List<String>> filesBySource) {
+		this.filesBySource = filesBySource;
+	}
+	public Map<String, List<String>> getDeltaChains() {
+		return deltaChains;
+	}
+	public void setDeltaChains(Map<String, List<String>> deltaChains) {
+		this.deltaChains = deltaChains;
+	}
+	public Map<String, List<String>> getChunkedFilesBySource() {
+		return chunkedFilesBySource;
+	}
+	public void setChunkedFilesBySource(Map<String, List<String>> chunkedFilesBySource) {
+		this.chunkedFilesBySource = chunkedFilesBySource;
+	}
+	public long getFileCount() {
+		return fileCount;
+	}
+	public void setFileCount(long fileCount) {
+		this.fileCount = fileCount;
+	}
+	public long getSupersededCount() {
+		return supersededCount;
+	}
+	public void setSupersededCount(long supersededCount) {
+		this.supersededCount = supersededCount;
+	}
+
+}
@@ -52,6 +52,20 @@ public class SampleFSBackupRequest extends BackupRequestCore {
 		this.setAppOptions(mapper.readValue(backupRequest.getAppOptions().toString(), BackupAppOptions.class));
 	}
 
+	/**
+	 * Creates a copy of the given request with other appOptions, e.g. for the backup of one
+	 * of its directories.
+	 */
+	public SampleFSBackupRequest(SampleFSBackupRequest request, BackupAppOptions appOptions) {
+		this.setAppHost(request.getAppHost());
+		this.setConcurrency(request.getConcurrency());
+		this.setSessionId(request.getSessionId());
+		this.setBackupType(request.getBackupType());
+		this.setBarlist(request.getBarlist());
+		
+		this.setAppOptions(appOptions);
+	}
+
 	public void validate(Validator validator) throws ServiceException {
 		// Bean validation
         Errors errors = new BeanPropertyBindingResult(this, getClass().getName());
@@ -25,6 +25,14 @@ public class SampleFSObjectVerOptions extends ObjectVerOptions {
 
     private String backupType;
 	private long backupTime;
+	// Session of the backup, so that the chain up to it can be received for a synthetic full backup
+	private String sessionId;
+	private Boolean synthetic;
+	// Number of shards of a sharded full backup, and which one this object holds (see ShardManifest)
+	private Integer shards;
+	private Integer shard;
+	// Name of the catalog of the files of this backup in the state directory (see VersionCatalog)
+	private String catalog;
 	
 	public String getBackupType() {
 		return backupType;
@@ -42,4 +50,44 @@ public class SampleFSObjectVerOptions extends ObjectVerOptions {
 		this.backupTime = backupTime;
 	}
 	
+	public String getSessionId() {
+		return sessionId;
+	}
+	
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+	
+	public Boolean getSynthetic() {
+		return synthetic;
+	}
+	
+	public void setSynthetic(Boolean synthetic) {
+		this.synthetic = synthetic;
+	}
+	
+	public Integer getShards() {
+		return shards;
+	}
+	
+	public void setShards(Integer shards) {
+		this.shards = shards;
+	}
+	
+	public Integer getShard() {
+		return shard;
+	}
+	
+	public void setShard(Integer shard) {
+		this.shard = shard;
+	}
+	
+	public String getCatalog() {
+		return catalog;
+	}
+	
+	public void setCatalog(String catalog) {
+		this.catalog = catalog;
+	}
+	
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Describes a sharded full backup. It is written into the log directory of the full backup
+ * (i.e. LOG:0 of the chain), so that a restore finds the shards to receive along with it.
+ * Shard 0 is the application object itself; the others are separate objects, named after it.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ShardManifest {
+
+	public static final String FILE_NAME = "shards.json";
+
+	// Session of the full backup, in which all the shards were sent
+	private String sessionId;
+	private String appId;
+	// Application names of the shards other than shard 0, in order
+	private String[] shardAppNames;
+
+	public static String getShardAppName(String appName, int shard) {
+		return appName + "-shard" + shard;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public String getAppId() {
+		return appId;
+	}
+
+	public void setAppId(String appId) {
+		this.appId = appId;
+	}
+
+	public String[] getShardAppNames() {
+		return shardAppNames;
+	}
+
+	public void setShardAppNames(String[] shardAppNames) {
+		this.shardAppNames = shardAppNames;
+	}
+
+}
@@ -18,18 +18,28 @@ package com.mf.dp.sample.fs.rest;
 import java.util.List;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.mf.dp.sample.fs.model.CatalogSearchResult;
+import com.mf.dp.sample.fs.model.ChangeEstimate;
+import com.mf.dp.sample.fs.model.DirectoryStats;
 import com.mf.dp.sample.fs.model.FileEntry;
+import com.mf.dp.sample.fs.model.FileEntryPage;
+import com.mf.dp.sample.fs.service.CatalogSearch;
+import com.mf.dp.sample.fs.service.ChangeEstimator;
+import com.mf.dp.sample.fs.service.DirectoryStatistics;
 import com.mf.dp.sample.fs.service.FSService;
+import com.mf.dp.uic.exception.ServiceException;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import reactor.core.publisher.Flux;
 
 @Tag(name = "SampleFS")
 @SecurityRequirement(name = "Authorization")
@@ -37,9 +47,20 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 @RequestMapping(path = "/samplefs")
 public class SampleFSController {
 	
+	private static final int MAX_PAGE_SIZE = 10000;
+	
 	@Autowired
 	private FSService fsService;
 	
+	@Autowired
+	private DirectoryStatistics directoryStatistics;
+	
+	@Autowired
+	private CatalogSearch catalogSearch;
+	
+	@Autowired
+	private ChangeEstimator changeEstimator;
+	
 	@Operation(summary = "Get directory listing")
 	@GetMapping(path="/entries/{dirPath}", produces = "application/json")
 	public List<FileEntry> list(@PathVariable("dirPath") String dirPath,
@@ -47,4 +68,63 @@ public class SampleFSController {
 		return fsService.getDirectoryList(dirPath, followSymbolicLinks);
 	}
 	
+	@Operation(summary = "Get a page of the directory listing, for directories too large to be listed at once")
+	@GetMapping(path="/entries/{dirPath}", params = "limit", produces = "application/json")
+	public FileEntryPage listPage(@PathVariable("dirPath") String dirPath,
+			@RequestParam(name="followSymbolicLinks", required = false, defaultValue="true") boolean followSymbolicLinks,
+			@RequestParam(name="cursor", required = false) String cursor,
+			@RequestParam(name="limit") int limit) {
+		if(limit < 1 || limit > MAX_PAGE_SIZE)
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+		return fsService.getDirectoryPage(dirPath, followSymbolicLinks, cursor, limit);
+	}
+	
+	@Operation(summary = "Stream the directory listing as newline-delimited JSON, as it is made")
+	@GetMapping(path="/entries/{dirPath}", produces = "application/x-ndjson")
+	public Flux<FileEntry> stream(@PathVariable("dirPath") String dirPath,
+			@RequestParam(name="followSymbolicLinks", required = false, defaultValue="true") boolean followSymbolicLinks) {
+		return fsService.streamDirectoryList(dirPath, followSymbolicLinks);
+	}
+	
+	@Operation(summary = "Get the size, file count and largest subdirectories of a directory tree")
+	@GetMapping(path="/stats/{dirPath}", produces = "application/json")
+	public DirectoryStats stats(@PathVariable("dirPath") String dirPath,
+			@RequestParam(name="followSymbolicLinks", required = false, defaultValue="true") boolean followSymbolicLinks,
+			@RequestParam(name="top", required = false, defaultValue="10") int top) {
+		if(top < 0 || top > MAX_PAGE_SIZE)
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "top must be between 0 and " + MAX_PAGE_SIZE);
+		fsService.assertDirectory(dirPath, followSymbolicLinks, false);
+		return directoryStatistics.getStats(dirPath, followSymbolicLinks, top);
+	}
+	
+	@Operation(summary = "Search the catalogs of the backups of an application by glob pattern or substring of the path")
+	@GetMapping(path="/catalog/search", produces = "application/json")
+	public CatalogSearchResult searchCatalog(@RequestParam(name="appName") String appName,
+			@RequestParam(name="appId") String appId,
+			@RequestParam(name="appHost", required = false) String appHost,
+			@RequestParam(name="pattern") String pattern,
+			@RequestParam(name="limit", required = false, defaultValue="1000") int limit) {
+		if(pattern.isEmpty())
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "pattern must not be empty");
+		if(limit < 1 || limit > MAX_PAGE_SIZE)
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+		return catalogSearch.search(appName, appId, appHost, pattern, limit);
+	}
+	
+	@Operation(summary = "Estimate the number and size of the files the next incremental backup of a directory would copy")
+	@GetMapping(path="/estimate/{dirPath}", produces = "application/json")
+	public ChangeEstimate estimate(@PathVariable("dirPath") String dirPath,
+			@RequestParam(name="appName") String appName,
+			@RequestParam(name="appId") String appId,
+			@RequestParam(name="appHost", required = false) String appHost,
+			@RequestParam(name="since", required = false, defaultValue="0") long since,
+			@RequestParam(name="followSymbolicLinks", required = false, defaultValue="true") boolean followSymbolicLinks,
+			@RequestParam(name="sample", required = false, defaultValue="false") boolean sample,
+			@RequestParam(name="top", required = false, defaultValue="10") int top) {
+		if(top < 0 || top > MAX_PAGE_SIZE)
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "top must be between 0 and " + MAX_PAGE_SIZE);
+		fsService.assertDirectory(dirPath, followSymbolicLinks, false);
+		return changeEstimator.estimate(appName, appId, appHost, dirPath, since, followSymbolicLinks, sample, top);
+	}
+	
 }
@@ -0,0 +1,392 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Compresses files with LZ4, one block at a time on a pool of threads.
+ *
+ * A compressed file is a sequence of standard LZ4 frames, so it can also be decompressed
+ * with {@code lz4 -d}. It starts with a skippable frame holding a text header with the
+ * length and attributes of the original file, in the terms of the manifest of a block delta
+ * (see {@link BlockDelta}):
+ *
+ * <pre>
+ * SFZ 1
+ * length &lt;length of the file&gt;
+ * mode &lt;octal permissions&gt;
+ * owner &lt;uid&gt; &lt;gid&gt;
+ * mtime &lt;seconds.nanoseconds&gt;
+ * </pre>
+ *
+ * Each block of the file follows as a frame of its own, with its length as the content
+ * size, so the blocks are compressed independently of each other. A block that does not
+ * get smaller is stored as is. The blocks of several files are compressed concurrently:
+ * the files are read on the calling thread, block by block, and the blocks are written
+ * in order once compressed, while the next ones are read.
+ */
+final class BlockCompressor implements AutoCloseable {
+
+	static final String SUFFIX = ".sfz";
+
+	static final int MIN_BLOCK_SIZE = 64 * 1024;
+	static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+
+	private static final int FRAME_MAGIC = 0x184D2204;
+	private static final int SKIPPABLE_FRAME_MAGIC = 0x184D2A50;
+	private static final int SKIPPABLE_FRAME_MASK = 0xFFFFFFF0;
+	// Start of the header, which tells a compressed file from one merely named like it
+	private static final byte[] HEADER_START = "SFZ ".getBytes(StandardCharsets.US_ASCII);
+	// Version 01, independent blocks, content size given
+	private static final int FRAME_FLAGS = 0x68;
+	// Blocks of at most 4MB
+	private static final int FRAME_BLOCK_DESCRIPTOR = 0x70;
+	private static final int UNCOMPRESSED_BLOCK = 0x80000000;
+	// Bytes at the start of a file whose entropy tells whether to compress it
+	private static final int ENTROPY_SAMPLE_SIZE = 64 * 1024;
+
+	private static final LZ4Compressor COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+	private static final LZ4SafeDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().safeDecompressor();
+	private static final XXHash32 HASH = XXHashFactory.fastestInstance().hash32();
+
+	@FunctionalInterface
+	interface OutputOpener {
+		OutputStream open() throws IOException;
+	}
+
+	/**
+	 * A file being compressed, which is done once its output is closed.
+	 */
+	static final class Job {
+		private final OutputStream out;
+		private long length;
+		private long compressedLength;
+		private int pendingBlocks;
+		private boolean read;
+		private boolean done;
+
+		private Job(OutputStream out) {
+			this.out = out;
+		}
+
+		long getLength() {
+			return length;
+		}
+
+		long getCompressedLength() {
+			return compressedLength;
+		}
+
+		boolean isDone() {
+			return done;
+		}
+	}
+
+	// A block being compressed into a frame, and the file it belongs to
+	private static final class Block {
+		private final Job job;
+		private final Future<byte[]> frame;
+
+		Block(Job job, Future<byte[]> frame) {
+			this.job = job;
+			this.frame = frame;
+		}
+	}
+
+	private final int parallelism;
+	private final int blockSize;
+	private final ExecutorService executor;
+	private final Deque<Block> blocks = new ArrayDeque<>();
+
+	BlockCompressor(int parallelism, int blockSize) {
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+		this.executor = Executors.newFixedThreadPool(this.parallelism);
+	}
+
+	/**
+	 * Reads the given stream and queues its blocks to be compressed into the output opened
+	 * by {@code out}, after the given header fields. Returns null, without opening the output,
+	 * if the entropy of the first bytes exceeds {@code maxEntropy} bits per byte, i.e. if the
+	 * content would hardly get smaller. Otherwise, the output is closed once the last block
+	 * is written, at the latest by {@link #flush()}.
+	 *
+	 * If reading fails, the queued blocks are written, the output is closed incomplete and
+	 * the exception is thrown.
+	 */
+	Job add(InputStream in, OutputOpener out, Map<String, String> header, double maxEntropy) throws IOException {
+		byte[] block = new byte[blockSize];
+		int n = in.readNBytes(block, 0, blockSize);
+		if(entropy(block, Math.min(n, ENTROPY_SAMPLE_SIZE)) > maxEntropy)
+			return null;
+
+		Job job = new Job(out.open());
+		try {
+			byte[] headerFrame = encodeHeader(header);
+			job.out.write(headerFrame);
+			job.compressedLength = headerFrame.length;
+			while(n > 0) {
+				job.length += n;
+				queue(job, block, n);
+				if(n < blockSize)
+					break;
+				block = new byte[blockSize];
+				n = in.readNBytes(block, 0, blockSize);
+			}
+		} catch (IOException e) {
+			flush();
+			job.out.close();
+			throw e;
+		}
+		job.read = true;
+		if(job.pendingBlocks == 0)
+			finish(job);
+		return job;
+	}
+
+	/**
+	 * Writes all the queued blocks.
+	 */
+	void flush() throws IOException {
+		while(!blocks.isEmpty())
+			writeNext();
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the Shannon entropy of the given bytes in bits per byte, from 0 (a single byte
+	 * value) to 8 (random data).
+	 */
+	static double entropy(byte[] buf, int length) {
+		if(length == 0)
+			return 0;
+		int[] counts = new int[256];
+		for(int i = 0; i < length; i++)
+			counts[buf[i] & 0xff]++;
+		double entropy = 0;
+		for(int count : counts) {
+			if(count > 0) {
+				double p = (double) count / length;
+				entropy -= p * Math.log(p);
+			}
+		}
+		return entropy / Math.log(2);
+	}
+
+	/**
+	 * Writes the original content of the given compressed file to the given stream, and
+	 * returns its header fields. Returns null, without writing anything, if the content does
+	 * not start with a header, i.e. is not a compressed file but merely named like one.
+	 * Throws an IOException if the compressed file is not valid.
+	 */
+	static Map<String, String> decompress(InputStream in, OutputStream out) throws IOException {
+		byte[] start = in.readNBytes(8 + HEADER_START.length);
+		if(start.length < 8 + HEADER_START.length || (readIntLE(start, 0) & SKIPPABLE_FRAME_MASK) != SKIPPABLE_FRAME_MAGIC
+				|| !Arrays.equals(start, 8, start.length, HEADER_START, 0, HEADER_START.length))
+			return null;
+		Map<String, String> header = decodeHeader(start, readFully(in, readIntLE(start, 4) - HEADER_START.length));
+		long length = 0;
+		byte[] block = new byte[MAX_BLOCK_SIZE];
+		int magic;
+		while((magic = readIntLE(in, true)) != -1) {
+			if((magic & SKIPPABLE_FRAME_MASK) == SKIPPABLE_FRAME_MAGIC) {
+				in.skipNBytes(Integer.toUnsignedLong(readIntLE(in, false)));
+				continue;
+			}
+			if(magic != FRAME_MAGIC)
+				throw new IOException("Not an LZ4 frame");
+			length += decompressFrame(in, out, block);
+		}
+		if(header.containsKey("length") && length != Long.parseLong(header.get("length")))
+			throw new IOException("Truncated compressed file");
+		return header;
+	}
+
+	private void queue(Job job, byte[] block, int length) throws IOException {
+		job.pendingBlocks++;
+		blocks.add(new Block(job, executor.submit(() -> encodeFrame(block, length))));
+		while(blocks.size() > parallelism * 2 || !blocks.isEmpty() && blocks.peek().frame.isDone())
+			writeNext();
+	}
+
+	private void writeNext() throws IOException {
+		Block block = blocks.poll();
+		byte[] frame;
+		try {
+			frame = block.frame.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		block.job.out.write(frame);
+		block.job.compressedLength += frame.length;
+		if(--block.job.pendingBlocks == 0 && block.job.read)
+			finish(block.job);
+	}
+
+	private static void finish(Job job) throws IOException {
+		job.out.close();
+		job.done = true;
+	}
+
+	private static byte[] encodeHeader(Map<String, String> header) {
+		StringBuilder text = new StringBuilder("SFZ 1\n");
+		header.forEach((key, value) -> text.append(key).append(' ').append(value).append('\n'));
+		byte[] payload = text.toString().getBytes(StandardCharsets.US_ASCII);
+		byte[] frame = new byte[8 + payload.length];
+		writeIntLE(frame, 0, SKIPPABLE_FRAME_MAGIC);
+		writeIntLE(frame, 4, payload.length);
+		System.arraycopy(payload, 0, frame, 8, payload.length);
+		return frame;
+	}
+
+	private static Map<String, String> decodeHeader(byte[] start, byte[] rest) throws IOException {
+		String[] lines = (new String(start, 8, start.length - 8, StandardCharsets.US_ASCII)
+				+ new String(rest, StandardCharsets.US_ASCII)).split("\n");
+		if(!lines[0].equals("SFZ 1"))
+			throw new IOException("Unsupported compressed file: " + lines[0]);
+		Map<String, String> header = new LinkedHashMap<>();
+		for(int i = 1; i < lines.length; i++) {
+			int space = lines[i].indexOf(' ');
+			if(space > 0)
+				header.put(lines[i].substring(0, space), lines[i].substring(space + 1));
+		}
+		return header;
+	}
+
+	// A frame holding the given block: magic, frame descriptor, block, end mark
+	private static byte[] encodeFrame(byte[] block, int length) {
+		byte[] frame = new byte[4 + 11 + 4 + COMPRESSOR.maxCompressedLength(length) + 4];
+		writeIntLE(frame, 0, FRAME_MAGIC);
+		frame[4] = (byte) FRAME_FLAGS;
+		frame[5] = (byte) FRAME_BLOCK_DESCRIPTOR;
+		writeLongLE(frame, 6, length);
+		frame[14] = (byte) (HASH.hash(frame, 4, 10, 0) >> 8);
+		int compressed = COMPRESSOR.compress(block, 0, length, frame, 19, frame.length - 23);
+		int end;
+		if(compressed < length) {
+			writeIntLE(frame, 15, compressed);
+			end = 19 + compressed;
+		} else {
+			writeIntLE(frame, 15, length | UNCOMPRESSED_BLOCK);
+			System.arraycopy(block, 0, frame, 19, length);
+			end = 19 + length;
+		}
+		writeIntLE(frame, end, 0);
+		return Arrays.copyOf(frame, end + 4);
+	}
+
+	// Decompresses the rest of a frame after its magic, and returns the length of its content
+	private static long decompressFrame(InputStream in, OutputStream out, byte[] block) throws IOException {
+		byte[] descriptor = readFully(in, 2);
+		int flags = descriptor[0] & 0xff;
+		if((flags & 0xC0) != 0x40 || (flags & 0x01) != 0)
+			throw new IOException("Unsupported LZ4 frame");
+		byte[] rest = readFully(in, ((flags & 0x08) != 0 ? 8 : 0) + 1);
+		byte[] checked = new byte[2 + rest.length - 1];
+		System.arraycopy(descriptor, 0, checked, 0, 2);
+		System.arraycopy(rest, 0, checked, 2, rest.length - 1);
+		if((byte) (HASH.hash(checked, 0, checked.length, 0) >> 8) != rest[rest.length - 1])
+			throw new IOException("Corrupt LZ4 frame descriptor");
+		int maxBlockSize = 1 << (8 + 2 * ((descriptor[1] >> 4) & 0x07));
+		if(maxBlockSize > MAX_BLOCK_SIZE)
+			throw new IOException("Unsupported LZ4 block size");
+		
+		long length = 0;
+		for(int size; (size = readIntLE(in, false)) != 0; ) {
+			boolean uncompressed = (size & UNCOMPRESSED_BLOCK) != 0;
+			size &= ~UNCOMPRESSED_BLOCK;
+			if(size > maxBlockSize)
+				throw new IOException("Corrupt LZ4 block");
+			byte[] data = readFully(in, size);
+			if((flags & 0x10) != 0)
+				readFully(in, 4);
+			if(uncompressed) {
+				out.write(data);
+				length += size;
+			} else {
+				try {
+					int n = DECOMPRESSOR.decompress(data, 0, size, block, 0, maxBlockSize);
+					out.write(block, 0, n);
+					length += n;
+				} catch (LZ4Exception e) {
+					throw new IOException("Corrupt LZ4 block", e);
+				}
+			}
+		}
+		if((flags & 0x04) != 0)
+			readFully(in, 4);
+		return length;
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException {
+		byte[] buf = in.readNBytes(length);
+		if(buf.length < length)
+			throw new EOFException("Truncated compressed file");
+		return buf;
+	}
+
+	// Returns -1 at the end of the stream if allowed
+	private static int readIntLE(InputStream in, boolean endAllowed) throws IOException {
+		byte[] buf = in.readNBytes(4);
+		if(buf.length == 0 && endAllowed)
+			return -1;
+		if(buf.length < 4)
+			throw new EOFException("Truncated compressed file");
+		return readIntLE(buf, 0);
+	}
+
+	private static int readIntLE(byte[] buf, int offset) {
+		return (buf[offset] & 0xff) | (buf[offset + 1] & 0xff) << 8 | (buf[offset + 2] & 0xff) << 16 | (buf[offset + 3] & 0xff) << 24;
+	}
+
+	private static void writeIntLE(byte[] buf, int offset, int value) {
+		for(int i = 0; i < 4; i++)
+			buf[offset + i] = (byte) (value >>> (8 * i));
+	}
+
+	private static void writeLongLE(byte[] buf, int offset, long value) {
+		for(int i = 0; i < 8; i++)
+			buf[offset + i] = (byte) (value >>> (8 * i));
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Map;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Writes the block delta of a large file, i.e. only the blocks that changed since the
+ * previous backup, which {@code apply_delta.sh} applies to the restored file in place.
+ *
+ * The blocks are told apart by their XXH64 hashes, which are kept in a signature file
+ * per large file from one backup to the next. A delta is written from a single read of
+ * the file, together with the new signature, so the two always match. Without a valid
+ * signature, the delta holds all the blocks and has no base, i.e. it recreates the file.
+ *
+ * A delta file consists of the changed blocks, followed by a text manifest, followed by
+ * the offset of the manifest as 20 digits and a newline:
+ *
+ * <pre>
+ * SFDELTA 1
+ * base none|previous
+ * length &lt;length of the file&gt;
+ * mode &lt;octal permissions&gt;
+ * owner &lt;uid&gt; &lt;gid&gt;
+ * mtime &lt;seconds.nanoseconds&gt;
+ * run &lt;offset in the file&gt; &lt;length&gt; &lt;offset in the delta&gt;
+ * ...
+ * </pre>
+ */
+final class BlockDelta {
+
+	static final String SUFFIX = ".sfdelta";
+
+	// Start of the manifest, and length of the offset of the manifest with its newline at the end
+	static final String MAGIC = "SFDELTA ";
+	static final int TRAILER_LENGTH = 21;
+
+	private static final int SIGNATURE_VERSION = 1;
+	private static final XXHash64 HASH = XXHashFactory.fastestInstance().hash64();
+
+	private BlockDelta() {
+	}
+
+	/**
+	 * Writes the delta of the given file against the given signature, if valid for the given
+	 * block size, and writes the new signature. Returns the number of bytes of changed blocks.
+	 */
+	static long write(Path file, Path signatureFile, Path newSignatureFile, Path deltaFile, int blockSize) throws IOException {
+		Map<String, Object> attrs = Files.readAttributes(file, "unix:mode,uid,gid,lastModifiedTime");
+		long[] previous = readSignature(signatureFile, blockSize);
+		
+		StringBuilder manifest = new StringBuilder(MAGIC).append("1\n")
+				.append("base ").append(previous != null ? "previous" : "none").append('\n');
+		byte[] block = new byte[blockSize];
+		long length = 0;
+		long changed = 0;
+		long runOffset = -1;
+		long runLength = 0;
+		try(InputStream in = Files.newInputStream(file);
+			OutputStream delta = new BufferedOutputStream(Files.newOutputStream(deltaFile));
+			DataOutputStream signature = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(newSignatureFile)))) {
+			signature.writeInt(SIGNATURE_VERSION);
+			signature.writeInt(blockSize);
+			for(long index = 0; ; index++) {
+				int n = in.readNBytes(block, 0, blockSize);
+				if(n == 0)
+					break;
+				// The length is part of the hash, so that a block that only got shorter differs
+				long hash = HASH.hash(block, 0, n, n);
+				signature.writeLong(hash);
+				if(previous == null || index >= previous.length || previous[(int) index] != hash) {
+					if(runOffset + runLength != length) {
+						appendRun(manifest, runOffset, runLength, changed - runLength);
+						runOffset = length;
+						runLength = 0;
+					}
+					delta.write(block, 0, n);
+					runLength += n;
+					changed += n;
+				}
+				length += n;
+				if(n < blockSize)
+					break;
+			}
+			appendRun(manifest, runOffset, runLength, changed - runLength);
+			
+			FileTime mtime = (FileTime) attrs.get("lastModifiedTime");
+			Instant instant = mtime.toInstant();
+			manifest.append("length ").append(length).append('\n')
+					.append("mode ").append(Integer.toOctalString((Integer) attrs.get("mode") & 07777)).append('\n')
+					.append("owner ").append(attrs.get("uid")).append(' ').append(attrs.get("gid")).append('\n')
+					.append("mtime ").append(instant.getEpochSecond()).append('.')
+					.append(String.format("%09d", instant.getNano())).append('\n');
+			delta.write(manifest.toString().getBytes(StandardCharsets.US_ASCII));
+			delta.write(String.format("%020d\n", changed).getBytes(StandardCharsets.US_ASCII));
+		}
+		return changed;
+	}
+
+	/**
+	 * Tells whether the given end of a file, without its newline, is the offset of a manifest.
+	 */
+	static boolean isTrailer(String trailer) {
+		return trailer.length() == TRAILER_LENGTH - 1 && trailer.chars().allMatch(c -> c >= '0' && c <= '9');
+	}
+
+	private static void appendRun(StringBuilder manifest, long offset, long length, long deltaOffset) {
+		if(length > 0) {
+			manifest.append("run ").append(offset).append(' ').append(length).append(' ').append(deltaOffset).append('\n');
+		}
+	}
+
+	// Returns the block hashes of the signature, or null if there is none for the block size
+	private static long[] readSignature(Path signatureFile, int blockSize) throws IOException {
+		try(DataInputStream in = new DataInputStream(Files.newInputStream(signatureFile))) {
+			if(in.readInt() != SIGNATURE_VERSION || in.readInt() != blockSize)
+				return null;
+			long count = (Files.size(signatureFile) - 8) / 8;
+			long[] hashes = new long[(int) count];
+			for(int i = 0; i < hashes.length; i++)
+				hashes[i] = in.readLong();
+			return hashes;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.CatalogMatch;
+import com.mf.dp.sample.fs.model.CatalogSearchResult;
+import com.mf.dp.sample.fs.model.CatalogVersion;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.util.ExceptionUtil;
+import com.mf.dp.uic.util.JsonUtil;
+
+/**
+ * Searches the paths in the catalogs of an application object (see {@link VersionCatalog}),
+ * e.g. to find the backups that still have a file deleted since.
+ *
+ * The catalogs of a state directory are merged into a search index next to them, which
+ * holds every path found in any of them once, in the order of the catalogs, along with the
+ * set of catalogs having it as a bit mask:
+ *
+ * <pre>
+ * path TAB mask (16 hex digits)
+ * </pre>
+ *
+ * As consecutive versions mostly have the same files, the index is much smaller than the
+ * catalogs together. It covers the newest 64 catalogs at most, each one in a bit of its own.
+ * On the first search after a backup, the catalogs added since are merged into the index and
+ * the bits of those removed are cleared, in a single pass over the index.
+ *
+ * A search memory-maps the index and splits it into chunks at line boundaries, which are
+ * scanned in parallel for the pattern, so that no more than the matches are brought onto
+ * the heap. A glob pattern is first narrowed down by its longest literal part, and only the
+ * lines containing that are decoded and matched against the whole pattern.
+ */
+@Component
+public class CatalogSearch {
+
+	private static final String INDEX_FILE			= "search.idx";
+	private static final String INDEX_META_FILE		= "search.json";
+	private static final String PENDING_FILE_SUFFIX	= ".new";
+	private static final int MAX_VERSIONS			= 64;
+	private static final int MASK_LENGTH			= 16;
+	private static final long MAX_CHUNK_SIZE		= 256L * 1024 * 1024;
+	// Longer than any line, whose path is at most PATH_MAX bytes
+	private static final int MAX_LINE_LENGTH		= 64 * 1024;
+
+	private static Logger logger = LoggerFactory.getLogger(CatalogSearch.class);
+
+	// Number of chunks of an index scanned in parallel; 0 means the number of processors
+	@Value("${samplefs.catalog.search.parallelism:0}")
+	private int parallelism;
+
+	@Autowired
+	private FileStateIndex fileStateIndex;
+
+	@Autowired
+	private VersionCatalog versionCatalog;
+
+	private final Map<Path, Object> locks = new ConcurrentHashMap<>();
+
+	static class IndexMeta {
+		private List<IndexedCatalog> catalogs = new ArrayList<>();
+
+		public List<IndexedCatalog> getCatalogs() {
+			return catalogs;
+		}
+
+		public void setCatalogs(List<IndexedCatalog> catalogs) {
+			this.catalogs = catalogs;
+		}
+	}
+
+	static class IndexedCatalog {
+		private String fileName;
+		// To tell whether the catalog was rewritten since
+		private long size;
+		private long modTime;
+		// Bit of the catalog in the masks of the index
+		private int slot;
+		private String sessionId;
+		private long backupTime;
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public void setFileName(String fileName) {
+			this.fileName = fileName;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public void setSize(long size) {
+			this.size = size;
+		}
+
+		public long getModTime() {
+			return modTime;
+		}
+
+		public void setModTime(long modTime) {
+			this.modTime = modTime;
+		}
+
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
+
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		public void setSessionId(String sessionId) {
+			this.sessionId = sessionId;
+		}
+
+		public long getBackupTime() {
+			return backupTime;
+		}
+
+		public void setBackupTime(long backupTime) {
+			this.backupTime = backupTime;
+		}
+	}
+
+	private static class Query {
+		private final byte[] literal;
+		private final PathMatcher matcher;
+		// A glob without a slash matches the file name, like a pattern of find -name
+		private final boolean nameOnly;
+
+		Query(String pattern) {
+			if(StringUtils.containsAny(pattern, "*?[{")) {
+				this.literal = longestLiteral(pattern).getBytes(StandardCharsets.UTF_8);
+				this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+				this.nameOnly = !pattern.contains("/");
+			} else {
+				this.literal = pattern.getBytes(StandardCharsets.UTF_8);
+				this.matcher = null;
+				this.nameOnly = false;
+			}
+		}
+
+		boolean matches(String path) {
+			if(matcher == null)
+				return true;
+			Path file = Paths.get(path);
+			return matcher.matches(nameOnly ? file.getFileName() : file);
+		}
+
+		private static String longestLiteral(String glob) {
+			String longest = "";
+			for(String part : glob.split("[*?\\[\\]{},\\\\]")) {
+				if(part.length() > longest.length())
+					longest = part;
+			}
+			return longest;
+		}
+	}
+
+	private static class Hit {
+		private final String path;
+		private final long mask;
+
+		Hit(String path, long mask) {
+			this.path = path;
+			this.mask = mask;
+		}
+	}
+
+	// A sorted stream of paths with the bits of the catalogs having them
+	private interface MergeSource extends AutoCloseable {
+		String path();
+		long bits();
+		boolean next() throws IOException;
+		@Override
+		void close() throws IOException;
+	}
+
+	/**
+	 * Returns the paths matching the given glob pattern, or containing the given substring,
+	 * in the catalogs of the given application object, on the given host or on all of them.
+	 */
+	public CatalogSearchResult search(String appName, String appId, String appHost, String pattern, int limit) throws ServiceException {
+		Query query;
+		try {
+			query = new Query(pattern);
+		} catch (IllegalArgumentException e) {
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "Invalid pattern: " + e.getMessage());
+		}
+
+		List<CatalogVersion> versions = new ArrayList<>();
+		List<CatalogMatch> matches = new ArrayList<>();
+		boolean truncated = false;
+		try {
+			for(Path stateDir : fileStateIndex.findStateDirectories(appName, appId)) {
+				String host = stateDir.getFileName().toString();
+				if(appHost != null && !host.equals(FileStateIndex.toFileName(appHost)))
+					continue;
+				if(matches.size() >= limit) {
+					truncated = true;
+					break;
+				}
+				Path indexFile = stateDir.resolve(VersionCatalog.CATALOG_DIR).resolve(INDEX_FILE);
+				IndexMeta meta;
+				List<Hit> hits;
+				// The index is opened under the lock, so that an update cannot replace it in between
+				synchronized(locks.computeIfAbsent(stateDir, dir -> new Object())) {
+					meta = update(stateDir, indexFile);
+					if(meta == null)
+						continue;
+					try(FileChannel index = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+						hits = scan(index, query, limit - matches.size() + 1);
+					}
+				}
+
+				List<IndexedCatalog> catalogs = new ArrayList<>(meta.getCatalogs());
+				catalogs.sort(Comparator.comparingLong(IndexedCatalog::getBackupTime).reversed());
+				catalogs.forEach(catalog -> versions.add(new CatalogVersion(host, catalog.getSessionId(), catalog.getBackupTime())));
+				for(Hit hit : hits) {
+					if(matches.size() >= limit) {
+						truncated = true;
+						break;
+					}
+					List<String> sessionIds = new ArrayList<>();
+					for(IndexedCatalog catalog : catalogs) {
+						if((hit.mask & (1L << catalog.getSlot())) != 0)
+							sessionIds.add(catalog.getSessionId());
+					}
+					matches.add(new CatalogMatch(host, hit.path, sessionIds));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ExceptionUtil.convertToServiceException(e);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		logger.info("Found {} paths matching '{}' in {} catalogs of {}/{}", matches.size(), pattern, versions.size(), appName, appId);
+		return new CatalogSearchResult(versions, matches, truncated);
+	}
+
+	/**
+	 * Brings the search index of the given state directory up to date with its catalogs,
+	 * and returns its description, or null if there is no catalog.
+	 */
+	private IndexMeta update(Path stateDir, Path indexFile) throws IOException {
+		List<Path> catalogFiles = versionCatalog.listCatalogFiles(stateDir);
+		if(catalogFiles.size() > MAX_VERSIONS)
+			catalogFiles = catalogFiles.subList(0, MAX_VERSIONS);
+		Path metaFile = indexFile.resolveSibling(INDEX_META_FILE);
+		IndexMeta meta = Files.exists(indexFile) && Files.exists(metaFile)
+				? JsonUtil.deserializeFromJson(new String(Files.readAllBytes(metaFile), StandardCharsets.UTF_8), IndexMeta.class)
+				: new IndexMeta();
+
+		// The catalogs still indexed keep their slots, unless rewritten since
+		Map<String, IndexedCatalog> indexed = new HashMap<>();
+		meta.getCatalogs().forEach(catalog -> indexed.put(catalog.getFileName(), catalog));
+		IndexMeta updated = new IndexMeta();
+		List<Path> added = new ArrayList<>();
+		boolean rewritten = false;
+		for(Path catalogFile : catalogFiles) {
+			IndexedCatalog catalog = indexed.get(catalogFile.getFileName().toString());
+			if(catalog == null)
+				added.add(catalogFile);
+			else if(catalog.getSize() != Files.size(catalogFile) || catalog.getModTime() != Files.getLastModifiedTime(catalogFile).toMillis())
+				rewritten = true;
+			else
+				updated.getCatalogs().add(catalog);
+		}
+		if(rewritten) {
+			updated.getCatalogs().clear();
+			added = catalogFiles;
+		}
+		if(added.isEmpty() && updated.getCatalogs().size() == meta.getCatalogs().size())
+			return updated.getCatalogs().isEmpty() ? null : meta;
+
+		long keptBits = 0;
+		for(IndexedCatalog catalog : updated.getCatalogs())
+			keptBits |= 1L << catalog.getSlot();
+		long start = System.currentTimeMillis();
+		Path pendingIndexFile = indexFile.resolveSibling(INDEX_FILE + PENDING_FILE_SUFFIX);
+		List<MergeSource> sources = new ArrayList<>();
+		long paths = 0;
+		try {
+			if(keptBits != 0)
+				sources.add(indexSource(indexFile, keptBits));
+			for(Path catalogFile : added) {
+				VersionCatalog.CatalogReader reader;
+				try {
+					reader = new VersionCatalog.CatalogReader(catalogFile);
+				} catch (IOException e) {
+					logger.warn("Skipping the unreadable catalog {}", catalogFile, e);
+					continue;
+				}
+				int slot = Long.numberOfTrailingZeros(~keptBits);
+				keptBits |= 1L << slot;
+				sources.add(catalogSource(reader, 1L << slot));
+				IndexedCatalog catalog = new IndexedCatalog();
+				catalog.setFileName(catalogFile.getFileName().toString());
+				catalog.setSize(Files.size(catalogFile));
+				catalog.setModTime(Files.getLastModifiedTime(catalogFile).toMillis());
+				catalog.setSlot(slot);
+				catalog.setSessionId(reader.getSessionId());
+				catalog.setBackupTime(reader.getBackupTime());
+				updated.getCatalogs().add(catalog);
+			}
+			try(Writer index = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(pendingIndexFile), StandardCharsets.UTF_8), 256 * 1024)) {
+				paths = merge(sources, index);
+			}
+			Files.move(pendingIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Path pendingMetaFile = metaFile.resolveSibling(INDEX_META_FILE + PENDING_FILE_SUFFIX);
+			Files.write(pendingMetaFile, JsonUtil.serializeToJson(updated).getBytes(StandardCharsets.UTF_8));
+			Files.move(pendingMetaFile, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			for(MergeSource source : sources)
+				source.close();
+			Files.deleteIfExists(pendingIndexFile);
+		}
+		logger.info("Updated the search index {} with {} catalogs in {} ms; it has {} paths in {} catalogs", indexFile,
+				added.size(), System.currentTimeMillis() - start, paths, updated.getCatalogs().size());
+		return updated.getCatalogs().isEmpty() ? null : updated;
+	}
+
+	/**
+	 * Merges the given sources, which are all sorted the same way, into index lines, dropping
+	 * the paths that none of the catalogs has any more. Returns the number of lines.
+	 */
+	private static long merge(List<MergeSource> sources, Writer index) throws IOException {
+		PriorityQueue<MergeSource> heads = new PriorityQueue<>(Math.max(1, sources.size()),
+				(source1, source2) -> VersionCatalog.compare(source1.path(), source2.path()));
+		for(MergeSource source : sources) {
+			if(source.next())
+				heads.add(source);
+		}
+		long lines = 0;
+		while(!heads.isEmpty()) {
+			MergeSource first = heads.poll();
+			String path = first.path();
+			long mask = first.bits();
+			List<MergeSource> advanced = new ArrayList<>();
+			advanced.add(first);
+			while(!heads.isEmpty() && heads.peek().path().equals(path)) {
+				MergeSource source = heads.poll();
+				mask |= source.bits();
+				advanced.add(source);
+			}
+			for(MergeSource source : advanced) {
+				if(source.next())
+					heads.add(source);
+			}
+			if(mask == 0)
+				continue;
+			index.write(path);
+			index.write('\t');
+			index.write(StringUtils.leftPad(Long.toHexString(mask), MASK_LENGTH, '0'));
+			index.write('\n');
+			lines++;
+		}
+		return lines;
+	}
+
+	private static MergeSource indexSource(Path indexFile, long keptBits) throws IOException {
+		BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8);
+		return new MergeSource() {
+			private String path;
+			private long bits;
+
+			@Override
+			public String path() {
+				return path;
+			}
+
+			@Override
+			public long bits() {
+				return bits;
+			}
+
+			@Override
+			public boolean next() throws IOException {
+				String line = reader.readLine();
+				if(line == null)
+					return false;
+				int tab = line.length() - MASK_LENGTH - 1;
+				path = line.substring(0, tab);
+				bits = Long.parseUnsignedLong(line.substring(tab + 1), 16) & keptBits;
+				return true;
+			}
+
+			@Override
+			public void close() throws IOException {
+				reader.close();
+			}
+		};
+	}
+
+	private static MergeSource catalogSource(VersionCatalog.CatalogReader reader, long bit) {
+		return new MergeSource() {
+			@Override
+			public String path() {
+				return reader.current()[0];
+			}
+
+			@Override
+			public long bits() {
+				return bit;
+			}
+
+			@Override
+			public boolean next() throws IOException {
+				return reader.next() != null;
+			}
+
+			@Override
+			public void close() throws IOException {
+				reader.close();
+			}
+		};
+	}
+
+	/**
+	 * Returns the first matches of the query in the index, in its order, at most {@code limit}
+	 * of them.
+	 */
+	private List<Hit> scan(FileChannel index, Query query, int limit) throws IOException, InterruptedException, ExecutionException {
+		long size = index.size();
+		int workers = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MAX_LINE_LENGTH, (size + workers - 1) / workers));
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<List<Hit>>> chunks = new ArrayList<>();
+			for(long start = 0; start < size; start += chunkSize) {
+				long from = start;
+				long to = Math.min(size, start + chunkSize);
+				chunks.add(executor.submit(() -> scanChunk(index, size, from, to, query, limit)));
+			}
+			List<Hit> hits = new ArrayList<>();
+			for(Future<List<Hit>> chunk : chunks) {
+				for(Hit hit : chunk.get()) {
+					if(hits.size() >= limit)
+						return hits;
+					hits.add(hit);
+				}
+			}
+			return hits;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Scans the lines of the index starting within the given range.
+	 */
+	private static List<Hit> scanChunk(FileChannel index, long size, long start, long end, Query query, int limit) throws IOException {
+		// Mapped from the byte before the range, to tell whether a line starts at its beginning,
+		// and beyond its end, to complete the last line
+		long mapStart = Math.max(0, start - 1);
+		MappedByteBuffer buf = index.map(FileChannel.MapMode.READ_ONLY, mapStart, Math.min(size, end + MAX_LINE_LENGTH) - mapStart);
+		int limitPos = buf.limit();
+		int endPos = (int) (end - mapStart);
+		int pos = (int) (start - mapStart);
+		if(start > 0) {
+			while(pos < limitPos && buf.get(pos - 1) != '\n')
+				pos++;
+		}
+
+		List<Hit> hits = new ArrayList<>();
+		byte[] literal = query.literal;
+		while(pos < endPos && hits.size() < limit) {
+			int match = indexOf(buf, literal, pos, limitPos);
+			if(match < 0)
+				break;
+			int lineStart = match;
+			while(lineStart > pos && buf.get(lineStart - 1) != '\n')
+				lineStart--;
+			if(lineStart >= endPos)
+				break;
+			int lineEnd = match;
+			while(lineEnd < limitPos && buf.get(lineEnd) != '\n')
+				lineEnd++;
+			int pathEnd = lineEnd - MASK_LENGTH - 1;
+			if(match + literal.length <= pathEnd) {
+				byte[] path = new byte[pathEnd - lineStart];
+				buf.get(lineStart, path);
+				String pathString = new String(path, StandardCharsets.UTF_8);
+				if(query.matches(pathString)) {
+					byte[] mask = new byte[MASK_LENGTH];
+					buf.get(pathEnd + 1, mask);
+					hits.add(new Hit(pathString, Long.parseUnsignedLong(new String(mask, StandardCharsets.US_ASCII), 16)));
+				}
+			}
+			pos = lineEnd + 1;
+		}
+		return hits;
+	}
+
+	private static int indexOf(MappedByteBuffer buf, byte[] literal, int from, int to) {
+		if(literal.length == 0)
+			return from < to ? from : -1;
+		byte first = literal[0];
+		int last = to - literal.length;
+		for(int i = from; i <= last; i++) {
+			if(buf.get(i) != first)
+				continue;
+			int j = 1;
+			while(j < literal.length && buf.get(i + j) == literal[j])
+				j++;
+			if(j == literal.length)
+				return i;
+		}
+		return -1;
+	}
+}
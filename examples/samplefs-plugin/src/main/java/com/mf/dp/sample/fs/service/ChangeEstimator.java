@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.ChangeEstimate;
+import com.mf.dp.uic.command.BaseCommand;
+import com.mf.dp.uic.command.OSCommand;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.util.ExceptionUtil;
+
+/**
+ * Estimates the size of the next incremental backup of a directory, i.e. runs the change
+ * detection of {@link FSService#copyFilesModifiedSince} against the file state index of
+ * the last backup without copying anything.
+ *
+ * A full estimate scans the tree with the configured scan engine and looks up every file in
+ * the index, like the backup does, so it takes about as long as the scan of a backup. The
+ * changes are detected by the file states only; with content-based change detection, the
+ * files whose state changed but whose content did not are counted as well, so the estimate
+ * is an upper bound. The same goes for large files backed up as block deltas.
+ *
+ * A sampled estimate walks random paths from the top of the tree instead (Knuth's estimator):
+ * each directory on a path stands for all its siblings, so its changes are weighted by the
+ * product of the numbers of subdirectories along the way. The immediate subdirectories are
+ * sampled in turn, at least once each, and then up to the time limit, so that each of them
+ * gets an estimate of its own. The directories listed are kept for the following paths, so
+ * the upper levels of the tree are only read once. The estimate is unbiased, but its error
+ * depends on how evenly the changes are spread over the tree; the standard error observed
+ * between the paths is returned along with it.
+ */
+@Component
+public class ChangeEstimator {
+
+	private static final String FIND = "/usr/bin/find";
+	// Deepest directory a sampled path goes down to, against loops of symbolic links
+	private static final int MAX_DEPTH = 256;
+
+	private static Logger logger = LoggerFactory.getLogger(ChangeEstimator.class);
+
+	@Autowired
+	private FSService fsService;
+
+	@Autowired
+	private FileStateIndex fileStateIndex;
+
+	// Seconds a sampled estimate keeps walking paths, once each immediate subdirectory has been sampled
+	@Value("${samplefs.estimate.sample.time-limit:5}")
+	private long sampleTimeLimit;
+
+	// Number of paths a sampled estimate walks at most, once each immediate subdirectory has been sampled
+	@Value("${samplefs.estimate.sample.max-probes:10000}")
+	private int maxProbes;
+
+	// Number of directories whose sample is kept for the following paths at most
+	@Value("${samplefs.estimate.sample.max-directories:100000}")
+	private int maxSampledDirectories;
+
+	// Whether an incremental backup reports a sampled estimate of its size before copying
+	@Value("${samplefs.estimate.on-backup:false}")
+	private boolean onBackup;
+
+	public boolean isEnabledOnBackup() {
+		return onBackup;
+	}
+
+	/**
+	 * Returns the estimate for the given directory of the given application object, against
+	 * the file state index of its last backup on the given host. If no host is given, the
+	 * application object must have been backed up on a single host. Without an index, the
+	 * files modified after {@code since} (in milliseconds) count as changed.
+	 */
+	public ChangeEstimate estimate(String appName, String appId, String appHost, String dirPath, long since,
+			boolean followSymbolicLinks, boolean sample, int top) throws ServiceException {
+		List<Path> stateDirs;
+		try {
+			stateDirs = fileStateIndex.findStateDirectories(appName, appId);
+		} catch (IOException e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		if(appHost != null) {
+			stateDirs = stateDirs.stream()
+					.filter(stateDir -> stateDir.getFileName().toString().equals(FileStateIndex.toFileName(appHost)))
+					.collect(Collectors.toList());
+		} else if(stateDirs.size() > 1) {
+			throw new ServiceException(HttpStatus.BAD_REQUEST, "appHost must be given, since the application object was backed up on several hosts");
+		}
+		Path indexFile = stateDirs.isEmpty() ? null : fileStateIndex.getIndexFile(stateDirs.get(0), dirPath);
+		return estimate(dirPath, since, followSymbolicLinks, indexFile, sample, top);
+	}
+
+	/**
+	 * Returns the estimate for the given directory against the given file state index, with
+	 * the {@code top} immediate subdirectories with the most changed bytes.
+	 */
+	public ChangeEstimate estimate(String dirPath, long since, boolean followSymbolicLinks, Path indexFile,
+			boolean sample, int top) throws ServiceException {
+		long start = System.currentTimeMillis();
+		try {
+			ChangeEstimate estimate = null;
+			if(sample)
+				estimate = sample(dirPath, since, followSymbolicLinks, indexFile, top);
+			if(estimate == null)
+				estimate = scan(dirPath, since, followSymbolicLinks, indexFile, top);
+			logger.info("Estimated {} changed files of {} bytes in {} in {} ms{}", estimate.getFiles(), estimate.getBytes(),
+					dirPath, System.currentTimeMillis() - start, estimate.isSampled() ? " from " + estimate.getProbes() + " sampled paths" : "");
+			return estimate;
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+
+	private ChangeEstimate scan(String dirPath, long since, boolean followSymbolicLinks, Path indexFile, int top) throws Exception {
+		Breakdown breakdown = new Breakdown(dirPath);
+		long scanned;
+		try(ScanSource scan = fsService.startScan(dirPath, followSymbolicLinks)) {
+			LineCountingInputStream lines = new LineCountingInputStream(scan.getOutput());
+			fileStateIndex.selectChangedFiles(lines, null, indexFile, since, null, breakdown);
+			scan.waitFor();
+			scanned = lines.count;
+		}
+
+		ChangeEstimate estimate = new ChangeEstimate(dirPath, breakdown.files, breakdown.bytes, false);
+		estimate.setScannedFiles(scanned);
+		estimate.setLargestSubdirectories(breakdown.subdirs.entrySet().stream()
+				.map(subdir -> new ChangeEstimate(Paths.get(dirPath, subdir.getKey()).toString(), subdir.getValue()[0], subdir.getValue()[1], false))
+				.sorted(Comparator.comparingLong(ChangeEstimate::getBytes).reversed())
+				.limit(top)
+				.collect(Collectors.toList()));
+		return estimate;
+	}
+
+	// Returns null if the top of the tree cannot be read by dpuic, which is scanned then
+	private ChangeEstimate sample(String dirPath, long since, boolean followSymbolicLinks, Path indexFile, int top) throws Exception {
+		LinkOption[] linkOptions = followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(sampleTimeLimit);
+		try(MappedFileStateIndex previous = MappedFileStateIndex.open(indexFile)) {
+			Sampler sampler = new Sampler(previous, since, linkOptions, followSymbolicLinks);
+			Path root = Paths.get(dirPath);
+			DirectorySample rootSample;
+			try {
+				rootSample = sampler.list(root);
+			} catch (AccessDeniedException e) {
+				logger.info("No access to {}; scanning it instead of sampling", root);
+				return null;
+			}
+
+			List<Stratum> strata = rootSample.subdirs.stream().map(Stratum::new).collect(Collectors.toList());
+			int probes = 0;
+			while(!strata.isEmpty() && (probes < strata.size() || probes < maxProbes && System.nanoTime() < deadline)) {
+				Stratum stratum = strata.get(probes++ % strata.size());
+				stratum.add(sampler.probe(stratum.dir));
+			}
+
+			// The files directly in the top directory are known exactly
+			double files = rootSample.changedFiles;
+			double bytes = rootSample.changedBytes;
+			double scanned = rootSample.files;
+			double variance = 0;
+			for(Stratum stratum : strata) {
+				files += stratum.files.mean();
+				bytes += stratum.bytes.mean();
+				scanned += stratum.scanned.mean();
+				variance += stratum.bytes.varianceOfMean();
+			}
+			logger.debug("Sampled {} paths through {} directories of {}", probes, sampler.samples.size(), dirPath);
+
+			ChangeEstimate estimate = new ChangeEstimate(dirPath, Math.round(files), Math.round(bytes), true);
+			estimate.setScannedFiles(Math.round(scanned));
+			estimate.setProbes(probes);
+			estimate.setRelativeError(bytes > 0 ? Math.sqrt(variance) / bytes : 0.0);
+			estimate.setLargestSubdirectories(strata.stream()
+					.map(stratum -> new ChangeEstimate(stratum.dir.toString(), Math.round(stratum.files.mean()), Math.round(stratum.bytes.mean()), true))
+					.sorted(Comparator.comparingLong(ChangeEstimate::getBytes).reversed())
+					.limit(top)
+					.collect(Collectors.toList()));
+			return estimate;
+		}
+	}
+
+	// Counts the selected files, in total and by immediate subdirectory of the top directory
+	private static class Breakdown implements FileStateIndex.ChangedFileSink {
+		private final byte[] prefix;
+		private final Map<String, long[]> subdirs = new HashMap<>();
+		private long files;
+		private long bytes;
+
+		Breakdown(String dirPath) {
+			String root = Paths.get(dirPath).toString();
+			this.prefix = (root.endsWith("/") ? root : root + "/").getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void add(byte[] buf, int lineStart, int pathEnd, int lineEnd, long size) {
+			files++;
+			bytes += size;
+			int start = lineStart + prefix.length;
+			if(start >= pathEnd)
+				return;
+			for(int i = 0; i < prefix.length; i++) {
+				if(buf[lineStart + i] != prefix[i])
+					return;
+			}
+			for(int i = start; i < pathEnd; i++) {
+				if(buf[i] == '/') {
+					long[] subdir = subdirs.computeIfAbsent(new String(buf, start, i - start, StandardCharsets.UTF_8), name -> new long[2]);
+					subdir[0]++;
+					subdir[1] += size;
+					return;
+				}
+			}
+		}
+	}
+
+	private static class LineCountingInputStream extends FilterInputStream {
+		private long count;
+
+		LineCountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b == '\n')
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			for(int i = off; i < off + n; i++) {
+				if(b[i] == '\n')
+					count++;
+			}
+			return n;
+		}
+	}
+
+	// Changed and total files directly in a directory, and its subdirectories
+	private static class DirectorySample {
+		private final long changedFiles;
+		private final long changedBytes;
+		private final long files;
+		private final List<Path> subdirs;
+
+		DirectorySample(long changedFiles, long changedBytes, long files, List<Path> subdirs) {
+			this.changedFiles = changedFiles;
+			this.changedBytes = changedBytes;
+			this.files = files;
+			this.subdirs = subdirs;
+		}
+	}
+
+	// Running mean and variance (Welford) of the estimates of a subtree
+	private static class Moments {
+		private int count;
+		private double mean;
+		private double m2;
+
+		void add(double value) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+		}
+
+		double mean() {
+			return mean;
+		}
+
+		// Unknown, i.e. 0, with a single estimate
+		double varianceOfMean() {
+			return count > 1 ? m2 / (count - 1) / count : 0;
+		}
+	}
+
+	// Immediate subdirectory of the top directory, with the estimates of its subtree
+	private static class Stratum {
+		private final Path dir;
+		private final Moments files = new Moments();
+		private final Moments bytes = new Moments();
+		private final Moments scanned = new Moments();
+
+		Stratum(Path dir) {
+			this.dir = dir;
+		}
+
+		void add(double[] estimate) {
+			files.add(estimate[0]);
+			bytes.add(estimate[1]);
+			scanned.add(estimate[2]);
+		}
+	}
+
+	private class Sampler {
+		private final MappedFileStateIndex previous;
+		private final long since;
+		private final LinkOption[] linkOptions;
+		private final boolean followSymbolicLinks;
+		private final Map<Path, DirectorySample> samples = new HashMap<>();
+
+		Sampler(MappedFileStateIndex previous, long since, LinkOption[] linkOptions, boolean followSymbolicLinks) {
+			this.previous = previous;
+			this.since = since;
+			this.linkOptions = linkOptions;
+			this.followSymbolicLinks = followSymbolicLinks;
+		}
+
+		// Walks a random path down from the given directory, and returns the estimated changed
+		// files, changed bytes and files of its subtree
+		double[] probe(Path dir) throws Exception {
+			double[] estimate = new double[3];
+			double weight = 1;
+			for(int depth = 0; dir != null && depth < MAX_DEPTH; depth++) {
+				DirectorySample sample = samples.get(dir);
+				if(sample == null) {
+					sample = sampleDirectory(dir);
+					if(samples.size() < maxSampledDirectories)
+						samples.put(dir, sample);
+				}
+				estimate[0] += weight * sample.changedFiles;
+				estimate[1] += weight * sample.changedBytes;
+				estimate[2] += weight * sample.files;
+				if(sample.subdirs.isEmpty())
+					break;
+				weight *= sample.subdirs.size();
+				dir = sample.subdirs.get(ThreadLocalRandom.current().nextInt(sample.subdirs.size()));
+			}
+			return estimate;
+		}
+
+		private DirectorySample sampleDirectory(Path dir) throws Exception {
+			try {
+				return list(dir);
+			} catch (AccessDeniedException e) {
+				return listWithFind(dir);
+			} catch (FileSystemException e) {
+				// Vanished in the meantime
+				return new DirectorySample(0, 0, 0, new ArrayList<>());
+			}
+		}
+
+		DirectorySample list(Path dir) throws IOException {
+			ByteArrayOutputStream lines = new ByteArrayOutputStream();
+			List<Path> subdirs = new ArrayList<>();
+			long files = 0;
+			try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+				for(Path entry : entries) {
+					Map<String, Object> attrs;
+					try {
+						attrs = Files.readAttributes(entry, ParallelFileWalker.ATTRIBUTES, linkOptions);
+					} catch (FileSystemException e) {
+						// Vanished in the meantime, or a dangling symbolic link
+						continue;
+					}
+					if(Boolean.TRUE.equals(attrs.get("isDirectory"))) {
+						subdirs.add(entry);
+					} else if(Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+						lines.write(ParallelFileWalker.fileStateLine(entry, attrs).getBytes(StandardCharsets.UTF_8));
+						files++;
+					}
+				}
+			}
+			return select(lines.toByteArray(), files, subdirs);
+		}
+
+		// Lists a directory that dpuic cannot read with find, i.e. with sudo
+		private DirectorySample listWithFind(Path dir) throws Exception {
+			logger.debug("No access to {}, falling back to the OS command", dir);
+			StringBuilder command = new StringBuilder(FIND);
+			if(followSymbolicLinks)
+				command.append(" -L");
+			command.append(' ')
+			.append(Shell.quote(dir.toString()))
+			.append(" -mindepth 1 -maxdepth 1 \\( -type f -printf \"f%p\\t%s\\t%T@\\t%C@\\t%i\\n\" \\) -o \\( -type d -printf \"d%p\\n\" \\)");
+			StringBuilder lines = new StringBuilder();
+			List<Path> subdirs = new ArrayList<>();
+			long files = 0;
+			for(String line : new OSCommand().exec(BaseCommand.withShell(command.toString())).split("\n")) {
+				if(line.startsWith("f")) {
+					lines.append(line, 1, line.length()).append('\n');
+					files++;
+				} else if(line.startsWith("d")) {
+					subdirs.add(Paths.get(line.substring(1)));
+				}
+			}
+			return select(lines.toString().getBytes(StandardCharsets.UTF_8), files, subdirs);
+		}
+
+		private DirectorySample select(byte[] lines, long files, List<Path> subdirs) throws IOException {
+			long[] changed = new long[2];
+			fileStateIndex.selectChangedFiles(new ByteArrayInputStream(lines), null, previous, since, null,
+					(buf, lineStart, pathEnd, lineEnd, size) -> {
+						changed[0]++;
+						changed[1] += size;
+					});
+			return new DirectorySample(changed[0], changed[1], files, subdirs);
+		}
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Optional background tracker of the changes made to the configured directory trees,
+ * so that an incremental backup can pick the changed files without scanning the tree.
+ *
+ * Every directory of a tracked tree is watched with a {@link WatchService} (i.e. inotify
+ * on Linux). The paths reported as created, modified or deleted are collected, and
+ * appended once a second to the journal of the tree, a text file under the index
+ * directory with one path (relative to the tree) per line, each batch preceded by
+ * {@code @<time in milliseconds>} of when it was written.
+ *
+ * The journal is only complete from the moment the whole tree is watched, and as long
+ * as no event was lost (i.e. the watch service overflowed, or a directory could not be
+ * watched). So it only stands in for a scan if the tracker was watching the tree without
+ * losing events since the time of the previous backup; otherwise, the tree must be
+ * scanned. In particular, every restart of the plugin starts a new journal.
+ */
+@Component
+public class ChangeTracker {
+
+	private static final long FLUSH_INTERVAL_MILLIS = 1000;
+	private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+	private static final String JOURNAL_FILE_SUFFIX = ".jnl";
+	private static final String BATCH_PREFIX = "@";
+
+	private static Logger logger = LoggerFactory.getLogger(ChangeTracker.class);
+
+	@Value("${samplefs.tracker.enabled:false}")
+	private boolean enabled;
+
+	// Directories to track, as given by the dirPath of the backup specifications
+	@Value("${samplefs.tracker.dir-paths:}")
+	private String dirPaths;
+
+	@Value("${samplefs.fsservice.index.dir}")
+	private String indexDir;
+
+	@Value("${samplefs.backup.follow-symbolic-links:true}")
+	private boolean followSymbolicLinks;
+
+	private WatchService watchService;
+	private Thread thread;
+	// Time from which all the events queued by the watch service were handled
+	private volatile long drainedAt = Long.MIN_VALUE;
+	private final Map<String, TrackedTree> trees = new HashMap<>();
+	// Accessed by the tracker thread only
+	private final Map<WatchKey, WatchedDirectory> watchedDirs = new HashMap<>();
+
+	private static class TrackedTree {
+		private final Path root;
+		private final Path journalFile;
+		// Time from which the whole tree is watched
+		private volatile long trackingSince = Long.MAX_VALUE;
+		// Time at which events were last lost
+		private volatile long lostAt = Long.MIN_VALUE;
+		// Paths (relative to the root) changed since the last flush, guarded by the tree
+		private final Set<String> changed = new LinkedHashSet<>();
+
+		TrackedTree(Path root, Path journalFile) {
+			this.root = root;
+			this.journalFile = journalFile;
+		}
+	}
+
+	private static class WatchedDirectory {
+		private final TrackedTree tree;
+		private final Path dir;
+
+		WatchedDirectory(TrackedTree tree, Path dir) {
+			this.tree = tree;
+			this.dir = dir;
+		}
+	}
+
+	@PostConstruct
+	public void start() throws IOException {
+		if(!enabled || StringUtils.isBlank(dirPaths))
+			return;
+
+		Path journalDir = Paths.get(indexDir, "journal");
+		Files.createDirectories(journalDir);
+		for(String dirPath : dirPaths.split(",")) {
+			dirPath = StringUtils.removeEnd(dirPath.trim(), "/");
+			if(dirPath.isEmpty())
+				continue;
+			Path journalFile = journalDir.resolve(DigestUtils.sha1Hex(dirPath) + JOURNAL_FILE_SUFFIX);
+			// The changes made while the plugin was not running are unknown
+			Files.deleteIfExists(journalFile);
+			trees.put(dirPath, new TrackedTree(Paths.get(dirPath), journalFile));
+		}
+
+		watchService = Paths.get(indexDir).getFileSystem().newWatchService();
+		thread = new Thread(this::track, "samplefs-change-tracker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@PreDestroy
+	public void stop() throws IOException, InterruptedException {
+		if(thread == null)
+			return;
+		thread.interrupt();
+		thread.join(TimeUnit.SECONDS.toMillis(10));
+		watchService.close();
+	}
+
+	/**
+	 * Returns the paths in the given tree that changed since the given time, or null if
+	 * the tree is not tracked or may have changed without the tracker knowing it.
+	 */
+	public Set<String> getChangedPaths(String dirPath, long since) {
+		TrackedTree tree = trees.get(StringUtils.removeEnd(dirPath, "/"));
+		if(tree == null)
+			return null;
+		if(tree.trackingSince > since || tree.lostAt >= since || !awaitDrained()) {
+			logger.info("The change journal of {} does not cover the time since {}", dirPath, since);
+			return null;
+		}
+
+		synchronized(tree) {
+			flush(tree);
+			if(tree.lostAt >= since)
+				return null;
+			Set<String> changedPaths = readJournal(tree, since);
+			if(changedPaths != null)
+				logger.info("The change journal of {} has {} paths changed since {}", dirPath, changedPaths.size(), since);
+			return changedPaths;
+		}
+	}
+
+	/**
+	 * Returns all the paths in the journal of the given tree, or null if the tree is not
+	 * tracked. Unlike {@link #getChangedPaths(String, long)}, the paths are only hints,
+	 * since the journal may be incomplete.
+	 */
+	public Set<String> getRecordedPaths(String dirPath) {
+		TrackedTree tree = trees.get(StringUtils.removeEnd(dirPath, "/"));
+		if(tree == null)
+			return null;
+		synchronized(tree) {
+			flush(tree);
+			return readJournal(tree, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Returns the directories being tracked.
+	 */
+	public Set<String> getDirPaths() {
+		return Collections.unmodifiableSet(trees.keySet());
+	}
+
+	// Must be called with the tree locked
+	private Set<String> readJournal(TrackedTree tree, long since) {
+		Set<String> changedPaths = new LinkedHashSet<>();
+		if(!Files.exists(tree.journalFile))
+			return changedPaths;
+		try(BufferedReader journal = Files.newBufferedReader(tree.journalFile, StandardCharsets.UTF_8)) {
+			boolean include = false;
+			for(String line = journal.readLine(); line != null; line = journal.readLine()) {
+				if(line.startsWith(BATCH_PREFIX))
+					// Every change of a batch was made before the time of the batch
+					include = Long.parseLong(line.substring(BATCH_PREFIX.length())) >= since;
+				else if(include)
+					changedPaths.add(tree.root.resolve(line).toString());
+			}
+		} catch (IOException | NumberFormatException e) {
+			logger.warn("Could not read the change journal {}", tree.journalFile, e);
+			return null;
+		}
+		return changedPaths;
+	}
+
+	/**
+	 * Drops the batches of the journal of the given tree that were written before the
+	 * given time, i.e. are no longer needed once a backup started at that time completed.
+	 */
+	public void compact(String dirPath, long before) {
+		TrackedTree tree = trees.get(StringUtils.removeEnd(dirPath, "/"));
+		if(tree == null)
+			return;
+		synchronized(tree) {
+			if(!Files.exists(tree.journalFile))
+				return;
+			Path compacted = tree.journalFile.resolveSibling(tree.journalFile.getFileName() + ".tmp");
+			try(BufferedReader journal = Files.newBufferedReader(tree.journalFile, StandardCharsets.UTF_8);
+				BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+				boolean keep = false;
+				for(String line = journal.readLine(); line != null; line = journal.readLine()) {
+					if(line.startsWith(BATCH_PREFIX))
+						keep = Long.parseLong(line.substring(BATCH_PREFIX.length())) >= before;
+					if(keep) {
+						out.write(line);
+						out.write('\n');
+					}
+				}
+			} catch (IOException | NumberFormatException e) {
+				logger.warn("Could not compact the change journal {}", tree.journalFile, e);
+				return;
+			}
+			try {
+				Files.move(compacted, tree.journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				logger.warn("Could not compact the change journal {}", tree.journalFile, e);
+			}
+		}
+	}
+
+	// Waits until the events made so far were handled, so that they are in the journal
+	private boolean awaitDrained() {
+		long now = System.currentTimeMillis();
+		try {
+			while(drainedAt < now) {
+				if(System.currentTimeMillis() - now > DRAIN_TIMEOUT_MILLIS || !thread.isAlive())
+					return false;
+				Thread.sleep(50);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void track() {
+		for(TrackedTree tree : trees.values()) {
+			logger.info("Registering the watches of {}", tree.root);
+			register(tree, tree.root);
+			tree.trackingSince = System.currentTimeMillis();
+			logger.info("Tracking the changes of {}", tree.root);
+		}
+
+		long nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				long polledAt = System.currentTimeMillis();
+				WatchKey key = watchService.poll();
+				if(key == null) {
+					drainedAt = polledAt;
+					key = watchService.poll(Math.max(1, nextFlush - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+				}
+				if(key != null)
+					handle(key);
+				if(System.currentTimeMillis() >= nextFlush) {
+					for(TrackedTree tree : trees.values()) {
+						synchronized(tree) {
+							flush(tree);
+						}
+					}
+					nextFlush = System.currentTimeMillis() + FLUSH_INTERVAL_MILLIS;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("The change tracker stopped", e);
+			for(TrackedTree tree : trees.values())
+				tree.trackingSince = Long.MAX_VALUE;
+		}
+	}
+
+	private void handle(WatchKey key) {
+		WatchedDirectory watched = watchedDirs.get(key);
+		if(watched == null) {
+			key.cancel();
+			return;
+		}
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				lost(watched.tree, "the watch service overflowed");
+				continue;
+			}
+			Path path = watched.dir.resolve((Path) event.context());
+			String relativePath = watched.tree.root.relativize(path).toString();
+			if(relativePath.indexOf('\n') >= 0) {
+				lost(watched.tree, "a path contains a newline");
+				continue;
+			}
+			synchronized(watched.tree) {
+				watched.tree.changed.add(relativePath);
+			}
+			// The changes within a new directory are reported once it is watched as well.
+			// Those made before are found as the directory is scanned on backup.
+			if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, linkOptions()))
+				register(watched.tree, path);
+		}
+		if(!key.reset())
+			watchedDirs.remove(key);
+	}
+
+	private void register(TrackedTree tree, Path dir) {
+		Set<FileVisitOption> options = followSymbolicLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : Collections.emptySet();
+		try {
+			Files.walkFileTree(dir, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+					WatchKey key = d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+					watchedDirs.put(key, new WatchedDirectory(tree, d));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					if(!(e instanceof FileSystemLoopException) && !(e instanceof NoSuchFileException))
+						lost(tree, "cannot watch " + file + ": " + e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (NoSuchFileException e) {
+			// Deleted in the meantime, which is reported as well
+		} catch (IOException e) {
+			// E.g. the limit of inotify watches (fs.inotify.max_user_watches) was reached
+			lost(tree, "cannot watch " + dir + ": " + e);
+		}
+	}
+
+	private void lost(TrackedTree tree, String reason) {
+		if(tree.lostAt < tree.trackingSince || System.currentTimeMillis() - tree.lostAt > TimeUnit.MINUTES.toMillis(1))
+			logger.warn("Lost track of the changes of {}, because {}", tree.root, reason);
+		tree.lostAt = System.currentTimeMillis();
+	}
+
+	// Must be called with the tree locked
+	private void flush(TrackedTree tree) {
+		if(tree.changed.isEmpty())
+			return;
+		try(BufferedWriter journal = Files.newBufferedWriter(tree.journalFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			journal.write(BATCH_PREFIX + System.currentTimeMillis());
+			journal.write('\n');
+			for(String relativePath : tree.changed) {
+				journal.write(relativePath);
+				journal.write('\n');
+			}
+		} catch (IOException e) {
+			lost(tree, "cannot write the journal: " + e);
+		}
+		tree.changed.clear();
+	}
+
+	private LinkOption[] linkOptions() {
+		return followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk hash table of the chunks stored by the versions of a backup chain, from the
+ * SHA-256 hash of a chunk to the version (i.e. the time of the backup) holding it.
+ *
+ * The table uses open addressing with linear probing over fixed-size slots, which are read
+ * and written in place, so only a Bloom filter of about one byte per slot is held in memory.
+ * The filter answers most lookups of new chunks without reading the file. The chunks added
+ * by a backup are collected in memory, up to a bound, and inserted in the order of their
+ * slots, so that the writes move through the file in one direction. Once the table is 70%
+ * full, it is rewritten with twice the slots into a temp file, which then replaces it.
+ *
+ * An entry only counts if its version was committed, i.e. the backup that stored the chunk
+ * was transferred, or if it belongs to the version being written. So the entries of a failed
+ * backup, even if partly written, are ignored, and replaced when their chunks are stored again.
+ * The Bloom filter is written back on close; if the plugin stops before, it is rebuilt from
+ * the slots on the next open.
+ *
+ * <pre>
+ * header: magic "SFCI", format, slot count, entry count, clean flag
+ * Bloom filter: one byte per slot
+ * slots: SHA-256 hash (32 bytes), version (8 bytes, 0 if the slot is empty)
+ * </pre>
+ */
+final class ChunkIndex implements AutoCloseable {
+
+	static final int HASH_LENGTH = 32;
+
+	private static final int MAGIC = 0x53464349;
+	private static final int FORMAT = 1;
+	private static final int HEADER_LENGTH = 32;
+	private static final int SLOT_LENGTH = HASH_LENGTH + 8;
+	private static final long MIN_SLOTS = 1 << 16;
+	// About 43GB, i.e. 750 million chunks; the chunks beyond are stored again by each backup
+	private static final long MAX_SLOTS = 1 << 30;
+	private static final double MAX_LOAD = 0.7;
+	private static final int BLOOM_HASHES = 5;
+	// Slots read at once when probing, as the entry is mostly found within a few of them
+	private static final int PROBE_SLOTS = 8;
+	// Slots read at once when scanning the whole table
+	private static final int SCAN_SLOTS = 4096;
+
+	private static Logger logger = LoggerFactory.getLogger(ChunkIndex.class);
+
+	private final Path file;
+	private final Set<Long> committedVersions;
+	private final long version;
+	private final int maxPendingEntries;
+	// Hashes added by this version that are not in the table yet
+	private final Set<ByteBuffer> pending = new HashSet<>();
+	private FileChannel channel;
+	private long slots;
+	private long entries;
+	private byte[] bloom;
+
+	private ChunkIndex(Path file, Set<Long> committedVersions, long version, int maxPendingEntries) {
+		this.file = file;
+		this.committedVersions = committedVersions;
+		this.version = version;
+		this.maxPendingEntries = Math.max(1, maxPendingEntries);
+	}
+
+	/**
+	 * Opens the given table, or creates it, for the given version to add its chunks to it.
+	 * The entries of versions other than this one and the committed ones are ignored. At most
+	 * {@code maxPendingEntries} new chunks are held in memory before they are written.
+	 */
+	static ChunkIndex open(Path file, Set<Long> committedVersions, long version, int maxPendingEntries) throws IOException {
+		ChunkIndex index = new ChunkIndex(file, committedVersions, version, maxPendingEntries);
+		index.open();
+		return index;
+	}
+
+	private void open() throws IOException {
+		if(Files.exists(file)) {
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			ByteBuffer header = readFully(0, HEADER_LENGTH);
+			if(header.getInt() == MAGIC && header.getInt() == FORMAT) {
+				slots = header.getLong();
+				entries = header.getLong();
+				boolean clean = header.getInt() == 1;
+				bloom = new byte[(int) slots];
+				if(clean) {
+					channel.read(ByteBuffer.wrap(bloom), HEADER_LENGTH);
+				} else {
+					logger.info("Rebuilding the Bloom filter of {}, which was not closed", file);
+					rebuildBloom();
+				}
+				writeHeader(false);
+				return;
+			}
+			// Holding no entry is always safe, it merely makes the chunks be stored again
+			logger.warn("{} is not a chunk index; starting a new one", file);
+			channel.close();
+		}
+		create(file, MIN_SLOTS);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		slots = MIN_SLOTS;
+		entries = 0;
+		bloom = new byte[(int) slots];
+		writeHeader(false);
+	}
+
+	/**
+	 * Returns the version holding the chunk with the given hash, or -1 if there is none.
+	 */
+	long lookup(byte[] hash) throws IOException {
+		if(pending.contains(ByteBuffer.wrap(hash)))
+			return version;
+		if(!mightContain(hash))
+			return -1;
+		long slot = slotOf(hash, slots);
+		byte[] slotHash = new byte[HASH_LENGTH];
+		while(true) {
+			int run = (int) Math.min(PROBE_SLOTS, slots - slot);
+			ByteBuffer buffer = readFully(slotPosition(slot), run * SLOT_LENGTH);
+			for(int i = 0; i < run; i++) {
+				buffer.get(slotHash);
+				long slotVersion = buffer.getLong();
+				if(slotVersion == 0)
+					return -1;
+				if(Arrays.equals(slotHash, hash))
+					return isValid(slotVersion) ? slotVersion : -1;
+			}
+			slot = (slot + run) & (slots - 1);
+		}
+	}
+
+	/**
+	 * Records that this version stores the chunk with the given hash, which {@link #lookup(byte[])}
+	 * did not find.
+	 */
+	void add(byte[] hash) throws IOException {
+		pending.add(ByteBuffer.wrap(hash.clone()));
+		addToBloom(bloom, hash);
+		if(pending.size() >= maxPendingEntries)
+			flush();
+	}
+
+	long getEntries() {
+		return entries + pending.size();
+	}
+
+	/**
+	 * Writes the pending entries into the table.
+	 */
+	void flush() throws IOException {
+		if(pending.isEmpty())
+			return;
+		if(entries + pending.size() > slots * MAX_LOAD) {
+			long newSlots = slots;
+			while(entries + pending.size() > newSlots * MAX_LOAD && newSlots < MAX_SLOTS)
+				newSlots *= 2;
+			if(newSlots > slots)
+				grow(newSlots);
+			if(entries + pending.size() > slots * MAX_LOAD) {
+				logger.warn("The chunk index {} is full; leaving {} chunks out of it", file, pending.size());
+				pending.clear();
+				return;
+			}
+		}
+		List<byte[]> hashes = new ArrayList<>(pending.size());
+		for(ByteBuffer hash : pending)
+			hashes.add(hash.array());
+		hashes.sort((a, b) -> Long.compareUnsigned(slotOf(a, slots), slotOf(b, slots)));
+		for(byte[] hash : hashes) {
+			if(insert(channel, slots, hash, version))
+				entries++;
+		}
+		pending.clear();
+		writeHeader(false);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			channel.write(ByteBuffer.wrap(bloom), HEADER_LENGTH);
+			channel.force(false);
+			writeHeader(true);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private boolean isValid(long slotVersion) {
+		return slotVersion == version || committedVersions.contains(slotVersion);
+	}
+
+	// Inserts the given entry, or updates the version of an existing entry of the same chunk
+	// that does not count. Returns true if a slot was taken.
+	private boolean insert(FileChannel target, long targetSlots, byte[] hash, long entryVersion) throws IOException {
+		long slot = slotOf(hash, targetSlots);
+		byte[] slotHash = new byte[HASH_LENGTH];
+		while(true) {
+			int run = (int) Math.min(PROBE_SLOTS, targetSlots - slot);
+			ByteBuffer buffer = readFully(target, slotPosition(targetSlots, slot), run * SLOT_LENGTH);
+			for(int i = 0; i < run; i++, slot++) {
+				buffer.get(slotHash);
+				long slotVersion = buffer.getLong();
+				if(slotVersion == 0) {
+					ByteBuffer entry = ByteBuffer.allocate(SLOT_LENGTH).put(hash).putLong(entryVersion);
+					entry.flip();
+					writeFully(target, entry, slotPosition(targetSlots, slot));
+					return true;
+				}
+				if(Arrays.equals(slotHash, hash)) {
+					if(!isValid(slotVersion)) {
+						ByteBuffer entry = ByteBuffer.allocate(8).putLong(entryVersion);
+						entry.flip();
+						writeFully(target, entry, slotPosition(targetSlots, slot) + HASH_LENGTH);
+					}
+					return false;
+				}
+			}
+			slot &= targetSlots - 1;
+		}
+	}
+
+	// Rewrites the valid entries into a new table with the given number of slots
+	private void grow(long newSlots) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+		create(tempFile, newSlots);
+		byte[] newBloom = new byte[(int) newSlots];
+		long newEntries;
+		try(FileChannel target = FileChannel.open(tempFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long[] inserted = new long[1];
+			scan((hash, entryVersion) -> {
+				if(isValid(entryVersion) && insert(target, newSlots, hash, entryVersion)) {
+					addToBloom(newBloom, hash);
+					inserted[0]++;
+				}
+			});
+			target.force(false);
+			newEntries = inserted[0];
+		}
+		// The pending entries are inserted into the new table afterwards
+		for(ByteBuffer hash : pending)
+			addToBloom(newBloom, hash.array());
+		channel.close();
+		Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		logger.info("Grew the chunk index {} from {} to {} slots, keeping {} of {} entries", file, slots, newSlots, newEntries, entries);
+		slots = newSlots;
+		entries = newEntries;
+		bloom = newBloom;
+	}
+
+	private void rebuildBloom() throws IOException {
+		scan((hash, entryVersion) -> addToBloom(bloom, hash));
+	}
+
+	@FunctionalInterface
+	private interface EntryVisitor {
+		void visit(byte[] hash, long version) throws IOException;
+	}
+
+	// Passes all the entries of the table to the given visitor, reading a run of slots at a time
+	private void scan(EntryVisitor visitor) throws IOException {
+		for(long slot = 0; slot < slots; slot += SCAN_SLOTS) {
+			int run = (int) Math.min(SCAN_SLOTS, slots - slot);
+			ByteBuffer buffer = readFully(slotPosition(slot), run * SLOT_LENGTH);
+			for(int i = 0; i < run; i++) {
+				byte[] hash = new byte[HASH_LENGTH];
+				buffer.get(hash);
+				long slotVersion = buffer.getLong();
+				if(slotVersion != 0)
+					visitor.visit(hash, slotVersion);
+			}
+		}
+	}
+
+	private static void create(Path file, long slots) throws IOException {
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE)) {
+			// A sparse file of zeros, i.e. of empty slots
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT).putLong(slots).putLong(0).putInt(0);
+			header.position(HEADER_LENGTH);
+			header.flip();
+			writeFully(channel, header, 0);
+			writeFully(channel, ByteBuffer.allocate(1), slotPosition(slots, slots) - 1);
+		}
+	}
+
+	private void writeHeader(boolean clean) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT).putLong(slots).putLong(entries).putInt(clean ? 1 : 0);
+		header.position(HEADER_LENGTH);
+		header.flip();
+		writeFully(channel, header, 0);
+	}
+
+	private boolean mightContain(byte[] hash) {
+		long h1 = ByteBuffer.wrap(hash, 8, 8).getLong();
+		long h2 = ByteBuffer.wrap(hash, 16, 8).getLong() | 1;
+		long bits = bloom.length * 8L;
+		for(int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+			if((bloom[(int) (bit >>> 3)] & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static void addToBloom(byte[] bloom, byte[] hash) {
+		long h1 = ByteBuffer.wrap(hash, 8, 8).getLong();
+		long h2 = ByteBuffer.wrap(hash, 16, 8).getLong() | 1;
+		long bits = bloom.length * 8L;
+		for(int i = 0; i < BLOOM_HASHES; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+			bloom[(int) (bit >>> 3)] |= 1 << (bit & 7);
+		}
+	}
+
+	// The hashes are uniformly distributed already, so their first bytes pick the slot
+	private static long slotOf(byte[] hash, long slots) {
+		return ByteBuffer.wrap(hash, 0, 8).getLong() & (slots - 1);
+	}
+
+	private long slotPosition(long slot) {
+		return slotPosition(slots, slot);
+	}
+
+	private static long slotPosition(long slots, long slot) {
+		return HEADER_LENGTH + slots + slot * SLOT_LENGTH;
+	}
+
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		return readFully(channel, position, length);
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of the chunk index");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining())
+			channel.write(buffer, position + buffer.position());
+	}
+}
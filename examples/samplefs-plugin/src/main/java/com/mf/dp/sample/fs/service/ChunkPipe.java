@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pipe that passes chunks of bytes from any number of producer threads
+ * to a single consumer reading it as an {@link InputStream}.
+ *
+ * Unlike {@link java.io.PipedInputStream}, it does not tie the pipe to the thread
+ * that wrote last, so it can be fed from the workers of a thread pool. Each chunk
+ * is written atomically, so producers writing whole lines never interleave them.
+ */
+final class ChunkPipe {
+
+	private static final byte[] EOF = new byte[0];
+
+	private final BlockingQueue<byte[]> queue;
+	private volatile boolean closedByReader;
+	private volatile Exception failure;
+	private int producers;
+
+	private final InputStream source = new InputStream() {
+		private byte[] chunk;
+		private int pos;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0)
+				return 0;
+			while(chunk == null || pos == chunk.length) {
+				if(chunk == EOF)
+					return -1;
+				try {
+					chunk = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				pos = 0;
+				if(chunk == EOF && failure != null)
+					throw new IOException("Scan failed", failure);
+			}
+			int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			closeReader();
+		}
+	};
+
+	/**
+	 * Creates a pipe to be fed by the given number of producers. The reader sees the
+	 * end of the stream once every producer has called {@link #producerDone()}.
+	 */
+	ChunkPipe(int capacity, int producers) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.producers = producers;
+	}
+
+	InputStream getInputStream() {
+		return source;
+	}
+
+	/**
+	 * Stops the producers, e.g. when the reader gave up.
+	 */
+	void closeReader() {
+		closedByReader = true;
+		queue.clear();
+	}
+
+	/**
+	 * Passes a copy of the given bytes to the reader, blocking while the pipe is full.
+	 */
+	void write(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return;
+		put(Arrays.copyOfRange(b, off, off + len));
+	}
+
+	synchronized void producerDone() throws IOException {
+		if(--producers == 0)
+			put(EOF);
+	}
+
+	/**
+	 * Ends the stream with the given failure, which the reader gets as an IOException.
+	 */
+	void fail(Exception e) {
+		failure = e;
+		queue.clear();
+		queue.offer(EOF);
+	}
+
+	private void put(byte[] chunk) throws IOException {
+		try {
+			while(!queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+				if(closedByReader || failure != null)
+					throw new IOException("Pipe closed");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Cuts a stream into chunks at positions defined by the content rather than by the offset,
+ * so that an insertion into a file only changes the chunks around it, and identical runs of
+ * bytes are cut the same way wherever they are.
+ *
+ * A position is a cut point if the top bits of a gear hash over the preceding 64 bytes are all
+ * zero. Like FastCDC, more bits must be zero before the average size and fewer after it, which
+ * keeps the sizes close to the average, and no chunk is shorter than a quarter or longer than
+ * four times the average, except for the last one. The gear table is derived from a fixed seed,
+ * since the cut points must not change between versions of the plugin.
+ */
+final class ContentDefinedChunker {
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// SplitMix64
+		long state = 0x5346444544555031L;
+		for(int i = 0; i < GEAR.length; i++) {
+			long z = state += 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	private final InputStream in;
+	private final int minSize;
+	private final int averageSize;
+	private final int maxSize;
+	private final long strictMask;
+	private final long looseMask;
+	private final byte[] buffer;
+	private int start;
+	private int end;
+	private boolean eof;
+
+	/**
+	 * Creates a chunker of the given stream with the given average chunk size, which is rounded
+	 * down to a power of 2.
+	 */
+	ContentDefinedChunker(InputStream in, int averageSize) {
+		int bits = 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 256));
+		this.in = in;
+		this.averageSize = 1 << bits;
+		this.minSize = this.averageSize / 4;
+		this.maxSize = this.averageSize * 4;
+		this.strictMask = -1L << (64 - (bits + 2));
+		this.looseMask = -1L << (64 - (bits - 2));
+		this.buffer = new byte[maxSize * 2];
+	}
+
+	/**
+	 * Returns the next chunk, or null at the end of the stream.
+	 */
+	byte[] next() throws IOException {
+		fill();
+		int available = end - start;
+		if(available == 0)
+			return null;
+		int length = available <= minSize ? available : cut(Math.min(available, maxSize));
+		byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+		start += length;
+		return chunk;
+	}
+
+	// Returns the length of the chunk at the start of the buffer, of at most the given length
+	private int cut(int limit) {
+		long hash = 0;
+		int i = minSize;
+		int normal = Math.min(averageSize, limit);
+		for(; i < normal; i++) {
+			hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+			if((hash & strictMask) == 0)
+				return i + 1;
+		}
+		for(; i < limit; i++) {
+			hash = (hash << 1) + GEAR[buffer[start + i] & 0xff];
+			if((hash & looseMask) == 0)
+				return i + 1;
+		}
+		return limit;
+	}
+
+	// Reads until the buffer holds a chunk of the maximum size, or the stream ends
+	private void fill() throws IOException {
+		if(end - start >= maxSize || eof)
+			return;
+		if(start > 0) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		while(end < buffer.length && !eof) {
+			int n = in.read(buffer, end, buffer.length - end);
+			if(n < 0)
+				eof = true;
+			else
+				end += n;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.jpountz.xxhash.StreamingXXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Hashes the content of files with XXH64 on a pool of threads.
+ *
+ * The hashes are formatted as the content hash field of the file state index (see
+ * {@link FileStateIndex}), e.g. {@code xxh64:0123456789abcdef}. A file that cannot be
+ * read (e.g. no permission for <em>dpuic</em>, or removed in the meantime) has no hash,
+ * and hence always counts as changed.
+ */
+final class ContentHasher implements AutoCloseable {
+
+	static final String PREFIX = "xxh64:";
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final XXHashFactory FACTORY = XXHashFactory.fastestInstance();
+
+	private static Logger logger = LoggerFactory.getLogger(ContentHasher.class);
+
+	private final int parallelism;
+	private final ExecutorService executor;
+	private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	ContentHasher(int parallelism) {
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.executor = Executors.newFixedThreadPool(this.parallelism);
+	}
+
+	int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Returns the future hash of the given file, or null if it cannot be read.
+	 */
+	Future<String> hash(String filePath) {
+		return executor.submit(() -> hashFile(filePath));
+	}
+
+	private String hashFile(String filePath) {
+		byte[] buffer = buffers.get();
+		try(InputStream in = Files.newInputStream(Paths.get(filePath));
+			StreamingXXHash64 hash = FACTORY.newStreamingHash64(0)) {
+			int n;
+			while((n = in.read(buffer)) > 0)
+				hash.update(buffer, 0, n);
+			return PREFIX + String.format("%016x", hash.getValue());
+		} catch (IOException e) {
+			logger.debug("Could not hash {}", filePath, e);
+			return null;
+		}
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+}
@@ -34,7 +34,10 @@ import com.mf.dp.sample.fs.model.BackupContext;
 import com.mf.dp.sample.fs.model.RestoreContext;
 import com.mf.dp.sample.fs.model.SampleFSBackupRequest;
 import com.mf.dp.sample.fs.model.SampleFSLastBackupDetail;
+import com.mf.dp.sample.fs.model.SampleFSObjectOptions;
+import com.mf.dp.sample.fs.model.SampleFSObjectVerOptions;
 import com.mf.dp.sample.fs.model.SampleFSRestoreRequest;
+import com.mf.dp.sample.fs.model.ShardManifest;
 
 @Component
 public class DPService {
@@ -43,18 +46,47 @@ public class DPService {
 	private UDMService udmService;
 
 	public void sendFullBackup(IProgressStatus status, SampleFSBackupRequest request, BackupContext context) throws ServiceException {
+		sendFullBackup(status, request, request.getAppOptions().getAppName(), context.getDataDirPath(), context.getLogDirPath(),
+				context.getObjectOptions(), context.getObjectVerOptions());
+	}
+
+	/**
+	 * Sends a shard other than shard 0 of a sharded full backup, as a separate object named
+	 * after the application object (see {@link ShardManifest}).
+	 */
+	public void sendFullBackupShard(IProgressStatus status, SampleFSBackupRequest request, BackupContext context,
+			int shard, String dataDirPath, String logDirPath) throws ServiceException {
+		String appName = ShardManifest.getShardAppName(request.getAppOptions().getAppName(), shard);
+		SampleFSObjectOptions objectOptions = new SampleFSObjectOptions();
+		objectOptions.setAppName(appName);
+		objectOptions.setAppId(request.getAppOptions().getAppId());
+		objectOptions.setDirPaths(context.getObjectOptions().getDirPaths());
+		
+		SampleFSObjectVerOptions objectVerOptions = new SampleFSObjectVerOptions();
+		objectVerOptions.setSourceClient(context.getObjectVerOptions().getSourceClient());
+		objectVerOptions.setBackupType(context.getObjectVerOptions().getBackupType());
+		objectVerOptions.setBackupTime(context.getObjectVerOptions().getBackupTime());
+		objectVerOptions.setSessionId(context.getObjectVerOptions().getSessionId());
+		objectVerOptions.setShards(context.getObjectVerOptions().getShards());
+		objectVerOptions.setShard(shard);
+		
+		sendFullBackup(status, request, appName, dataDirPath, logDirPath, objectOptions, objectVerOptions);
+	}
+
+	private void sendFullBackup(IProgressStatus status, SampleFSBackupRequest request, String appName, String dataDirPath, String logDirPath,
+			SampleFSObjectOptions objectOptions, SampleFSObjectVerOptions objectVerOptions) throws ServiceException {
 		try {
 			SendRequestBuilder requestBuilder = SendRequest.builder()
 					.backupType(request.getBackupType())
-					.dataDir(context.getDataDirPath())
-					.logDir(context.getLogDirPath())
+					.dataDir(dataDirPath)
+					.logDir(logDirPath)
 					.barlist(request.getBarlist())
 					.appType(Constant.PLUGIN_NAME)
-					.appName(request.getAppOptions().getAppName())
+					.appName(appName)
 					.appId(request.getAppOptions().getAppId())
 					.sourceClient(request.getAppHost())
-					.base64EncodedObjectOptions(Base64Util.base64Encode(JsonUtil.serializeToJson(context.getObjectOptions())))
-					.base64EncodedObjectVerOptions(Base64Util.base64Encode(JsonUtil.serializeToJson(context.getObjectVerOptions())));
+					.base64EncodedObjectOptions(Base64Util.base64Encode(JsonUtil.serializeToJson(objectOptions)))
+					.base64EncodedObjectVerOptions(Base64Util.base64Encode(JsonUtil.serializeToJson(objectVerOptions)));
 			if(request.getConcurrency() != null)
 				requestBuilder.concurrency(request.getConcurrency());
 	
@@ -94,13 +126,55 @@ public class DPService {
 				.appName(request.getAppOptions().getAppName())
 				.appId(request.getAppOptions().getAppId())
 				.sourceClient(request.getAppHost())
-				// DO NOT use request.getSessionId() as it will be INCORRECT due to extra backslashes added by poco library during serialization
-				.sessionId(request.getAppOptions().getSessionId())
+				// DO NOT use request.getSessionId() as it will be INCORRECT due to extra backslashes added by poco library during serialization.
+				// The chain may end earlier though, if the restored files are all held by an older backup.
+				.sessionId(context.getSessionId() != null ? context.getSessionId() : request.getAppOptions().getSessionId())
 				.build();
 		
 		udmService.receiveBackupFromDP(status, mockedRequest);
 	}
 
+	/**
+	 * Receives the chain of backups up to the given session, e.g. to consolidate it into a
+	 * synthetic full backup. The full backup goes to the data directory, and the incremental
+	 * backups to the log directory.
+	 */
+	public void receiveBackupFromDP(IProgressStatus status, SampleFSBackupRequest request, String sessionId,
+			String dataDirPath, String logDirPath) throws ServiceException {
+		ReceiveRequest receiveRequest = ReceiveRequest.builder()
+				.dataDir(dataDirPath)
+				.logDir(logDirPath)
+				.barlist(request.getBarlist())
+				.appType(Constant.PLUGIN_NAME)
+				.appName(request.getAppOptions().getAppName())
+				.appId(request.getAppOptions().getAppId())
+				.sourceClient(request.getAppHost())
+				.sessionId(sessionId)
+				.build();
+		
+		udmService.receiveBackupFromDP(status, receiveRequest);
+	}
+
+	/**
+	 * Receives the given shard, other than shard 0, of a sharded full backup into the data
+	 * directory (see {@link ShardManifest}).
+	 */
+	public void receiveShardFromDP(IProgressStatus status, String barlist, String appHost, ShardManifest manifest, int shard,
+			String dataDirPath, String logDirPath) throws ServiceException {
+		ReceiveRequest receiveRequest = ReceiveRequest.builder()
+				.dataDir(dataDirPath)
+				.logDir(logDirPath)
+				.barlist(barlist)
+				.appType(Constant.PLUGIN_NAME)
+				.appName(manifest.getShardAppNames()[shard - 1])
+				.appId(manifest.getAppId())
+				.sourceClient(appHost)
+				.sessionId(manifest.getSessionId())
+				.build();
+		
+		udmService.receiveBackupFromDP(status, receiveRequest);
+	}
+
 	public SampleFSLastBackupDetail getLastBackupDetail(SampleFSBackupRequest request) throws ServiceException {
 		try {
 			LastBackupDetail detail = udmService.getLastBackupDetail(
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.mf.dp.sample.fs.model.FileEntry;
+
+/**
+ * Reads the entries of a directory listed by a {@code find -printf '%y %p\0'} command as
+ * they are emitted, so that a listing is never held as a whole. The entries are separated
+ * by NUL bytes, since a file name may contain a newline.
+ */
+final class DirectoryEntryReader implements AutoCloseable {
+
+	private final StreamingCommand find;
+	private final InputStream in;
+	private byte[] buf = new byte[64 * 1024];
+	private int limit;
+	// Start of the next entry
+	private int pos;
+	private boolean eof;
+
+	DirectoryEntryReader(StreamingCommand find) {
+		this.find = find;
+		this.in = find.getStdout();
+	}
+
+	/**
+	 * Returns the next entry, or null at the end of the listing. Throws ServiceException if
+	 * the command failed.
+	 */
+	FileEntry next() throws IOException, InterruptedException {
+		while(true) {
+			int end = indexOfNul(pos);
+			while(end < 0) {
+				if(eof) {
+					find.waitFor();
+					return null;
+				}
+				fill();
+				end = indexOfNul(pos);
+			}
+			int start = pos;
+			pos = end + 1;
+			if(end - start > 2 && buf[start + 1] == ' ')
+				return new FileEntry(new String(buf, start + 2, end - start - 2, StandardCharsets.UTF_8), buf[start] == 'd');
+		}
+	}
+
+	@Override
+	public void close() {
+		find.close();
+	}
+
+	private int indexOfNul(int from) {
+		for(int i = from; i < limit; i++) {
+			if(buf[i] == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	// Moves the partial entry to the front of the buffer and reads more data
+	private void fill() throws IOException {
+		int partial = limit - pos;
+		if(pos == 0 && partial == buf.length) {
+			byte[] grown = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, grown, 0, partial);
+			buf = grown;
+		} else if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, partial);
+		}
+		limit = partial;
+		pos = 0;
+		int n = in.read(buf, limit, buf.length - limit);
+		if(n < 0)
+			eof = true;
+		else
+			limit += n;
+	}
+}
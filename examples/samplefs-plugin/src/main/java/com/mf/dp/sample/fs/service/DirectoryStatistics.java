@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.DirectoryStats;
+import com.mf.dp.uic.command.BaseCommand;
+import com.mf.dp.uic.command.OSCommand;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.util.ExceptionUtil;
+
+/**
+ * Computes the size, file count and largest subdirectories of directory trees, e.g. to
+ * choose the directories to back up.
+ *
+ * The tree is walked within the JVM by a {@link ForkJoinPool}, one task per directory, like
+ * {@link ParallelFileWalker}, and subtrees that <em>dpuic</em> cannot read are counted with
+ * {@code find} through {@code OSCommand}. The subtotal of every subtree walked is cached, so
+ * that a later query on the tree, on one of its subtrees or on a parent directory reuses it
+ * instead of walking the subtree again. A subtotal is reused for at most the configured time
+ * to live, and only while the modification time of its directory is unchanged.
+ */
+@Component
+public class DirectoryStatistics {
+
+	private static final String FIND = "/usr/bin/find";
+
+	private static Logger logger = LoggerFactory.getLogger(DirectoryStatistics.class);
+
+	// Number of threads walking in parallel; 0 means the number of processors
+	@Value("${samplefs.directory-stats.parallelism:0}")
+	private int parallelism;
+
+	// Seconds a subtotal is reused at most
+	@Value("${samplefs.directory-stats.ttl:600}")
+	private long ttl;
+
+	// Number of subtotals cached at most, the least recently used ones being evicted
+	@Value("${samplefs.directory-stats.max-entries:100000}")
+	private int maxEntries;
+
+	// Guarded by this, in the order of access
+	private final LinkedHashMap<String, Subtotal> subtotals = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Subtotal> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	private static class Subtotal {
+		private final long bytes;
+		private final long files;
+		private final long directories;
+		private final FileTime modTime;
+		private final long computedAt;
+
+		Subtotal(long bytes, long files, long directories, FileTime modTime) {
+			this.bytes = bytes;
+			this.files = files;
+			this.directories = directories;
+			this.modTime = modTime;
+			this.computedAt = System.currentTimeMillis();
+		}
+
+		Subtotal plus(Subtotal other) {
+			return new Subtotal(bytes + other.bytes, files + other.files, directories + other.directories, modTime);
+		}
+	}
+
+	/**
+	 * Returns the statistics of the given directory tree, with its {@code top} largest
+	 * immediate subdirectories.
+	 */
+	public DirectoryStats getStats(String dirPath, boolean followSymbolicLinks, int top) throws ServiceException {
+		LinkOption[] linkOptions = followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+		ForkJoinPool pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+		try {
+			Path root = Paths.get(dirPath);
+			List<SubtreeTask> subdirs = new ArrayList<>();
+			Subtotal total;
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, linkOptions);
+				Ancestor ancestors = new Ancestor(attrs.fileKey(), null);
+				total = new Subtotal(0, 0, 0, attrs.lastModifiedTime())
+						.plus(listDirectory(root, ancestors, linkOptions, followSymbolicLinks, subdirs));
+			} catch (AccessDeniedException e) {
+				// Without the breakdown by subdirectory then
+				total = countWithFind(root, followSymbolicLinks, null);
+			}
+			
+			// The subtrees are walked, or taken from the cache, in parallel
+			for(SubtreeTask subdir : subdirs)
+				pool.execute(subdir);
+			List<DirectoryStats> subdirStats = new ArrayList<>();
+			for(SubtreeTask subdir : subdirs) {
+				Subtotal subtotal = subdir.join();
+				total = total.plus(subtotal);
+				subdirStats.add(toStats(subdir.dir, subtotal));
+			}
+			cache(root, followSymbolicLinks, total);
+			
+			DirectoryStats stats = toStats(root, total);
+			stats.setLargestSubdirectories(subdirStats.stream()
+					.sorted(Comparator.comparingLong(DirectoryStats::getBytes).reversed())
+					.limit(top)
+					.collect(Collectors.toList()));
+			return stats;
+		} catch (Exception e) {
+			// Unwrap the failures of the tasks (see SubtreeTask)
+			Exception cause = e;
+			while(cause instanceof IllegalStateException && cause.getCause() instanceof Exception)
+				cause = (Exception) cause.getCause();
+			throw ExceptionUtil.convertToServiceException(cause);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static DirectoryStats toStats(Path dir, Subtotal subtotal) {
+		return new DirectoryStats(dir.toString(), subtotal.bytes, subtotal.files, subtotal.directories);
+	}
+
+	private static String cacheKey(Path dir, boolean followSymbolicLinks) {
+		return (followSymbolicLinks ? "L:" : "P:") + dir;
+	}
+
+	private synchronized Subtotal getCached(Path dir, boolean followSymbolicLinks, FileTime modTime) {
+		String key = cacheKey(dir, followSymbolicLinks);
+		Subtotal subtotal = subtotals.get(key);
+		if(subtotal == null)
+			return null;
+		if(!subtotal.modTime.equals(modTime) || System.currentTimeMillis() - subtotal.computedAt > TimeUnit.SECONDS.toMillis(ttl)) {
+			subtotals.remove(key);
+			return null;
+		}
+		return subtotal;
+	}
+
+	private synchronized void cache(Path dir, boolean followSymbolicLinks, Subtotal subtotal) {
+		if(maxEntries > 0 && ttl > 0 && subtotal.modTime != null)
+			subtotals.put(cacheKey(dir, followSymbolicLinks), subtotal);
+	}
+
+	// Counts the files directly in the given directory, and adds a task for each subdirectory
+	private Subtotal listDirectory(Path dir, Ancestor ancestors, LinkOption[] linkOptions, boolean followSymbolicLinks,
+			List<SubtreeTask> subdirs) throws IOException {
+		long bytes = 0;
+		long files = 0;
+		try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for(Path entry : entries) {
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(entry, BasicFileAttributes.class, linkOptions);
+				} catch (FileSystemException e) {
+					// Vanished in the meantime, or a dangling symbolic link
+					continue;
+				}
+				if(attrs.isDirectory()) {
+					if(ancestors.contains(attrs.fileKey())) {
+						logger.warn("Skipping {}, which is a file system loop", entry);
+						continue;
+					}
+					subdirs.add(new SubtreeTask(entry, attrs.lastModifiedTime(), new Ancestor(attrs.fileKey(), ancestors),
+							linkOptions, followSymbolicLinks));
+				} else if(attrs.isRegularFile()) {
+					bytes += attrs.size();
+					files++;
+				}
+			}
+		}
+		return new Subtotal(bytes, files, subdirs.size(), null);
+	}
+
+	// Counts a subtree that dpuic cannot read with find, i.e. with sudo
+	private Subtotal countWithFind(Path dir, boolean followSymbolicLinks, FileTime modTime) throws Exception {
+		logger.debug("No access to {}, falling back to the OS command", dir);
+		StringBuilder command = new StringBuilder(FIND);
+		if(followSymbolicLinks)
+			command.append(" -L");
+		command.append(' ')
+		.append(Shell.quote(dir.toString()))
+		.append(" -mindepth 1 \\( -type f -printf \"f %s\\n\" \\) -o \\( -type d -printf \"d\\n\" \\)")
+		.append(" | awk '$1 == \"f\" { files++; bytes += $2 } $1 == \"d\" { dirs++ } END { printf \"%.0f %.0f %.0f\\n\", bytes, files, dirs }'");
+		String[] counts = new OSCommand().exec(BaseCommand.withShell(command.toString())).trim().split(" ");
+		return new Subtotal(Long.parseLong(counts[0]), Long.parseLong(counts[1]), Long.parseLong(counts[2]), modTime);
+	}
+
+	// Chain of the directories from the root, to detect loops when following symbolic links
+	private static class Ancestor {
+		private final Object fileKey;
+		private final Ancestor parent;
+
+		Ancestor(Object fileKey, Ancestor parent) {
+			this.fileKey = fileKey;
+			this.parent = parent;
+		}
+
+		boolean contains(Object key) {
+			for(Ancestor a = this; a != null; a = a.parent) {
+				if(a.fileKey != null && a.fileKey.equals(key))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private class SubtreeTask extends RecursiveTask<Subtotal> {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final transient FileTime modTime;
+		private final transient Ancestor ancestors;
+		private final LinkOption[] linkOptions;
+		private final boolean followSymbolicLinks;
+
+		SubtreeTask(Path dir, FileTime modTime, Ancestor ancestors, LinkOption[] linkOptions, boolean followSymbolicLinks) {
+			this.dir = dir;
+			this.modTime = modTime;
+			this.ancestors = ancestors;
+			this.linkOptions = linkOptions;
+			this.followSymbolicLinks = followSymbolicLinks;
+		}
+
+		@Override
+		protected Subtotal compute() {
+			Subtotal cached = getCached(dir, followSymbolicLinks, modTime);
+			if(cached != null)
+				return cached;
+			
+			Subtotal subtotal;
+			try {
+				List<SubtreeTask> subdirs = new ArrayList<>();
+				try {
+					subtotal = new Subtotal(0, 0, 0, modTime)
+							.plus(listDirectory(dir, ancestors, linkOptions, followSymbolicLinks, subdirs));
+				} catch (AccessDeniedException e) {
+					subdirs.clear();
+					subtotal = countWithFind(dir, followSymbolicLinks, modTime);
+				}
+				for(SubtreeTask subdir : invokeAll(subdirs))
+					subtotal = subtotal.plus(subdir.join());
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+			cache(dir, followSymbolicLinks, subtotal);
+			return subtotal;
+		}
+	}
+}
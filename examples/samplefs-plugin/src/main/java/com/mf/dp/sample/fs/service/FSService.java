@@ -15,22 +15,53 @@
  */
 package com.mf.dp.sample.fs.service;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
 import com.mf.dp.sample.fs.model.FileEntry;
+import com.mf.dp.sample.fs.model.FileEntryPage;
 import com.mf.dp.uic.command.BaseCommand;
 import com.mf.dp.uic.command.OSCommand;
 import com.mf.dp.uic.exception.ServiceException;
@@ -64,6 +95,17 @@ import com.mf.dp.uic.util.ExceptionUtil;
 public class FSService {
 	
 	private static final String FIND 	= "/usr/bin/find";
+	// Cost of a file in bytes besides its size, so that shards of many small files are not overloaded
+	private static final long SHARD_FILE_COST = 4096;
+	
+	// Scripts run by xargs with the target directory as $0 and a batch of relative paths. A batch
+	// that cannot be linked is done again file by file, linking or else copying each file.
+	private static final String LINK_FILES = "cp -P -l -f --parents -t \"$0\" -- \"$@\" 2>/dev/null && exit 0; status=0; "
+			+ "for file; do [ \"$file\" -ef \"$0/$file\" ] || cp -P -l -f --parents -t \"$0\" -- \"$file\" 2>/dev/null "
+			+ "|| cp -P -p --remove-destination --parents -t \"$0\" -- \"$file\" || status=1; done; exit $status";
+	private static final String COPY_FILES = "cp -P -p --remove-destination --parents -t \"$0\" -- \"$@\"";
+	
+	private static final Comparator<FileEntry> BY_PATH = Comparator.comparing(FileEntry::getFilePath);
 	
 	private static Logger logger = LoggerFactory.getLogger(FSService.class); 
 	
@@ -71,13 +113,147 @@ public class FSService {
 	@Value("${samplefs.fsservice.script.copy-files}")
 	private String copyFilesScript;
 
+	// Number of cp processes run in parallel by the copy script, and number of files copied by each
+	@Value("${samplefs.fsservice.copy.parallelism:4}")
+	private int copyParallelism;
+
+	@Value("${samplefs.fsservice.copy.batch-size:1000}")
+	private int copyBatchSize;
+
+	// How the copy script stages the files: "copy" or "reflink" (copy-on-write clone where the
+	// file system supports it)
+	@Value("${samplefs.fsservice.copy.mode:copy}")
+	private String copyMode;
+
 	@Value("${samplefs.fsservice.input-method:pipe}")
 	private String inputMethod;
 
+	// Prefix of the commands run with the "stream" input method, which do not go through the
+	// sudo capability of the UIC; empty runs them as dpuic, which must then read the whole tree
+	@Value("${samplefs.fsservice.stream.command-prefix:sudo -n}")
+	private String streamCommandPrefix;
+
+	// Engine scanning the source directory: "find" (OS command), "parallel-find" (one OS command
+	// per top-level subtree) or "nio" (in-JVM parallel walk)
+	@Value("${samplefs.fsservice.scan.engine:find}")
+	private String scanEngine;
+
+	// Number of threads (or find processes) scanning in parallel; 0 means the number of processors
+	@Value("${samplefs.fsservice.scan.parallelism:0}")
+	private int scanParallelism;
+
+	// How the changed files are detected: "metadata" (size, times and inode) or "content"
+	// (hash of the content of the files whose metadata changed)
+	@Value("${samplefs.fsservice.change-detection:metadata}")
+	private String changeDetection;
+
+	// Number of threads hashing file content; 0 means the number of processors
+	@Value("${samplefs.fsservice.hash.parallelism:0}")
+	private int hashParallelism;
+
+	// Whether the changed files of at least delta.min-size bytes are backed up as block deltas,
+	// i.e. only the blocks of delta.block-size bytes that changed since the previous backup
+	@Value("${samplefs.fsservice.delta.enabled:false}")
+	private boolean deltaEnabled;
+
+	@Value("${samplefs.fsservice.delta.min-size:1073741824}")
+	private long deltaMinSize;
+
+	@Value("${samplefs.fsservice.delta.block-size:1048576}")
+	private int deltaBlockSize;
+
+	@Value("${samplefs.fsservice.script.apply-delta:/opt/omni/unifIntegController/bin/apply_delta.sh}")
+	private String applyDeltaScript;
+
+	@Autowired
+	private FileStateIndex fileStateIndex;
+
+	@Autowired
+	private ListingCache listingCache;
+
 	public List<FileEntry> getDirectoryList(String dirPath, boolean followSymbolicLinks) throws ServiceException {	
+		return listingCache.get(dirPath, followSymbolicLinks, () -> {
+			assertDirectory(dirPath, followSymbolicLinks, false);
+			
+			return getList(dirPath, followSymbolicLinks);
+		});
+	}
+
+	/**
+	 * Returns the page of at most {@code limit} entries of the given directory that follow the
+	 * given cursor (see {@link FileEntryPage}) in the order of their paths, or the first page
+	 * without a cursor. A page of a cached listing, which is sorted, is found by a binary search
+	 * for the cursor. Otherwise, the directory is listed with {@code find} and only the
+	 * {@code limit} smallest paths after the cursor are kept as the entries stream in, so that
+	 * a page of a huge directory takes memory for the page only.
+	 */
+	public FileEntryPage getDirectoryPage(String dirPath, boolean followSymbolicLinks, String cursor, int limit) throws ServiceException {
+		List<FileEntry> entries = listingCache.getIfPresent(dirPath, followSymbolicLinks);
+		if(entries != null) {
+			int from = 0;
+			if(cursor != null) {
+				int index = Collections.binarySearch(entries, new FileEntry(cursor, false), BY_PATH);
+				from = index >= 0 ? index + 1 : -index - 1;
+			}
+			int to = (int) Math.min(entries.size(), (long) from + limit);
+			return new FileEntryPage(new ArrayList<>(entries.subList(from, to)),
+					to < entries.size() ? entries.get(to - 1).getFilePath() : null);
+		}
+		
 		assertDirectory(dirPath, followSymbolicLinks, false);
 		
-		return getList(dirPath, followSymbolicLinks);
+		// The limit + 1 smallest paths after the cursor, the largest on top, to tell whether there is a next page
+		PriorityQueue<FileEntry> smallest = new PriorityQueue<>(limit + 1, BY_PATH.reversed());
+		try(DirectoryEntryReader reader = openDirectoryEntries(dirPath, followSymbolicLinks)) {
+			FileEntry entry;
+			while((entry = reader.next()) != null) {
+				if(cursor != null && entry.getFilePath().compareTo(cursor) <= 0)
+					continue;
+				if(smallest.size() <= limit) {
+					smallest.add(entry);
+				} else if(BY_PATH.compare(entry, smallest.peek()) < 0) {
+					smallest.poll();
+					smallest.add(entry);
+				}
+			}
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		boolean more = smallest.size() > limit;
+		if(more)
+			smallest.poll();
+		List<FileEntry> page = new ArrayList<>(smallest);
+		page.sort(BY_PATH);
+		return new FileEntryPage(page, more ? page.get(page.size() - 1).getFilePath() : null);
+	}
+	
+	/**
+	 * Streams the entries of the given directory, in no particular order. Unless the listing is
+	 * cached, the entries are emitted as {@code find} lists them, on demand of the subscriber,
+	 * and the command is stopped if the subscription is cancelled.
+	 */
+	public Flux<FileEntry> streamDirectoryList(String dirPath, boolean followSymbolicLinks) throws ServiceException {
+		assertDirectory(dirPath, followSymbolicLinks, false);
+		
+		return Flux.defer(() -> {
+			List<FileEntry> entries = listingCache.getIfPresent(dirPath, followSymbolicLinks);
+			if(entries != null)
+				return Flux.fromIterable(entries);
+			return Flux.<FileEntry, DirectoryEntryReader>generate(() -> openDirectoryEntries(dirPath, followSymbolicLinks),
+					(reader, sink) -> {
+						try {
+							FileEntry entry = reader.next();
+							if(entry != null)
+								sink.next(entry);
+							else
+								sink.complete();
+						} catch (Exception e) {
+							sink.error(ExceptionUtil.convertToServiceException(e));
+						}
+						return reader;
+					}, DirectoryEntryReader::close);
+		})
+		.subscribeOn(Schedulers.boundedElastic());
 	}
 
 	public void assertDirectory(String dirPath, boolean followSymbolicLinks, boolean shouldBeEmpty) throws ServiceException {
@@ -90,70 +266,763 @@ public class FSService {
 		}
 	}
 	
-	public void copyFilesModifiedSince(String srcDirPath, String dstDirPath, long since, boolean followSymbolicLinks) throws ServiceException {
+	/**
+	 * Writes the file state index of the given directory (see {@link FileStateIndex})
+	 * into the given file.
+	 */
+	public void scanFileStates(String dirPath, boolean followSymbolicLinks, String indexFilePath) throws ServiceException {
 		try {
-			OSCommand osCommand = new OSCommand();
+			String scanFilePath = indexFilePath + ".scan";
+			if(!scanEngine.equals("find")) {
+				try(ScanSource scan = startScan(dirPath, followSymbolicLinks)) {
+					Files.copy(scan.getOutput(), Paths.get(scanFilePath), StandardCopyOption.REPLACE_EXISTING);
+					scan.waitFor();
+				}
+				new OSCommand().exec(BaseCommand.withShell(sortScanFileCommand(scanFilePath, indexFilePath)));
+				return;
+			}
 			
-			StringBuilder command = new StringBuilder(FIND);
-			if(followSymbolicLinks)
-				command.append(" -L");
-			command.append(" \"")
-			.append(srcDirPath)
-			.append("\" -type f -printf \"%T@ %p\\n\"");
+			// Sort separately, so that a failure of find is not masked by the exit status of sort
+			StringBuilder command = findFileStatesCommand(dirPath, followSymbolicLinks)
+			.append(" > \"")
+			.append(scanFilePath)
+			.append("\" && ")
+			.append(sortScanFileCommand(scanFilePath, indexFilePath));
+
+			new OSCommand().exec(BaseCommand.withShell(command.toString()));
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+
+	/**
+	 * Copies the files added or changed since the last backup to the destination directory.
+	 * The changes are determined by comparing a new scan of the source directory, which is
+	 * written to {@code pendingIndexFilePath}, with the file state index of the last backup.
+	 * Without the latter, the files modified after {@code since} are copied.
+	 *
+	 * If the destination directory holds pre-staged files (see {@link PreStage}), those
+	 * still up to date are not copied again, and those not selected are removed.
+	 */
+	public void copyFilesModifiedSince(String srcDirPath, String dstDirPath, long since, boolean followSymbolicLinks,
+			String indexFilePath, String pendingIndexFilePath, PreStage preStage) throws ServiceException {
+		try {
+			if(inputMethod.equals("stream")) {
+				streamFilesModifiedSince(srcDirPath, dstDirPath, since, followSymbolicLinks, indexFilePath, pendingIndexFilePath, preStage);
+				return;
+			}
+			
+			scanFileStates(srcDirPath, followSymbolicLinks, pendingIndexFilePath);
+			
+			ByteArrayOutputStream filesModifiedSince = new ByteArrayOutputStream();
+			List<String> largeFiles = new ArrayList<>();
+			Path signatureDir = fileStateIndex.getSignatureDirectory(Paths.get(indexFilePath));
+			FileStateIndex.ChangedFileSink changedFiles = selectLargeFiles(skipPreStaged(FileStateIndex.toSink(filesModifiedSince), preStage), signatureDir, largeFiles);
+			if(isContentChangeDetection()) {
+				// The scan with the content hashes becomes the pending file state index once sorted
+				String scanFilePath = pendingIndexFilePath + ".scan";
+				try(InputStream scan = new BufferedInputStream(Files.newInputStream(Paths.get(pendingIndexFilePath)));
+					OutputStream scanCopy = new BufferedOutputStream(Files.newOutputStream(Paths.get(scanFilePath)));
+					ContentHasher hasher = new ContentHasher(hashParallelism)) {
+					fileStateIndex.selectChangedFiles(scan, scanCopy, Paths.get(indexFilePath), since, hasher, changedFiles);
+				}
+				new OSCommand().exec(BaseCommand.withShell(sortScanFileCommand(scanFilePath, pendingIndexFilePath)));
+			} else {
+				try(InputStream scan = new BufferedInputStream(Files.newInputStream(Paths.get(pendingIndexFilePath)))) {
+					fileStateIndex.selectChangedFiles(scan, null, Paths.get(indexFilePath), since, null, changedFiles);
+				}
+			}
+			
+			copyFiles(srcDirPath, dstDirPath, filesModifiedSince.toString(StandardCharsets.UTF_8));
+			copyDeltas(srcDirPath, dstDirPath, largeFiles, signatureDir, Paths.get(pendingIndexFilePath + ".delta"));
+			removeUnselectedFiles(dstDirPath, preStage);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
 	
-			String out = osCommand.exec(command.toString());
+	/**
+	 * Same as {@link #copyFilesModifiedSince}, for the given changed paths (e.g. as recorded
+	 * by the {@link ChangeTracker}) instead of a scan of the whole source directory. A changed
+	 * directory stands for its whole subtree. The pending file state index is derived from
+	 * the current one, so this returns false without copying anything if there is none yet.
+	 *
+	 * The states of the changed files are read within the JVM, so <em>dpuic</em> needs access
+	 * to their directories, just like for tracking them.
+	 */
+	public boolean copyChangedFiles(String srcDirPath, String dstDirPath, Collection<String> changedPaths, long since,
+			boolean followSymbolicLinks, String indexFilePath, String pendingIndexFilePath, PreStage preStage) throws ServiceException {
+		try {
+			Path indexFile = Paths.get(indexFilePath);
+			if(!Files.exists(indexFile))
+				return false;
+
+			Set<String> replacedFiles = new HashSet<>();
+			Set<String> replacedTrees = new HashSet<>();
+			byte[] scan = readFileStates(changedPaths, followSymbolicLinks, replacedFiles, replacedTrees);
+
+			ByteArrayOutputStream filesModifiedSince = new ByteArrayOutputStream();
+			ByteArrayOutputStream scanCopy = new ByteArrayOutputStream();
+			List<String> largeFiles = new ArrayList<>();
+			Path signatureDir = fileStateIndex.getSignatureDirectory(indexFile);
+			try(ContentHasher hasher = isContentChangeDetection() ? new ContentHasher(hashParallelism) : null) {
+				long selected = fileStateIndex.selectChangedFiles(new ByteArrayInputStream(scan), scanCopy, indexFile, since,
+						hasher, selectLargeFiles(skipPreStaged(FileStateIndex.toSink(filesModifiedSince), preStage), signatureDir, largeFiles));
+				logger.info("{} of the {} changed paths selected", selected, changedPaths.size());
+			}
 			
-			String filesModifiedSince = Arrays.stream(out.split(System.lineSeparator()))
-			.map(line -> new FileItem(line.substring(0, 21), line.substring(22)))
-			.filter(item -> item.getModTime() > since)
-			.map(item -> item.filePath)
-			.collect(Collectors.joining(System.lineSeparator())) + System.lineSeparator();
+			copyFiles(srcDirPath, dstDirPath, filesModifiedSince.toString(StandardCharsets.UTF_8));
+			copyDeltas(srcDirPath, dstDirPath, largeFiles, signatureDir, Paths.get(pendingIndexFilePath + ".delta"));
+			removeUnselectedFiles(dstDirPath, preStage);
 			
-			// This illustrates how to locate and execute custom script supplied by the plugin.
-			if(inputMethod.equals("pipe")) {
-				// This illustrates how to directly pipe a string value as input to the OS command to be invoked.
-				command = new StringBuilder(copyFilesScript)
-						.append(" \"")
-						.append(srcDirPath)
-						.append("\" \"")
-						.append(dstDirPath)
-						.append("\"");
-				ProcessConfigurator configurator = ProcessConfigurator.create();
-				configurator.pipedToStdin(filesModifiedSince);
-				configurator.command(BaseCommand.withShell(command.toString()));
-				out = osCommand.exec(configurator);
-			} else if(inputMethod.equals("tempfile")) {
-				// This alternate method illustrates how to use input redirection with a temporary file to the OS command to be invoked.
-				File tempFile = writeToTempFile(filesModifiedSince);
-				try {
-					command = new StringBuilder(copyFilesScript)
-							.append(" \"")
-							.append(srcDirPath)
-							.append("\" \"")
-							.append(dstDirPath)
-							.append("\" < \"")
-							.append(tempFile)
-							.append("\"");
-					// To use shell features such as redirection, pipe, etc., must run with a shell
-					out = osCommand.exec(BaseCommand.withShell(command.toString()));
-					logger.info("{} files copied", out);
-				} finally {
-					FileUtils.deleteQuietly(tempFile);
-				}							
+			// A path in the trees is gone or no longer a file, so its own line is dropped as well
+			fileStateIndex.merge(indexFile, Paths.get(pendingIndexFilePath),
+					filePath -> replacedFiles.contains(filePath) || replacedTrees.contains(filePath) || isInTree(filePath, replacedTrees),
+					scanCopy.toByteArray());
+			return true;
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Returns the current states of the files at the given paths, in the format of the file state
+	 * index. A directory stands for the files in its subtree. The paths of the files are added to
+	 * {@code files}, and those of the directories and of the paths that are gone to {@code trees}.
+	 */
+	byte[] readFileStates(Collection<String> paths, boolean followSymbolicLinks, Set<String> files, Set<String> trees) throws IOException {
+		ByteArrayOutputStream scan = new ByteArrayOutputStream();
+		LinkOption[] linkOptions = followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+		for(String filePath : paths) {
+			Path path = Paths.get(filePath);
+			Map<String, Object> attrs;
+			try {
+				attrs = Files.readAttributes(path, ParallelFileWalker.ATTRIBUTES, linkOptions);
+			} catch (NoSuchFileException e) {
+				trees.add(filePath);
+				continue;
+			}
+			if(Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+				files.add(filePath);
+				scan.write(ParallelFileWalker.fileStateLine(path, attrs).getBytes(StandardCharsets.UTF_8));
 			} else {
-				throw new ServiceException(HttpStatus.INTERNAL_SERVER_ERROR, "Plugin is mis-configured");
+				trees.add(filePath);
+				if(Boolean.TRUE.equals(attrs.get("isDirectory")))
+					writeFileStates(path, followSymbolicLinks, scan);
+			}
+		}
+		return scan.toByteArray();
+	}
+	
+	private void writeFileStates(Path dir, boolean followSymbolicLinks, OutputStream scan) throws IOException {
+		Set<FileVisitOption> options = followSymbolicLinks ? EnumSet.of(FileVisitOption.FOLLOW_LINKS) : Collections.emptySet();
+		Files.walkFileTree(dir, options, Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes basicAttrs) throws IOException {
+				if(basicAttrs.isRegularFile()) {
+					Map<String, Object> attrs = Files.readAttributes(file, ParallelFileWalker.ATTRIBUTES,
+							followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS});
+					scan.write(ParallelFileWalker.fileStateLine(file, attrs).getBytes(StandardCharsets.UTF_8));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				// Vanished in the meantime, or a file system loop; anything else must not go unnoticed
+				if(e instanceof NoSuchFileException || e instanceof FileSystemLoopException)
+					return FileVisitResult.CONTINUE;
+				throw e;
+			}
+		});
+	}
+	
+	private static boolean isInTree(String filePath, Set<String> dirPaths) {
+		if(dirPaths.isEmpty())
+			return false;
+		for(int slash = filePath.lastIndexOf('/'); slash > 0; slash = filePath.lastIndexOf('/', slash - 1)) {
+			if(dirPaths.contains(filePath.substring(0, slash)))
+				return true;
+		}
+		return false;
+	}
+	
+	// This illustrates how to process the output of an OS command while it runs, and how to feed
+	// the input of another one at the same time. The output of the scan is parsed line by line, and
+	// the selected paths are written straight to the copy script. So, the memory used does not
+	// depend on the number of files, and the copying overlaps with the scanning.
+	private void streamFilesModifiedSince(String srcDirPath, String dstDirPath, long since, boolean followSymbolicLinks,
+			String indexFilePath, String pendingIndexFilePath, PreStage preStage) throws Exception {
+		String scanFilePath = pendingIndexFilePath + ".scan";
+		List<String> largeFiles = new ArrayList<>();
+		Path signatureDir = fileStateIndex.getSignatureDirectory(Paths.get(indexFilePath));
+		long selected;
+		String out;
+		try(StreamingCommand copy = StreamingCommand.start(streamCommandPrefix, copyFilesCommand(srcDirPath, dstDirPath, stagingCopyMode()).toString());
+			ScanSource scan = startScan(srcDirPath, followSymbolicLinks);
+			ContentHasher hasher = isContentChangeDetection() ? new ContentHasher(hashParallelism) : null) {
+			try(OutputStream scanCopy = new BufferedOutputStream(Files.newOutputStream(Paths.get(scanFilePath)))) {
+				OutputStream filesModifiedSince = new BufferedOutputStream(copy.getStdin());
+				selected = fileStateIndex.selectChangedFiles(scan.getOutput(), scanCopy, Paths.get(indexFilePath), since,
+						hasher, selectLargeFiles(skipPreStaged(FileStateIndex.toSink(filesModifiedSince), preStage), signatureDir, largeFiles));
+				filesModifiedSince.flush();
+			}
+			scan.waitFor();
+			out = copy.waitFor();
+		}
+		logger.info("{} files selected, {} files copied", selected, out);
+		copyDeltas(srcDirPath, dstDirPath, largeFiles, signatureDir, Paths.get(pendingIndexFilePath + ".delta"));
+		removeUnselectedFiles(dstDirPath, preStage);
+		
+		// The scan becomes the pending file state index once sorted
+		new OSCommand().exec(BaseCommand.withShell(sortScanFileCommand(scanFilePath, pendingIndexFilePath)));
+	}
+	
+	// Passes on the selected files, except those whose pre-staged copy is up to date
+	private FileStateIndex.ChangedFileSink skipPreStaged(FileStateIndex.ChangedFileSink changedFiles, PreStage preStage) {
+		if(preStage == null)
+			return changedFiles;
+		return (buf, lineStart, pathEnd, lineEnd, size) -> {
+			if(!preStage.select(buf, lineStart, pathEnd, lineEnd))
+				changedFiles.add(buf, lineStart, pathEnd, lineEnd, size);
+		};
+	}
+	
+	private void removeUnselectedFiles(String dstDirPath, PreStage preStage) throws ServiceException {
+		if(preStage == null)
+			return;
+		List<String> unselected = preStage.getUnselectedFiles();
+		logger.info("{} of {} pre-staged files were up to date, {} are no longer needed",
+				preStage.getSelectedCount(), preStage.getFileCount(), unselected.size());
+		if(!unselected.isEmpty())
+			removeFiles(dstDirPath, unselected);
+	}
+	
+	// Sets the changed files of at least the minimum delta size aside, and drops the signatures
+	// of the smaller ones, which are copied as a whole. With deltas disabled, all signatures are
+	// dropped, since they would be outdated once the deltas are enabled again.
+	private FileStateIndex.ChangedFileSink selectLargeFiles(FileStateIndex.ChangedFileSink changedFiles, Path signatureDir,
+			List<String> largeFiles) throws IOException {
+		if(!deltaEnabled) {
+			if(Files.exists(signatureDir))
+				FileUtils.deleteDirectory(signatureDir.toFile());
+			return changedFiles;
+		}
+		Files.createDirectories(signatureDir);
+		return (buf, lineStart, pathEnd, lineEnd, size) -> {
+			String filePath = new String(buf, lineStart, pathEnd - lineStart, StandardCharsets.UTF_8);
+			if(size >= deltaMinSize) {
+				largeFiles.add(filePath);
+			} else {
+				changedFiles.add(buf, lineStart, pathEnd, lineEnd, size);
+				fileStateIndex.invalidateSignature(signatureDir, filePath);
+			}
+		};
+	}
+	
+	// Writes the block deltas of the given files into a temporary directory, along with their
+	// pending signatures, and copies them to the destination directory. A file that dpuic cannot
+	// read is copied as a whole instead.
+	private void copyDeltas(String srcDirPath, String dstDirPath, List<String> largeFiles, Path signatureDir, Path deltaDir) throws Exception {
+		if(largeFiles.isEmpty())
+			return;
+		try {
+			StringBuilder deltas = new StringBuilder();
+			StringBuilder unreadable = new StringBuilder();
+			long changed = 0;
+			long total = 0;
+			for(String filePath : largeFiles) {
+				Path deltaFile = Paths.get(deltaDir + filePath.substring(srcDirPath.length()) + BlockDelta.SUFFIX);
+				try {
+					Files.createDirectories(deltaFile.getParent());
+					changed += BlockDelta.write(Paths.get(filePath), fileStateIndex.getSignatureFile(signatureDir, filePath),
+							fileStateIndex.getPendingSignatureFile(signatureDir, filePath), deltaFile, deltaBlockSize);
+					total += Files.size(Paths.get(filePath));
+					deltas.append(deltaFile).append('\n');
+				} catch (IOException e) {
+					logger.warn("Could not write the block delta of {}, copying it as a whole", filePath, e);
+					Files.deleteIfExists(fileStateIndex.getPendingSignatureFile(signatureDir, filePath));
+					Files.deleteIfExists(deltaFile);
+					fileStateIndex.invalidateSignature(signatureDir, filePath);
+					unreadable.append(filePath).append('\n');
+				}
+			}
+			logger.info("{} of {} bytes of {} large files changed", changed, total, largeFiles.size());
+			if(unreadable.length() > 0)
+				copyFiles(srcDirPath, dstDirPath, unreadable.toString());
+			copyFiles(deltaDir.toString(), dstDirPath, deltas.toString(), "copy");
+		} finally {
+			FileUtils.deleteQuietly(deltaDir.toFile());
+		}
+	}
+	
+	/**
+	 * Applies the given block deltas (oldest first) to the given file (see {@link BlockDelta}).
+	 */
+	public void applyDeltas(String filePath, List<String> deltaFilePaths) throws ServiceException {
+		try {
+			// The paths come from the backed-up data, so they are passed as arguments, never parsed by a shell
+			List<String> command = new ArrayList<>();
+			command.add(applyDeltaScript);
+			command.add(filePath);
+			command.addAll(deltaFilePaths);
+			new OSCommand().exec(command);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Tells whether the given file, named like a block delta, is one, i.e. ends with the offset
+	 * of a manifest starting with its signature (see {@link BlockDelta}), rather than a file of
+	 * the backed-up directory that merely has the same suffix.
+	 */
+	public boolean isBlockDelta(String filePath) throws ServiceException {
+		try {
+			OSCommand osCommand = new OSCommand();
+			String trailer = osCommand.exec(List.of("tail", "-c", String.valueOf(BlockDelta.TRAILER_LENGTH), "--", filePath)).trim();
+			if(!BlockDelta.isTrailer(trailer))
+				return false;
+			String start = osCommand.exec(List.of("dd", "if=" + filePath, "iflag=skip_bytes", "skip=" + Long.parseLong(trailer),
+					"bs=" + BlockDelta.MAGIC.length(), "count=1", "status=none"));
+			return start.startsWith(BlockDelta.MAGIC);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Applies the block deltas found in the given incremental backup directory to the files
+	 * restored from it, and removes the delta files copied along with them. Returns the number
+	 * of deltas applied.
+	 */
+	public int applyStagedDeltas(String incrBackupDirPath, String restoreDirPath) throws ServiceException {
+		int applied = 0;
+		for(String relativePath : listFiles(incrBackupDirPath)) {
+			if(!relativePath.endsWith(BlockDelta.SUFFIX) || !isBlockDelta(incrBackupDirPath + "/" + relativePath))
+				continue;
+			String targetPath = relativePath.substring(0, relativePath.length() - BlockDelta.SUFFIX.length());
+			applyDeltas(restoreDirPath + "/" + targetPath, List.of(incrBackupDirPath + "/" + relativePath));
+			removeFile(restoreDirPath + "/" + relativePath);
+			applied++;
+		}
+		return applied;
+	}
+	
+	/**
+	 * Removes the given files, whose paths are relative to the given directory.
+	 */
+	public void removeFiles(String dirPath, List<String> relativePaths) throws ServiceException {
+		try {
+			StringBuilder files = new StringBuilder();
+			for(String relativePath : relativePaths)
+				files.append(dirPath).append('/').append(relativePath).append('\n');
+			ProcessConfigurator configurator = ProcessConfigurator.create();
+			configurator.pipedToStdin(files.toString());
+			configurator.command(BaseCommand.withShell("xargs -r -d '\\n' rm -f --"));
+			new OSCommand().exec(configurator);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Creates the given directories, whose paths are relative to the given directory, along
+	 * with their missing parents.
+	 */
+	public void createDirectories(String dirPath, Collection<String> relativePaths) throws ServiceException {
+		try {
+			StringBuilder dirs = new StringBuilder();
+			for(String relativePath : relativePaths)
+				dirs.append(dirPath).append('/').append(relativePath).append('\n');
+			ProcessConfigurator configurator = ProcessConfigurator.create();
+			configurator.pipedToStdin(dirs.toString());
+			configurator.command(BaseCommand.withShell("xargs -r -d '\\n' mkdir -p --"));
+			new OSCommand().exec(configurator);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Writes the given content into the given file, e.g. in a backup directory that only
+	 * the <em>sudo</em> capability gives access to.
+	 */
+	public void writeFile(String filePath, String content) throws ServiceException {
+		try {
+			ProcessConfigurator configurator = ProcessConfigurator.create();
+			configurator.pipedToStdin(content);
+			configurator.command(BaseCommand.withShell("cat > \"" + filePath + "\""));
+			new OSCommand().exec(configurator);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Returns the content of the given file, or null if there is no such file.
+	 */
+	public String readFile(String filePath) throws ServiceException {
+		try {
+			String out = new OSCommand().exec(BaseCommand.withShell("if [ -f \"" + filePath + "\" ]; then echo 1; cat \"" + filePath + "\"; fi"));
+			return out.startsWith("1\n") ? out.substring(2) : null;
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	private void removeFile(String filePath) throws ServiceException {
+		try {
+			new OSCommand().exec(List.of("rm", "-f", "--", filePath));
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Starts a scan of the given directory tree with the configured scan engine. The output
+	 * is in the format of {@link FileStateIndex}, in no particular order.
+	 */
+	ScanSource startScan(String dirPath, boolean followSymbolicLinks) throws IOException {
+		if(scanEngine.equals("nio")) {
+			// Subtrees that dpuic cannot read are scanned with find through OSCommand (i.e. with sudo)
+			return new ParallelFileWalker(scanParallelism,
+					subDirPath -> new OSCommand().exec(BaseCommand.withShell(findFileStatesCommand(subDirPath, followSymbolicLinks).toString())))
+					.start(dirPath, followSymbolicLinks);
+		} else if(scanEngine.equals("parallel-find")) {
+			// One find per top-level subtree, run through OSCommand (i.e. with sudo)
+			List<String> subDirPaths = getList(dirPath, followSymbolicLinks).stream()
+					.filter(FileEntry::isDirectory)
+					.map(FileEntry::getFilePath)
+					.collect(Collectors.toList());
+			return new ParallelFindScanner(scanParallelism,
+					(subDirPath, recursive) -> new OSCommand().exec(BaseCommand.withShell(findFileStatesCommand(subDirPath, followSymbolicLinks, recursive).toString())))
+					.start(dirPath, subDirPaths);
+		} else if(scanEngine.equals("find")) {
+			StreamingCommand find = StreamingCommand.start(streamCommandPrefix, findFileStatesCommand(dirPath, followSymbolicLinks).toString());
+			return new ScanSource() {
+				@Override
+				public InputStream getOutput() {
+					return find.getStdout();
+				}
+				@Override
+				public void waitFor() throws IOException, InterruptedException {
+					find.waitFor();
+				}
+				@Override
+				public void close() {
+					find.close();
+				}
+			};
+		}
+		throw new ServiceException(HttpStatus.INTERNAL_SERVER_ERROR, "Plugin is mis-configured");
+	}
+	
+	private StringBuilder findFileStatesCommand(String dirPath, boolean followSymbolicLinks) {
+		return findFileStatesCommand(dirPath, followSymbolicLinks, true);
+	}
+	
+	private StringBuilder findFileStatesCommand(String dirPath, boolean followSymbolicLinks, boolean recursive) {
+		StringBuilder command = new StringBuilder(FIND);
+		if(followSymbolicLinks)
+			command.append(" -L");
+		// The subtrees of a parallel scan are named after directories read from disk
+		command.append(' ').append(Shell.quote(dirPath));
+		if(!recursive)
+			command.append(" -maxdepth 1");
+		return command.append(" -type f -printf \"%p\\t%s\\t%T@\\t%C@\\t%i\\n\"");
+	}
+	
+	private String sortScanFileCommand(String scanFilePath, String indexFilePath) {
+		return new StringBuilder("LC_ALL=C sort -o \"")
+		.append(indexFilePath)
+		.append("\" \"")
+		.append(scanFilePath)
+		.append("\" && rm -f \"")
+		.append(scanFilePath)
+		.append("\"")
+		.toString();
+	}
+	
+	private StringBuilder copyFilesCommand(String srcDirPath, String dstDirPath, String mode) {
+		return new StringBuilder(copyFilesScript)
+				.append(" \"")
+				.append(srcDirPath)
+				.append("\" \"")
+				.append(dstDirPath)
+				.append("\" ")
+				.append(copyParallelism)
+				.append(" ")
+				.append(copyBatchSize)
+				.append(" ")
+				.append(mode);
+	}
+	
+	private boolean isContentChangeDetection() {
+		return changeDetection.equals("content");
+	}
+	
+	// Hard links would share the inodes of the source files, so writes made while the Media Agent
+	// reads the staged files would end up in the backup; only copy-on-write clones are offered.
+	private String stagingCopyMode() throws ServiceException {
+		if(copyMode.equals("copy") || copyMode.equals("reflink"))
+			return copyMode;
+		throw new ServiceException(HttpStatus.INTERNAL_SERVER_ERROR,
+				"Plugin is mis-configured: samplefs.fsservice.copy.mode must be copy or reflink");
+	}
+	
+	/**
+	 * Copies the given files, whose paths are relative to the source directory, to the
+	 * same relative paths under the destination directory.
+	 */
+	public void copyFiles(String srcDirPath, String dstDirPath, List<String> relativePaths) throws ServiceException {
+		copyFiles(srcDirPath, dstDirPath, relativePaths, "copy");
+	}
+	
+	/**
+	 * Same as {@link #copyFiles(String, String, List)}, for source files that are discarded
+	 * afterwards. Where the source and destination directories are on the same file system,
+	 * the files are hard linked into place instead of copied, i.e. at metadata-only cost.
+	 */
+	public void moveFiles(String srcDirPath, String dstDirPath, List<String> relativePaths) throws ServiceException {
+		copyFiles(srcDirPath, dstDirPath, relativePaths, "hardlink");
+	}
+	
+	private void copyFiles(String srcDirPath, String dstDirPath, List<String> relativePaths, String mode) throws ServiceException {
+		try {
+			StringBuilder files = new StringBuilder();
+			for(String relativePath : relativePaths)
+				files.append(srcDirPath).append('/').append(relativePath).append('\n');
+			copyFiles(srcDirPath, dstDirPath, files.toString(), mode);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Returns the size and modification time, as in the file state index, of those of the given
+	 * files, whose paths are relative to the given directory, that are regular files there.
+	 */
+	public Map<String, String> readSizesAndTimes(String dirPath, List<String> relativePaths) throws ServiceException {
+		try {
+			StringBuilder files = new StringBuilder();
+			for(String relativePath : relativePaths)
+				files.append("./").append(relativePath).append('\n');
+			// The files that are missing are just left out
+			ProcessConfigurator configurator = ProcessConfigurator.create();
+			configurator.pipedToStdin(files.toString());
+			configurator.command(BaseCommand.withShell("cd " + Shell.quote(dirPath)
+					+ " && xargs -r -d '\\n' sh -c '" + FIND + " \"$@\" -maxdepth 0 -type f -printf \"%p\\t%s\\t%T@\\n\" 2>/dev/null; true' sh"));
+			Map<String, String> sizesAndTimes = new HashMap<>();
+			for(String line : new OSCommand().exec(configurator).split("\n")) {
+				int tab = line.indexOf('\t');
+				if(tab > 2)
+					sizesAndTimes.put(line.substring(2, tab), line.substring(tab + 1));
+			}
+			return sizesAndTimes;
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Returns the paths, relative to the given directory, of the files in its tree.
+	 */
+	public List<String> listFiles(String dirPath) throws ServiceException {
+		try {
+			String out = new OSCommand().exec(new StringBuilder(FIND)
+					.append(" \"")
+					.append(dirPath)
+					.append("\" -type f -printf \"%P\\n\"")
+					.toString());
+			return Arrays.stream(out.split("\n"))
+					.filter(line -> !line.isEmpty())
+					.collect(Collectors.toList());
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	private void copyFiles(String srcDirPath, String dstDirPath, String files) throws Exception {
+		copyFiles(srcDirPath, dstDirPath, files, stagingCopyMode());
+	}
+	
+	private void copyFiles(String srcDirPath, String dstDirPath, String files, String mode) throws Exception {
+		OSCommand osCommand = new OSCommand();
+		String out;
+		
+		// This illustrates how to locate and execute custom script supplied by the plugin.
+		// The "stream" input method only applies to scans; a list at hand is piped instead.
+		if(inputMethod.equals("pipe") || inputMethod.equals("stream")) {
+			// This illustrates how to directly pipe a string value as input to the OS command to be invoked.
+			StringBuilder command = copyFilesCommand(srcDirPath, dstDirPath, mode);
+			ProcessConfigurator configurator = ProcessConfigurator.create();
+			configurator.pipedToStdin(files);
+			configurator.command(BaseCommand.withShell(command.toString()));
+			out = osCommand.exec(configurator);
+		} else if(inputMethod.equals("tempfile")) {
+			// This alternate method illustrates how to use input redirection with a temporary file to the OS command to be invoked.
+			File tempFile = writeToTempFile(files);
+			try {
+				StringBuilder command = copyFilesCommand(srcDirPath, dstDirPath, mode)
+						.append(" < \"")
+						.append(tempFile)
+						.append("\"");
+				// To use shell features such as redirection, pipe, etc., must run with a shell
+				out = osCommand.exec(BaseCommand.withShell(command.toString()));
+				logger.info("{} files copied", out);
+			} finally {
+				FileUtils.deleteQuietly(tempFile);
+			}							
+		} else {
+			throw new ServiceException(HttpStatus.INTERNAL_SERVER_ERROR, "Plugin is mis-configured");
+		}
+	}
+	
+	/**
+	 * Stages the files of the given file state index into the given shard directories, with
+	 * the configured copy mode. The files are cut into contiguous ranges of the index, i.e. of
+	 * the sorted paths, of roughly equal size, so that a directory mostly goes to a single
+	 * shard. Returns the number of bytes staged into each shard.
+	 */
+	public long[] stageShards(String srcDirPath, String indexFilePath, List<String> shardDirPaths) throws ServiceException {
+		try {
+			OSCommand osCommand = new OSCommand();
+			for(String shardDirPath : shardDirPaths)
+				osCommand.createDirectories(shardDirPath);
+			
+			Path indexFile = Paths.get(indexFilePath);
+			long total = 0;
+			try(InputStream in = new BufferedInputStream(Files.newInputStream(indexFile))) {
+				ScanLineReader reader = new ScanLineReader(in);
+				while(reader.next())
+					total += reader.size() + SHARD_FILE_COST;
 			}
 			
+			int shards = shardDirPaths.size();
+			long[] sizes = new long[shards];
+			StringBuilder files = new StringBuilder();
+			int shard = 0;
+			long cumulative = 0;
+			try(InputStream in = new BufferedInputStream(Files.newInputStream(indexFile))) {
+				ScanLineReader reader = new ScanLineReader(in);
+				while(reader.next()) {
+					long cost = reader.size() + SHARD_FILE_COST;
+					// The shard into which the middle of the file falls on the cumulative scale
+					int target = (int) Math.min(shards - 1, (cumulative + cost / 2.0) / total * shards);
+					if(target > shard) {
+						stageShard(srcDirPath, shardDirPaths.get(shard), files);
+						shard = target;
+					}
+					files.append(new String(reader.buffer(), reader.lineStart(), reader.pathEnd() - reader.lineStart(), StandardCharsets.UTF_8))
+					.append('\n');
+					sizes[shard] += reader.size();
+					cumulative += cost;
+				}
+			}
+			stageShard(srcDirPath, shardDirPaths.get(shard), files);
+			return sizes;
 		} catch (Exception e) {
 			throw ExceptionUtil.convertToServiceException(e);
 		}
 	}
 	
+	private void stageShard(String srcDirPath, String shardDirPath, StringBuilder files) throws Exception {
+		if(files.length() > 0) {
+			copyFiles(srcDirPath, shardDirPath, files.toString());
+			files.setLength(0);
+		}
+	}
+	
+	/**
+	 * Recreates under the destination directory the subdirectories of the source directory and
+	 * its entries other than regular files (e.g. symbolic links, unless followed). These are not
+	 * in the file state index, so a tree staged from the index needs them to be complete.
+	 */
+	public void stageDirectoryTree(String srcDirPath, String dstDirPath, boolean followSymbolicLinks) throws ServiceException {
+		try {
+			String find = followSymbolicLinks ? FIND + " -L ." : FIND + " .";
+			StringBuilder command = new StringBuilder("cd \"")
+			.append(srcDirPath)
+			.append("\" && ")
+			.append(find)
+			.append(" -mindepth 1 -type d -print0 | (cd \"")
+			.append(dstDirPath)
+			.append("\" && xargs -0 -r mkdir -p --) && ")
+			.append(find)
+			.append(" -mindepth 1 ! -type d ! -type f -print0 | xargs -0 -r cp -P -p --parents -t \"")
+			.append(dstDirPath)
+			.append("\" --");
+			new OSCommand().exec(BaseCommand.withShell(command.toString()));
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Returns the first of the given directories that is on the same file system as
+	 * {@code path}, or null if there is none. Files can only be staged by reflink into a
+	 * directory on the file system of the source.
+	 */
+	public String findDirectoryOnFileSystemOf(String path, List<String> dirPaths) throws ServiceException {
+		try {
+			OSCommand osCommand = new OSCommand();
+			String device = osCommand.exec(BaseCommand.withShell(statDeviceCommand(path))).trim();
+			for(String dirPath : dirPaths) {
+				try {
+					if(device.equals(osCommand.exec(BaseCommand.withShell(statDeviceCommand(dirPath))).trim()))
+						return dirPath;
+				} catch (Exception e) {
+					logger.warn("Skipping the staging directory {}", dirPath, e);
+				}
+			}
+			return null;
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	private String statDeviceCommand(String path) {
+		return "/usr/bin/stat -L -c %d " + Shell.quote(path);
+	}
+	
 	public void copyContent(String sourceDirPath, String targetDirPath) throws ServiceException {
 		try {
-			// Make sure that the wildcard character (*) is outside of the quotes.
-			// Otherwise, the shell will treat it as a file name.
-			new OSCommand().copy("\"" + sourceDirPath + "\"/*", "\"" + targetDirPath + "\"", true, true, true);
+			// Copy "dir/." rather than expanding the wildcard "dir/*", which fails with too
+			// many entries (exceeding ARG_MAX) and misses the hidden ones.
+			new OSCommand().copy("\"" + sourceDirPath + "/.\"", "\"" + targetDirPath + "\"", true, true, true);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+	
+	/**
+	 * Same as {@link #copyContent(String, String)}, for a source directory that is discarded
+	 * afterwards. Where both directories are on the same file system, the files are hard linked
+	 * into place instead of copied, and a file that cannot be linked is copied. Existing files
+	 * are replaced rather than written to, so the files linked from the source directory are
+	 * never modified. The directories get the owner, mode and modification time of those of the
+	 * source directory once their files are in place.
+	 */
+	public void moveContent(String sourceDirPath, String targetDirPath) throws ServiceException {
+		try {
+			OSCommand osCommand = new OSCommand();
+			boolean link = osCommand.exec(BaseCommand.withShell(statDeviceCommand(sourceDirPath))).trim()
+					.equals(osCommand.exec(BaseCommand.withShell(statDeviceCommand(targetDirPath))).trim());
+			String target = Shell.quote(targetDirPath);
+			StringBuilder command = new StringBuilder("cd ")
+			.append(Shell.quote(sourceDirPath))
+			.append(" && ")
+			.append(FIND)
+			.append(" . -mindepth 1 ! -type d -print0 | xargs -0 -r sh -c ")
+			.append(Shell.quote(link ? LINK_FILES : COPY_FILES))
+			.append(' ')
+			.append(target)
+			.append(" && ")
+			.append(FIND)
+			.append(" . -mindepth 1 -type d -print0 | tar -c --null --no-recursion -T - | tar -x -p -C ")
+			.append(target);
+			osCommand.exec(BaseCommand.withShell(command.toString()));
 		} catch (Exception e) {
 			throw ExceptionUtil.convertToServiceException(e);
 		}
@@ -164,21 +1033,34 @@ public class FSService {
 			StringBuilder command = new StringBuilder(FIND);
 			if(followSymbolicLinks)
 				command.append(" -L");
-			command.append(" \"")
-			.append(dirPath)
-			.append("\" -maxdepth 1 -printf \"%y %p\\n\"");
+			command.append(' ')
+			.append(Shell.quote(dirPath))
+			.append(" -maxdepth 1 -printf \"%y %p\\n\"");
 	
-			String out = new OSCommand().exec(command.toString());
+			String out = new OSCommand().exec(BaseCommand.withShell(command.toString()));
 			
+			// In the order of the paths, so that a page of the listing can be found by its cursor
 			return Arrays.stream(out.split(System.lineSeparator()))
 			.map(line -> new FileEntry(line.substring(2), "d".equals(line.substring(0,1))))
 			.filter(entry -> !dirPath.equals(entry.getFilePath()))
+			.sorted(BY_PATH)
 			.collect(Collectors.toList());
 		} catch (Exception e) {
 			throw ExceptionUtil.convertToServiceException(e);
 		}
 	}
 	
+	// Lists the entries of the directory through the command prefix of the streamed commands
+	private DirectoryEntryReader openDirectoryEntries(String dirPath, boolean followSymbolicLinks) throws IOException {
+		StringBuilder command = new StringBuilder(FIND);
+		if(followSymbolicLinks)
+			command.append(" -L");
+		command.append(' ')
+		.append(Shell.quote(dirPath))
+		.append(" -mindepth 1 -maxdepth 1 -printf '%y %p\\0'");
+		return new DirectoryEntryReader(StreamingCommand.start(streamCommandPrefix, command.toString()));
+	}
+	
 	private File writeToTempFile(String value) throws IOException {
 		File tempFile = File.createTempFile("samplefs", ".tmp");
 		Files.write(tempFile.toPath(), value.getBytes(StandardCharsets.UTF_8));
@@ -186,17 +1068,4 @@ public class FSService {
 		return tempFile;
 	}
 	
-	private static class FileItem {
-		private long modTime;
-		private String filePath;
-		
-		public FileItem(String linuxTimeWithFractionalPart, String filePath) {
-			this.modTime = Long.parseLong(linuxTimeWithFractionalPart.substring(0, 10)) * 1000L + Long.parseLong(linuxTimeWithFractionalPart.substring(11, 14));
-			this.filePath = filePath;
-		}
-		public long getModTime() {
-			return modTime;
-		}
-	}
-	
 }
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.uic.util.ExceptionUtil;
+
+/**
+ * Persistent per-application index of the state of the backed-up files.
+ *
+ * For each application object (appName/appId/appHost) there is a state directory
+ * under the configured index directory. It holds one index file per backed-up
+ * directory. An index file is a text file sorted by path (in byte order, i.e. as
+ * produced by {@code LC_ALL=C sort}) with one line per regular file:
+ *
+ * <pre>
+ * path TAB size TAB mtime TAB ctime TAB inode
+ * </pre>
+ *
+ * where mtime and ctime are in the {@code %T@}/{@code %C@} format of {@code find}.
+ * With content-based change detection, a line may end with an additional field
+ * holding the hash of the file content (see {@link ContentHasher}).
+ *
+ * A backup writes the index of its scan into a pending file, which replaces the
+ * current index only after the backup data was successfully transferred. The next
+ * incremental backup then finds the changed files by looking up each line of a new scan
+ * in the current index instead of comparing the modification times against the last
+ * backup time. As a result, files copied with their modification time preserved
+ * (e.g. {@code cp -p} or {@code rsync -t}) are still detected, because their inode and
+ * change time differ.
+ */
+@Component
+public class FileStateIndex {
+
+	private static final String INDEX_FILE_PREFIX		= "files-";
+	private static final String INDEX_FILE_SUFFIX		= ".idx";
+	private static final String PENDING_FILE_SUFFIX	= ".new";
+	private static final String SIGNATURE_DIR_SUFFIX	= ".sig";
+
+	private static Logger logger = LoggerFactory.getLogger(FileStateIndex.class);
+
+	@Value("${samplefs.fsservice.index.dir}")
+	private String indexDir;
+
+	public Path getStateDirectory(String appName, String appId, String appHost) {
+		Path stateDir = Paths.get(indexDir, toFileName(appName), toFileName(appId), toFileName(appHost));
+		try {
+			// Created by the plugin itself (rather than via OSCommand), so that it can
+			// read, rename and delete the index files written into it by the OS commands.
+			Files.createDirectories(stateDir);
+		} catch (IOException e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		return stateDir;
+	}
+
+	/**
+	 * Returns the existing state directories of the given application object, one per host.
+	 */
+	public List<Path> findStateDirectories(String appName, String appId) throws IOException {
+		Path appDir = Paths.get(indexDir, toFileName(appName), toFileName(appId));
+		if(!Files.isDirectory(appDir))
+			return new ArrayList<>();
+		try(Stream<Path> dirs = Files.list(appDir)) {
+			return dirs.filter(Files::isDirectory)
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	public Path getIndexFile(Path stateDir, String dirPath) {
+		return stateDir.resolve(INDEX_FILE_PREFIX + DigestUtils.sha1Hex(dirPath) + INDEX_FILE_SUFFIX);
+	}
+
+	public Path getPendingIndexFile(Path stateDir, String dirPath) {
+		return stateDir.resolve(INDEX_FILE_PREFIX + DigestUtils.sha1Hex(dirPath) + INDEX_FILE_SUFFIX + PENDING_FILE_SUFFIX);
+	}
+
+	/**
+	 * Returns whether the index updated last in the given state directory, if any, is that of the
+	 * given directory, i.e. whether the backup chain of the object is of that directory.
+	 */
+	public boolean isLastIndexed(Path stateDir, String dirPath) {
+		Path lastIndexFile = null;
+		long lastModified = Long.MIN_VALUE;
+		try(Stream<Path> files = Files.list(stateDir)) {
+			for(Path file : (Iterable<Path>) files::iterator) {
+				String name = file.getFileName().toString();
+				if(!name.startsWith(INDEX_FILE_PREFIX) || !name.endsWith(INDEX_FILE_SUFFIX))
+					continue;
+				long modified = Files.getLastModifiedTime(file).toMillis();
+				if(modified > lastModified) {
+					lastIndexFile = file;
+					lastModified = modified;
+				}
+			}
+		} catch (IOException e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		return lastIndexFile == null || lastIndexFile.equals(getIndexFile(stateDir, dirPath));
+	}
+
+	/**
+	 * Returns the directory holding the block signatures of the large files of the given
+	 * index (see {@link BlockDelta}).
+	 */
+	public Path getSignatureDirectory(Path indexFile) {
+		String name = indexFile.getFileName().toString();
+		return indexFile.resolveSibling(name.substring(0, name.length() - INDEX_FILE_SUFFIX.length()) + SIGNATURE_DIR_SUFFIX);
+	}
+
+	Path getSignatureFile(Path signatureDir, String filePath) {
+		return signatureDir.resolve(DigestUtils.sha1Hex(filePath));
+	}
+
+	Path getPendingSignatureFile(Path signatureDir, String filePath) {
+		return signatureDir.resolve(DigestUtils.sha1Hex(filePath) + PENDING_FILE_SUFFIX);
+	}
+
+	/**
+	 * Drops the signature of the given file along with the pending index, because the file
+	 * was backed up as a whole. An empty pending signature stands for the deletion.
+	 */
+	void invalidateSignature(Path signatureDir, String filePath) throws IOException {
+		if(Files.exists(getSignatureFile(signatureDir, filePath)))
+			Files.write(getPendingSignatureFile(signatureDir, filePath), new byte[0]);
+	}
+
+	/**
+	 * Removes all the signatures of the given index. Must be called before a full backup,
+	 * since the blocks of the next incremental backup must be compared against the full one.
+	 */
+	public void clearSignatures(Path indexFile) throws IOException {
+		Path signatureDir = getSignatureDirectory(indexFile);
+		if(Files.exists(signatureDir)) {
+			FileUtils.deleteDirectory(signatureDir.toFile());
+			logger.info("Removed the block signatures {}", signatureDir);
+		}
+	}
+
+	public void commit(Path pendingIndexFile, Path indexFile) throws IOException {
+		// The signatures first, since they must match the transferred deltas in any case
+		commitSignatures(getSignatureDirectory(indexFile));
+		Files.move(pendingIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Updated the file state index {}", indexFile);
+	}
+
+	public void discard(Path pendingIndexFile) {
+		try {
+			if(Files.deleteIfExists(pendingIndexFile))
+				logger.info("Discarded the pending file state index {}", pendingIndexFile);
+			String name = pendingIndexFile.getFileName().toString();
+			Path indexFile = pendingIndexFile.resolveSibling(name.substring(0, name.length() - PENDING_FILE_SUFFIX.length()));
+			for(Path pendingSignature : listPendingSignatures(getSignatureDirectory(indexFile)))
+				Files.delete(pendingSignature);
+		} catch (IOException e) {
+			logger.warn("Could not discard the pending file state index {}", pendingIndexFile, e);
+		}
+	}
+
+	private void commitSignatures(Path signatureDir) throws IOException {
+		for(Path pendingSignature : listPendingSignatures(signatureDir)) {
+			String name = pendingSignature.getFileName().toString();
+			Path signature = pendingSignature.resolveSibling(name.substring(0, name.length() - PENDING_FILE_SUFFIX.length()));
+			try {
+				if(Files.size(pendingSignature) == 0) {
+					Files.deleteIfExists(signature);
+					Files.delete(pendingSignature);
+				} else {
+					Files.move(pendingSignature, signature, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+			} catch (IOException e) {
+				// An outdated signature would make the next delta apply to the wrong blocks,
+				// whereas without a signature the next delta holds the whole file
+				logger.warn("Could not update the block signature {}", signature, e);
+				Files.deleteIfExists(signature);
+			}
+		}
+	}
+
+	private List<Path> listPendingSignatures(Path signatureDir) throws IOException {
+		if(!Files.isDirectory(signatureDir))
+			return List.of();
+		try(Stream<Path> files = Files.list(signatureDir)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(PENDING_FILE_SUFFIX))
+					.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Returns those of the given paths (relative to the given directory) of which the
+	 * index has no file, i.e. the files deleted by the time of the indexed backup, or
+	 * null if there is no index.
+	 */
+	public List<String> selectUnindexedFiles(Path indexFile, String dirPath, List<String> relativePaths) throws IOException {
+		try(MappedFileStateIndex index = MappedFileStateIndex.open(indexFile)) {
+			if(index == null)
+				return null;
+			List<String> unindexed = new ArrayList<>();
+			for(String relativePath : relativePaths) {
+				byte[] path = (dirPath + "/" + relativePath).getBytes(StandardCharsets.UTF_8);
+				if(index.find(path, 0, path.length) < 0)
+					unindexed.add(relativePath);
+			}
+			return unindexed;
+		}
+	}
+
+	/**
+	 * Writes the given index into the pending index, with the lines of the files matching
+	 * {@code replaced} left out and the given lines (in the index format, in any order)
+	 * merged in. This updates the index from the states of the changed files only, e.g. as
+	 * recorded by the {@link ChangeTracker}, instead of a scan of the whole directory.
+	 */
+	void merge(Path indexFile, Path pendingIndexFile, Predicate<String> replaced, byte[] lines) throws IOException {
+		List<byte[]> newLines = new ArrayList<>();
+		for(int start = 0, end; start < lines.length; start = end + 1) {
+			end = start;
+			while(end < lines.length && lines[end] != '\n')
+				end++;
+			if(end > start)
+				newLines.add(Arrays.copyOfRange(lines, start, end));
+		}
+		// Same order as LC_ALL=C sort
+		newLines.sort(Arrays::compareUnsigned);
+
+		try(InputStream in = new BufferedInputStream(Files.newInputStream(indexFile));
+			OutputStream out = new BufferedOutputStream(Files.newOutputStream(pendingIndexFile))) {
+			ScanLineReader reader = new ScanLineReader(in);
+			int next = 0;
+			while(reader.next()) {
+				byte[] buf = reader.buffer();
+				String path = new String(buf, reader.lineStart(), reader.pathEnd() - reader.lineStart(), StandardCharsets.UTF_8);
+				if(replaced.test(path))
+					continue;
+				for(; next < newLines.size(); next++) {
+					byte[] newLine = newLines.get(next);
+					if(Arrays.compareUnsigned(newLine, 0, newLine.length, buf, reader.lineStart(), reader.lineEnd()) > 0)
+						break;
+					out.write(newLine);
+					out.write('\n');
+				}
+				reader.writeLine(out);
+			}
+			for(; next < newLines.size(); next++) {
+				out.write(newLines.get(next));
+				out.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * Reads the lines of a scan (in the index format, in any order) from the given stream
+	 * and writes the path of each file that was added or changed since the previous index
+	 * to {@code changedFiles}, one per line. If there is no previous index (e.g. first
+	 * incremental backup after upgrading the plugin), it falls back to selecting the files
+	 * modified after the given time. Optionally, each scanned line is also copied to
+	 * {@code scanCopy}. The data are processed line by line as they arrive, without
+	 * allocating anything per line. Returns the number of selected files.
+	 *
+	 * If a {@code hasher} is given, the content of each file whose state differs from the
+	 * previous index is hashed, and the file is only selected if its content hash differs
+	 * as well (or is not known). The content hashes are appended to the lines copied to
+	 * {@code scanCopy}, and carried over from the previous index for the files whose state
+	 * did not change. So, only the files whose state changed are read. The lines of hashed
+	 * files are written once hashed, i.e. not in the order of the scan.
+	 */
+	public long selectChangedFiles(InputStream scan, OutputStream scanCopy, Path previousIndexFile, long since,
+			OutputStream changedFiles) throws IOException {
+		return selectChangedFiles(scan, scanCopy, previousIndexFile, since, null, toSink(changedFiles));
+	}
+
+	/**
+	 * Receives the selected files, i.e. their lines of the scan and their sizes.
+	 */
+	@FunctionalInterface
+	interface ChangedFileSink {
+		void add(byte[] buf, int lineStart, int pathEnd, int lineEnd, long size) throws IOException;
+	}
+
+	static ChangedFileSink toSink(OutputStream changedFiles) {
+		return (buf, lineStart, pathEnd, lineEnd, size) -> {
+			changedFiles.write(buf, lineStart, pathEnd - lineStart);
+			changedFiles.write('\n');
+		};
+	}
+
+	long selectChangedFiles(InputStream scan, OutputStream scanCopy, Path previousIndexFile, long since,
+			ContentHasher hasher, ChangedFileSink changedFiles) throws IOException {
+		try(MappedFileStateIndex previous = MappedFileStateIndex.open(previousIndexFile)) {
+			if(previous == null)
+				logger.info("No file state index found; selecting files modified since {}", since);
+			return selectChangedFiles(scan, scanCopy, previous, since, hasher, changedFiles);
+		}
+	}
+
+	/**
+	 * Same as {@link #selectChangedFiles(InputStream, OutputStream, Path, long, ContentHasher, ChangedFileSink)},
+	 * with the previous index already opened, or null if there is none, e.g. to look up the
+	 * scans of many directories in turn.
+	 */
+	long selectChangedFiles(InputStream scan, OutputStream scanCopy, MappedFileStateIndex previous, long since,
+			ContentHasher hasher, ChangedFileSink changedFiles) throws IOException {
+		ScanLineReader reader = new ScanLineReader(scan);
+		Deque<HashedLine> hashing = new ArrayDeque<>();
+		int maxHashing = hasher != null ? hasher.getParallelism() * 16 : 0;
+		long count = 0;
+		while(reader.next()) {
+			byte[] buf = reader.buffer();
+			if(previous == null) {
+				if(scanCopy != null)
+					reader.writeLine(scanCopy);
+				if(reader.modTime() > since) {
+					changedFiles.add(buf, reader.lineStart(), reader.pathEnd(), reader.lineEnd(), reader.size());
+					count++;
+				}
+				continue;
+			}
+			
+			long line = previous.find(buf, reader.lineStart(), reader.pathEnd());
+			boolean changed = line < 0 || !previous.matchesLine(line, buf, reader.lineStart(), reader.lineEnd());
+			if(hasher == null || !changed) {
+				if(scanCopy != null) {
+					scanCopy.write(buf, reader.lineStart(), reader.lineEnd() - reader.lineStart());
+					if(hasher != null)
+						previous.writeContentHash(line, scanCopy);
+					scanCopy.write('\n');
+				}
+				if(changed) {
+					changedFiles.add(buf, reader.lineStart(), reader.pathEnd(), reader.lineEnd(), reader.size());
+					count++;
+				}
+				continue;
+			}
+			
+			// The state changed, so whether the content did is up to the hash
+			hashing.add(new HashedLine(buf, reader.lineStart(), reader.lineEnd(), reader.pathEnd(), reader.size(),
+					line >= 0 ? previous.getContentHash(line) : null, hasher));
+			while(!hashing.isEmpty() && (hashing.size() > maxHashing || hashing.peek().isDone()))
+				count += hashing.poll().write(scanCopy, changedFiles);
+		}
+		while(!hashing.isEmpty())
+			count += hashing.poll().write(scanCopy, changedFiles);
+		return count;
+	}
+
+	// Scan line of a file whose content is being hashed
+	private static class HashedLine {
+		private final byte[] line;
+		private final int pathLength;
+		private final long size;
+		private final String previousHash;
+		private final Future<String> hash;
+
+		HashedLine(byte[] buf, int lineStart, int lineEnd, int pathEnd, long size, String previousHash, ContentHasher hasher) {
+			this.line = Arrays.copyOfRange(buf, lineStart, lineEnd);
+			this.pathLength = pathEnd - lineStart;
+			this.size = size;
+			this.previousHash = previousHash;
+			this.hash = hasher.hash(new String(line, 0, pathLength, StandardCharsets.UTF_8));
+		}
+
+		boolean isDone() {
+			return hash.isDone();
+		}
+
+		// Writes the line with its hash, and the path if the content changed. Returns 1 if so.
+		int write(OutputStream scanCopy, ChangedFileSink changedFiles) throws IOException {
+			String contentHash;
+			try {
+				contentHash = hash.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+			if(scanCopy != null) {
+				scanCopy.write(line);
+				if(contentHash != null) {
+					scanCopy.write('\t');
+					scanCopy.write(contentHash.getBytes(StandardCharsets.US_ASCII));
+				}
+				scanCopy.write('\n');
+			}
+			if(contentHash != null && contentHash.equals(previousHash))
+				return 0;
+			changedFiles.add(line, 0, pathLength, line.length, size);
+			return 1;
+		}
+	}
+
+	static String toFileName(String value) {
+		return value.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+}
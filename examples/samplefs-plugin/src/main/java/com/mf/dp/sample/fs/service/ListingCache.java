@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.FileEntry;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Least recently used cache of directory listings, keyed by the directory and whether
+ * symbolic links are followed, within a budget of entries and of estimated heap bytes.
+ *
+ * A listing is only served from the cache while the modification time of the directory,
+ * which changes whenever an entry is added, removed or renamed, is the one it had before
+ * the listing was made. A listing made within {@value #RACY_MILLIS} ms of that modification
+ * time is not cached, since the directory could still be modified within the same timestamp
+ * tick, i.e. without the time changing (the "racily clean" entries of git). Checking the
+ * time takes a {@code stat} by <em>dpuic</em>, rather than a {@code find} through
+ * {@code OSCommand}; directories that <em>dpuic</em> cannot stat are never cached. As the
+ * type of the target of a followed symbolic link can change without the directory being
+ * modified, listings can also be given a time to live.
+ *
+ * The hits, misses and evictions are reported as metrics of the registry of the UIC.
+ */
+@Component
+public class ListingCache implements MeterBinder {
+
+	// Estimated heap bytes of a cached entry besides the characters of its path
+	private static final long ENTRY_OVERHEAD = 64;
+
+	// Coarsest timestamp tick of the file systems in use (2 seconds on FAT)
+	private static final long RACY_MILLIS = 2000;
+
+	private static Logger logger = LoggerFactory.getLogger(ListingCache.class);
+
+	// Number of listings cached at most; 0 disables the cache
+	@Value("${samplefs.listing-cache.max-entries:1000}")
+	private int maxEntries;
+
+	@Value("${samplefs.listing-cache.max-bytes:67108864}")
+	private long maxBytes;
+
+	// Seconds a listing is served at most; 0 means as long as the directory is not modified
+	@Value("${samplefs.listing-cache.ttl:0}")
+	private long ttl;
+
+	// Guarded by this, in the order of access
+	private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Listing {
+		private final List<FileEntry> entries;
+		private final FileTime modTime;
+		private final long loadedAt;
+		private final long bytes;
+
+		Listing(List<FileEntry> entries, FileTime modTime, long loadedAt, long bytes) {
+			this.entries = entries;
+			this.modTime = modTime;
+			this.loadedAt = loadedAt;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Returns the listing of the given directory from the cache if it is still valid, or else
+	 * from the given loader. The listing returned is not to be modified.
+	 */
+	public List<FileEntry> get(String dirPath, boolean followSymbolicLinks, Supplier<List<FileEntry>> loader) {
+		if(maxEntries <= 0)
+			return loader.get();
+		
+		// Taken before the listing is made, so that a change while listing invalidates it
+		long listedAt = System.currentTimeMillis();
+		FileTime modTime = getDirectoryModificationTime(dirPath, followSymbolicLinks);
+		if(modTime == null) {
+			misses.incrementAndGet();
+			return loader.get();
+		}
+		
+		String key = key(dirPath, followSymbolicLinks);
+		List<FileEntry> cached = lookup(key, modTime);
+		if(cached != null)
+			return cached;
+		
+		List<FileEntry> entries = Collections.unmodifiableList(loader.get());
+		long size = 0;
+		for(FileEntry entry : entries)
+			size += ENTRY_OVERHEAD + 2L * entry.getFilePath().length();
+		if(size <= maxBytes && modTime.toMillis() < listedAt - RACY_MILLIS)
+			put(key, new Listing(entries, modTime, listedAt, size));
+		return entries;
+	}
+
+	/**
+	 * Returns the listing of the given directory from the cache if it is still valid, or else
+	 * null. Unlike {@link #get}, this never lists the directory, e.g. for a page of a directory
+	 * that may be too large to be listed at once.
+	 */
+	public List<FileEntry> getIfPresent(String dirPath, boolean followSymbolicLinks) {
+		if(maxEntries <= 0)
+			return null;
+		
+		FileTime modTime = getDirectoryModificationTime(dirPath, followSymbolicLinks);
+		if(modTime == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		return lookup(key(dirPath, followSymbolicLinks), modTime);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		FunctionCounter.builder("samplefs.listing.cache.hits", hits, AtomicLong::get)
+		.description("Directory listings served from the cache")
+		.register(registry);
+		FunctionCounter.builder("samplefs.listing.cache.misses", misses, AtomicLong::get)
+		.description("Directory listings made with find")
+		.register(registry);
+		FunctionCounter.builder("samplefs.listing.cache.evictions", evictions, AtomicLong::get)
+		.description("Directory listings evicted from the cache to stay within its budget")
+		.register(registry);
+		Gauge.builder("samplefs.listing.cache.size", this, ListingCache::size)
+		.description("Directory listings in the cache")
+		.register(registry);
+		Gauge.builder("samplefs.listing.cache.bytes", this, ListingCache::bytes)
+		.description("Estimated heap bytes of the directory listings in the cache")
+		.baseUnit("bytes")
+		.register(registry);
+	}
+
+	// Returns the cached listing if it has the given modification time and has not expired
+	private synchronized List<FileEntry> lookup(String key, FileTime modTime) {
+		Listing listing = listings.get(key);
+		if(listing != null) {
+			if(listing.modTime.equals(modTime) && !isExpired(listing)) {
+				hits.incrementAndGet();
+				return listing.entries;
+			}
+			remove(key);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	private static String key(String dirPath, boolean followSymbolicLinks) {
+		return (followSymbolicLinks ? "L:" : "P:") + dirPath;
+	}
+
+	private synchronized double size() {
+		return listings.size();
+	}
+
+	private synchronized double bytes() {
+		return bytes;
+	}
+
+	private synchronized void put(String key, Listing listing) {
+		Listing previous = listings.put(key, listing);
+		if(previous != null)
+			bytes -= previous.bytes;
+		bytes += listing.bytes;
+		
+		// Evict the least recently used listings
+		Iterator<Map.Entry<String, Listing>> eldest = listings.entrySet().iterator();
+		while((listings.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+			Listing evicted = eldest.next().getValue();
+			eldest.remove();
+			bytes -= evicted.bytes;
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void remove(String key) {
+		Listing listing = listings.remove(key);
+		if(listing != null)
+			bytes -= listing.bytes;
+	}
+
+	private boolean isExpired(Listing listing) {
+		return ttl > 0 && System.currentTimeMillis() - listing.loadedAt > TimeUnit.SECONDS.toMillis(ttl);
+	}
+
+	private static FileTime getDirectoryModificationTime(String dirPath, boolean followSymbolicLinks) {
+		try {
+			LinkOption[] linkOptions = followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+			BasicFileAttributes attrs = Files.readAttributes(Paths.get(dirPath), BasicFileAttributes.class, linkOptions);
+			return attrs.isDirectory() ? attrs.lastModifiedTime() : null;
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Not caching the listing of {}, which cannot be checked for changes", dirPath, e);
+			return null;
+		}
+	}
+}
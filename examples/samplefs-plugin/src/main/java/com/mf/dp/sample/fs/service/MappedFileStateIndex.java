@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only, memory-mapped view of a file state index (see {@link FileStateIndex}).
+ *
+ * Lookups are binary searches over the sorted lines of the file, so the index is
+ * never loaded onto the heap and a lookup does not allocate anything.
+ *
+ * The lines may have a content hash (see {@link ContentHasher}) as an additional last
+ * field. It is not part of the state compared by the lookups.
+ */
+final class MappedFileStateIndex implements Closeable {
+
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+	private static final byte[] PREFIX = ContentHasher.PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+	private final FileChannel channel;
+	private final MappedByteBuffer[] chunks;
+	private final long size;
+
+	private MappedFileStateIndex(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.size = channel.size();
+		// A single mapping is limited to 2GB
+		this.chunks = new MappedByteBuffer[(int) ((size + CHUNK_MASK) >>> CHUNK_BITS)];
+		for(int i = 0; i < chunks.length; i++) {
+			long offset = (long) i << CHUNK_BITS;
+			chunks[i] = channel.map(MapMode.READ_ONLY, offset, Math.min(size - offset, 1L << CHUNK_BITS));
+		}
+	}
+
+	/**
+	 * Returns the mapped index, or null if the given file does not exist or is empty.
+	 */
+	static MappedFileStateIndex open(Path indexFile) throws IOException {
+		if(indexFile == null || !Files.isRegularFile(indexFile) || Files.size(indexFile) == 0)
+			return null;
+		FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+		try {
+			return new MappedFileStateIndex(channel);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns true if the index contains exactly the given line, i.e. the file
+	 * is known and its size, times and inode are unchanged.
+	 */
+	boolean containsLine(byte[] buf, int lineStart, int lineEnd, int pathEnd) {
+		long line = find(buf, lineStart, pathEnd);
+		return line >= 0 && matchesLine(line, buf, lineStart, lineEnd);
+	}
+
+	/**
+	 * Returns true if the line at the given offset starts with the fields of the given line.
+	 * The line of the index may have an additional content hash field.
+	 */
+	boolean matchesLine(long line, byte[] buf, int lineStart, int lineEnd) {
+		long pos = line;
+		for(int i = lineStart; i < lineEnd; i++, pos++) {
+			if(pos >= size || get(pos) != buf[i])
+				return false;
+		}
+		return pos == size || get(pos) == '\n' || get(pos) == '\t';
+	}
+
+	/**
+	 * Returns the content hash field of the line at the given offset, or null if it has none.
+	 */
+	String getContentHash(long line) {
+		long start = contentHashStart(line);
+		if(start < 0)
+			return null;
+		StringBuilder hash = new StringBuilder();
+		for(long pos = start; pos < size && get(pos) != '\n'; pos++)
+			hash.append((char) get(pos));
+		return hash.toString();
+	}
+
+	/**
+	 * Writes the content hash field of the line at the given offset, preceded by a TAB,
+	 * to the given stream. Does nothing if the line has none.
+	 */
+	void writeContentHash(long line, OutputStream out) throws IOException {
+		long start = contentHashStart(line);
+		if(start < 0)
+			return;
+		out.write('\t');
+		for(long pos = start; pos < size && get(pos) != '\n'; pos++)
+			out.write(get(pos));
+	}
+
+	// The content hash is the last field, which is told from the inode by its prefix
+	private long contentHashStart(long line) {
+		long end = nextLineStart(line) - 1;
+		long start = end;
+		while(start > line && get(start - 1) != '\t')
+			start--;
+		if(start == line || end - start <= PREFIX.length)
+			return -1;
+		for(int i = 0; i < PREFIX.length; i++) {
+			if(get(start + i) != PREFIX[i])
+				return -1;
+		}
+		return start;
+	}
+
+	/**
+	 * Returns the offset of the line with the given path, or -1.
+	 */
+	long find(byte[] buf, int pathStart, int pathEnd) {
+		long lo = 0;
+		long hi = size;
+		while(lo < hi) {
+			long mid = lineStartAt(lo + (hi - lo) / 2, lo);
+			if(comparePath(mid, buf, pathStart, pathEnd) < 0)
+				lo = nextLineStart(mid);
+			else
+				hi = mid;
+		}
+		return lo < size && comparePath(lo, buf, pathStart, pathEnd) == 0 ? lo : -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private byte get(long pos) {
+		return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+	}
+
+	private long lineStartAt(long pos, long floor) {
+		while(pos > floor && get(pos - 1) != '\n')
+			pos--;
+		return pos;
+	}
+
+	private long nextLineStart(long pos) {
+		while(pos < size && get(pos) != '\n')
+			pos++;
+		return pos + 1;
+	}
+
+	// Compares the path of the line at the given offset with the given path in unsigned
+	// byte order, which is the order of LC_ALL=C sort. The path of an index line ends at
+	// the first TAB that is followed by the remaining four fields, but since TABs in file
+	// names are exceedingly rare, the first TAB is taken as the end.
+	private int comparePath(long line, byte[] buf, int pathStart, int pathEnd) {
+		int length = pathEnd - pathStart;
+		for(int i = 0; ; i++) {
+			long pos = line + i;
+			int a = pos < size ? get(pos) & 0xff : '\n';
+			boolean endOfIndexPath = a == '\t' || a == '\n';
+			boolean endOfPath = i == length;
+			if(endOfIndexPath || endOfPath) {
+				if(endOfIndexPath && endOfPath)
+					return 0;
+				return endOfIndexPath ? -1 : 1;
+			}
+			int b = buf[pathStart + i] & 0xff;
+			if(a != b)
+				return a - b;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans a directory tree within the JVM using NIO, as an alternative to {@code find}
+ * for when <em>dpuic</em> has direct access to the files.
+ *
+ * Each directory is a task of a {@link ForkJoinPool}, so idle workers steal the
+ * subdirectories queued by busy ones and wide trees are scanned in parallel. The
+ * file states are written in the format of {@link FileStateIndex}, with the times
+ * formatted like {@code %T@} of {@code find}, so that the index does not depend
+ * on the scan engine used.
+ *
+ * A directory that cannot be read with the permissions of <em>dpuic</em>, or an
+ * entry whose attributes it cannot read, is handed over to the given fallback,
+ * which is expected to scan that subtree with {@code find} through {@code OSCommand}.
+ */
+final class ParallelFileWalker {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	static final String ATTRIBUTES = "unix:size,lastModifiedTime,ctime,ino,isDirectory,isRegularFile,fileKey";
+
+	private static Logger logger = LoggerFactory.getLogger(ParallelFileWalker.class);
+
+	@FunctionalInterface
+	interface Fallback {
+		/**
+		 * Returns the file states of the given directory tree, or of the given file, one line per file.
+		 */
+		String scan(String dirPath) throws Exception;
+	}
+
+	private final int parallelism;
+	private final Fallback fallback;
+
+	ParallelFileWalker(int parallelism, Fallback fallback) {
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.fallback = fallback;
+	}
+
+	ScanSource start(String dirPath, boolean followSymbolicLinks) {
+		ChunkPipe pipe = new ChunkPipe(parallelism * 4, 1);
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		LinkOption[] linkOptions = followSymbolicLinks ? new LinkOption[0] : new LinkOption[] {LinkOption.NOFOLLOW_LINKS};
+		ForkJoinTask<?> walk = pool.submit(() -> {
+			try {
+				Path root = Paths.get(dirPath);
+				Object rootKey = Files.readAttributes(root, "fileKey", linkOptions).get("fileKey");
+				new DirectoryTask(root, new Ancestor(rootKey, null), linkOptions, pipe).invoke();
+				pipe.producerDone();
+			} catch (Exception e) {
+				pipe.fail(e);
+				throw new IllegalStateException(e);
+			}
+		});
+		logger.info("Scanning {} with {} threads", dirPath, parallelism);
+
+		return new ScanSource() {
+			@Override
+			public InputStream getOutput() {
+				return pipe.getInputStream();
+			}
+
+			@Override
+			public void waitFor() throws IOException, InterruptedException {
+				try {
+					walk.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause() instanceof IllegalStateException && e.getCause().getCause() != null
+							? e.getCause().getCause() : e.getCause();
+					throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				}
+			}
+
+			@Override
+			public void close() {
+				pipe.closeReader();
+				pool.shutdownNow();
+			}
+		};
+	}
+
+	/**
+	 * Returns the line of the given file in the format of {@link FileStateIndex}, given its
+	 * {@link #ATTRIBUTES}.
+	 */
+	static String fileStateLine(Path file, Map<String, Object> attrs) {
+		StringBuilder line = new StringBuilder(file.toString())
+				.append('\t').append(attrs.get("size"))
+				.append('\t');
+		appendTime(line, (FileTime) attrs.get("lastModifiedTime"));
+		line.append('\t');
+		appendTime(line, (FileTime) attrs.get("ctime"));
+		return line.append('\t').append(attrs.get("ino")).append('\n').toString();
+	}
+
+	// Same as %T@ of find, i.e. seconds with a fractional part of 10 digits
+	private static void appendTime(StringBuilder line, FileTime time) {
+		Instant instant = time.toInstant();
+		String nanos = Integer.toString(instant.getNano());
+		line.append(instant.getEpochSecond()).append('.');
+		for(int i = nanos.length(); i < 9; i++)
+			line.append('0');
+		line.append(nanos).append('0');
+	}
+
+	// Chain of the directories from the root, to detect loops when following symbolic links
+	private static class Ancestor {
+		private final Object fileKey;
+		private final Ancestor parent;
+
+		Ancestor(Object fileKey, Ancestor parent) {
+			this.fileKey = fileKey;
+			this.parent = parent;
+		}
+
+		boolean contains(Object key) {
+			for(Ancestor a = this; a != null; a = a.parent) {
+				if(a.fileKey != null && a.fileKey.equals(key))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final Ancestor ancestors;
+		private final LinkOption[] linkOptions;
+		private final ChunkPipe pipe;
+		private final transient ByteArrayOutputStream lines = new ByteArrayOutputStream();
+
+		DirectoryTask(Path dir, Ancestor ancestors, LinkOption[] linkOptions, ChunkPipe pipe) {
+			this.dir = dir;
+			this.ancestors = ancestors;
+			this.linkOptions = linkOptions;
+			this.pipe = pipe;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryTask> subdirs = new ArrayList<>();
+			try {
+				try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+					List<Path> denied = new ArrayList<>();
+					int count = 0;
+					for(Path entry : entries) {
+						count++;
+						Map<String, Object> attrs;
+						try {
+							attrs = Files.readAttributes(entry, ATTRIBUTES, linkOptions);
+						} catch (AccessDeniedException e) {
+							denied.add(entry);
+							continue;
+						} catch (FileSystemException e) {
+							// Vanished in the meantime, or a dangling symbolic link
+							continue;
+						}
+						if(Boolean.TRUE.equals(attrs.get("isDirectory"))) {
+							Object key = attrs.get("fileKey");
+							if(ancestors.contains(key)) {
+								logger.warn("Skipping {}, which is a file system loop", entry);
+								continue;
+							}
+							subdirs.add(new DirectoryTask(entry, new Ancestor(key, ancestors), linkOptions, pipe));
+						} else if(Boolean.TRUE.equals(attrs.get("isRegularFile"))) {
+							appendLine(entry, attrs);
+							if(lines.size() >= CHUNK_SIZE)
+								flush();
+						}
+					}
+					// Entries dpuic may list but not look up, e.g. without search permission on the
+					// directory, in which case none of them could be read and one find does them all
+					if(!denied.isEmpty() && denied.size() == count) {
+						scanWithFallback(dir);
+					} else {
+						for(Path entry : denied)
+							scanWithFallback(entry);
+					}
+				} catch (AccessDeniedException e) {
+					scanWithFallback(dir);
+				}
+				flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			invokeAll(subdirs);
+		}
+
+		private void scanWithFallback(Path path) throws IOException {
+			logger.debug("No access to {}, falling back to the OS command", path);
+			try {
+				String out = fallback.scan(path.toString());
+				// In a single chunk with its last line, so that no other chunk gets in between
+				if(!out.isEmpty() && !out.endsWith("\n"))
+					out += "\n";
+				byte[] bytes = out.getBytes(StandardCharsets.UTF_8);
+				pipe.write(bytes, 0, bytes.length);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException("Could not scan " + path, e);
+			}
+		}
+
+		private void appendLine(Path file, Map<String, Object> attrs) {
+			byte[] bytes = fileStateLine(file, attrs).getBytes(StandardCharsets.UTF_8);
+			lines.write(bytes, 0, bytes.length);
+		}
+
+		private void flush() throws IOException {
+			if(lines.size() > 0) {
+				pipe.write(lines.toByteArray(), 0, lines.size());
+				lines.reset();
+			}
+		}
+	}
+}
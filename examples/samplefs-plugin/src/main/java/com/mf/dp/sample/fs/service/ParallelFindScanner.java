@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scans a directory tree with several {@code find} processes run concurrently
+ * through {@code OSCommand}, i.e. with the <em>sudo</em> capability of the Unified
+ * Integration Controller environment.
+ *
+ * One process scans the files directly in the top-level directory, and one process
+ * per top-level subdirectory scans that subtree. At most {@code parallelism} of them
+ * run at a time. The output of each process is passed on to the reader as soon as
+ * the process completes, so the reader gets a single stream of file states in the
+ * format of {@link FileStateIndex}, in no particular order.
+ *
+ * Since {@code OSCommand} returns the whole output of a command at once, the memory
+ * used is bounded by the output of the largest subtrees being scanned, rather than
+ * by that of the whole tree.
+ */
+final class ParallelFindScanner {
+
+	private static Logger logger = LoggerFactory.getLogger(ParallelFindScanner.class);
+
+	@FunctionalInterface
+	interface Find {
+		/**
+		 * Returns the file states of the given directory tree, one line per file.
+		 * If {@code recursive} is false, only the files directly in the directory
+		 * are returned.
+		 */
+		String scan(String dirPath, boolean recursive) throws Exception;
+	}
+
+	private final int parallelism;
+	private final Find find;
+
+	ParallelFindScanner(int parallelism, Find find) {
+		this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		this.find = find;
+	}
+
+	ScanSource start(String dirPath, List<String> subDirPaths) {
+		ChunkPipe pipe = new ChunkPipe(parallelism * 2, subDirPaths.size() + 1);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<?>> scans = new ArrayList<>();
+		scans.add(executor.submit(() -> scan(pipe, dirPath, false)));
+		for(String subDirPath : subDirPaths)
+			scans.add(executor.submit(() -> scan(pipe, subDirPath, true)));
+		executor.shutdown();
+		logger.info("Scanning {} with {} find processes in {} subtrees", dirPath, Math.min(parallelism, scans.size()), scans.size());
+
+		return new ScanSource() {
+			@Override
+			public InputStream getOutput() {
+				return pipe.getInputStream();
+			}
+
+			@Override
+			public void waitFor() throws IOException, InterruptedException {
+				for(Future<?> scan : scans) {
+					try {
+						scan.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+					}
+				}
+			}
+
+			@Override
+			public void close() {
+				pipe.closeReader();
+				executor.shutdownNow();
+			}
+		};
+	}
+
+	private Void scan(ChunkPipe pipe, String dirPath, boolean recursive) throws IOException {
+		try {
+			String out = find.scan(dirPath, recursive);
+			// In a single chunk with its last line, so that no other chunk gets in between
+			if(!out.isEmpty() && !out.endsWith("\n"))
+				out += "\n";
+			byte[] bytes = out.getBytes(StandardCharsets.UTF_8);
+			pipe.write(bytes, 0, bytes.length);
+			pipe.producerDone();
+			return null;
+		} catch (Exception e) {
+			IOException failure = e instanceof IOException ? (IOException) e : new IOException("Could not scan " + dirPath, e);
+			pipe.fail(failure);
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Files of a source directory copied into a staging directory ahead of the incremental
+ * backup (see {@link PreStager}), along with the state of each file when it was copied.
+ *
+ * When the backup selects a file whose state is still the same, the staged copy is used
+ * as is. A file that changed again is copied once more, and a staged file that the backup
+ * does not select at all is removed, so the staging directory ends up the same as if the
+ * backup had copied all the files itself.
+ */
+public final class PreStage {
+
+	private final String srcDirPath;
+	private final String dirPath;
+	// Path of a staged file -> its line in the format of the file state index when it was copied
+	private final Map<String, String> stagedStates = new ConcurrentHashMap<>();
+	private final Map<String, Long> stagedSizes = new ConcurrentHashMap<>();
+	private final Set<String> selected = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger upToDate = new AtomicInteger();
+	private long stagedBytes;
+
+	PreStage(String srcDirPath, String dirPath) {
+		this.srcDirPath = srcDirPath;
+		this.dirPath = dirPath;
+	}
+
+	public String getSrcDirPath() {
+		return srcDirPath;
+	}
+
+	/**
+	 * Returns the staging directory, to be used as the log directory of the backup.
+	 */
+	public String getDirPath() {
+		return dirPath;
+	}
+
+	public int getFileCount() {
+		return stagedStates.size();
+	}
+
+	/**
+	 * Returns the number of staged files that the backup selected in the same state.
+	 */
+	public int getSelectedCount() {
+		return upToDate.get();
+	}
+
+	long getStagedBytes() {
+		return stagedBytes;
+	}
+
+	boolean isStaged(String filePath, String state) {
+		return state.equals(stagedStates.get(filePath));
+	}
+
+	void staged(String filePath, String state, long size) {
+		stagedStates.put(filePath, state);
+		Long previousSize = stagedSizes.put(filePath, size);
+		stagedBytes += size - (previousSize != null ? previousSize : 0);
+	}
+
+	/**
+	 * Records that the backup selected the file of the given line of a scan, and returns
+	 * whether its staged copy is up to date.
+	 */
+	boolean select(byte[] buf, int lineStart, int pathEnd, int lineEnd) {
+		String filePath = new String(buf, lineStart, pathEnd - lineStart, StandardCharsets.UTF_8);
+		selected.add(filePath);
+		String state = stagedStates.get(filePath);
+		if(state == null || !state.equals(new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8)))
+			return false;
+		upToDate.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the paths (relative to the staging directory) of the staged files that the
+	 * backup did not select.
+	 */
+	List<String> getUnselectedFiles() {
+		return stagedStates.keySet().stream()
+				.filter(filePath -> !selected.contains(filePath))
+				.map(filePath -> filePath.substring(srcDirPath.length() + 1))
+				.collect(Collectors.toList());
+	}
+}
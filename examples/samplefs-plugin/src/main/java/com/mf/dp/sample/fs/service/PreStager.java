@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.Constant;
+import com.mf.dp.uic.command.OSCommand;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.util.DPUtil;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Optionally copies the changed files of the directories tracked by the {@link ChangeTracker}
+ * into a staging directory per source directory ahead of the incremental backup, so that the
+ * backup itself mostly has to transfer the data.
+ *
+ * At every interval, the files recorded in the change journal since the last backup are
+ * copied, unless the system is busy. The copying is throttled to the given rate, and stops
+ * once the staged files take the given quota. The next incremental backup of the directory
+ * claims the staging directory as its log directory and revalidates it (see {@link PreStage}).
+ */
+@Component
+public class PreStager {
+
+	private static final int MAX_BATCH_FILES = 1000;
+	private static final String BATCH_DIR_SUFFIX = "-batch";
+
+	private static Logger logger = LoggerFactory.getLogger(PreStager.class);
+
+	@Value("${samplefs.prestage.enabled:false}")
+	private boolean enabled;
+
+	// Seconds between the rounds of pre-staging
+	@Value("${samplefs.prestage.interval:300}")
+	private long interval;
+
+	// Bytes per second copied at most; 0 means no limit
+	@Value("${samplefs.prestage.rate-limit:52428800}")
+	private long rateLimit;
+
+	// Bytes staged at most per source directory
+	@Value("${samplefs.prestage.quota:10737418240}")
+	private long quota;
+
+	// System load average above which nothing is copied; 0 means the number of processors
+	@Value("${samplefs.prestage.max-load:0}")
+	private double maxLoad;
+
+	@Value("${samplefs.fsservice.copy.mode:copy}")
+	private String copyMode;
+
+	@Value("${samplefs.backup.follow-symbolic-links:true}")
+	private boolean followSymbolicLinks;
+
+	@Autowired
+	private ChangeTracker changeTracker;
+
+	@Autowired
+	private FSService fsService;
+
+	private ScheduledExecutorService scheduler;
+	// Source directory -> its staged files, guarded by this
+	private final Map<String, PreStage> stages = new HashMap<>();
+	// Source directories being backed up, guarded by this
+	private final Set<String> claimed = new HashSet<>();
+
+	@PostConstruct
+	public void start() {
+		if(!enabled)
+			return;
+		if(!copyMode.equals("copy")) {
+			// Staging by reflink takes no time to begin with
+			logger.info("Pre-staging is not used with the copy mode {}", copyMode);
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "samplefs-prestager");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::preStage, interval, interval, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if(scheduler != null)
+			scheduler.shutdownNow();
+	}
+
+	/**
+	 * Hands the staged files of the given source directory over to its backup, or returns
+	 * null if there are none. The staging directory then belongs to the backup, and nothing
+	 * is staged for the directory until {@link #release(String)}.
+	 */
+	public synchronized PreStage claim(String dirPath) {
+		claimed.add(dirPath);
+		PreStage stage = stages.remove(dirPath);
+		if(stage != null)
+			logger.info("Handing {} pre-staged files of {} over to the backup", stage.getFileCount(), dirPath);
+		return stage;
+	}
+
+	public synchronized void release(String dirPath) {
+		claimed.remove(dirPath);
+	}
+
+	private void preStage() {
+		for(String dirPath : changeTracker.getDirPaths()) {
+			try {
+				preStage(dirPath);
+			} catch (Exception e) {
+				logger.warn("Could not pre-stage the changed files of {}", dirPath, e);
+			}
+		}
+	}
+
+	private void preStage(String dirPath) throws Exception {
+		if(isBusy())
+			return;
+		Set<String> recordedPaths = changeTracker.getRecordedPaths(dirPath);
+		if(recordedPaths == null || recordedPaths.isEmpty())
+			return;
+		byte[] states = fsService.readFileStates(recordedPaths, followSymbolicLinks, new HashSet<>(), new HashSet<>());
+
+		PreStage stage = getStage(dirPath);
+		if(stage == null)
+			return;
+		ScanLineReader reader = new ScanLineReader(new ByteArrayInputStream(states));
+		List<String> batch = new ArrayList<>();
+		List<String> batchStates = new ArrayList<>();
+		List<Long> batchSizes = new ArrayList<>();
+		long batchBytes = 0;
+		long stagedBytes = stage.getStagedBytes();
+		while(reader.next()) {
+			String filePath = new String(reader.buffer(), reader.lineStart(), reader.pathEnd() - reader.lineStart(), StandardCharsets.UTF_8);
+			String state = new String(reader.buffer(), reader.lineStart(), reader.lineEnd() - reader.lineStart(), StandardCharsets.UTF_8);
+			long size = reader.size();
+			if(stage.isStaged(filePath, state) || stagedBytes + batchBytes + size > quota)
+				continue;
+			batch.add(filePath.substring(dirPath.length() + 1));
+			batchStates.add(state);
+			batchSizes.add(size);
+			batchBytes += size;
+			if(batch.size() >= MAX_BATCH_FILES || (rateLimit > 0 && batchBytes >= rateLimit)) {
+				if(!copy(dirPath, stage, batch, batchStates, batchSizes, batchBytes) || isBusy())
+					return;
+				stagedBytes = stage.getStagedBytes();
+				batch.clear();
+				batchStates.clear();
+				batchSizes.clear();
+				batchBytes = 0;
+			}
+		}
+		if(!batch.isEmpty())
+			copy(dirPath, stage, batch, batchStates, batchSizes, batchBytes);
+	}
+
+	// Copies a batch of files into the stage, unless it was claimed in the meantime, and
+	// then waits as long as the rate limit requires. Returns false if the stage was claimed.
+	// The files are copied into a batch directory without holding the lock, so that a backup
+	// claiming the stage does not wait for the copy, and only linked into the stage under the
+	// lock, so that nothing is written into the stage once the backup owns it.
+	private boolean copy(String dirPath, PreStage stage, List<String> files, List<String> states, List<Long> sizes, long bytes)
+			throws Exception {
+		long start = System.currentTimeMillis();
+		synchronized(this) {
+			if(stages.get(dirPath) != stage)
+				return false;
+		}
+		String batchDirPath = stage.getDirPath() + BATCH_DIR_SUFFIX;
+		OSCommand osCommand = new OSCommand();
+		osCommand.createDirectories(batchDirPath);
+		osCommand.chmod(batchDirPath, 600, false);
+		try {
+			try {
+				fsService.copyFiles(dirPath, batchDirPath, files);
+			} catch (ServiceException e) {
+				logger.warn("Could not pre-stage some of {} files of {}", files.size(), dirPath, e);
+			}
+			// Only the copies found with the size and modification time of the state are staged,
+			// so that a file that failed to copy is left to the backup
+			Map<String, String> copies = fsService.readSizesAndTimes(batchDirPath, files);
+			List<Integer> copied = new ArrayList<>();
+			List<String> copiedFiles = new ArrayList<>();
+			for(int i = 0; i < files.size(); i++) {
+				String state = states.get(i);
+				int sizeStart = state.indexOf('\t', dirPath.length() + 1 + files.get(i).length()) + 1;
+				int timeEnd = state.indexOf('\t', state.indexOf('\t', sizeStart) + 1);
+				if(state.substring(sizeStart, timeEnd).equals(copies.get(files.get(i)))) {
+					copied.add(i);
+					copiedFiles.add(files.get(i));
+				}
+			}
+			synchronized(this) {
+				if(stages.get(dirPath) != stage)
+					return false;
+				try {
+					if(!copiedFiles.isEmpty())
+						fsService.moveFiles(batchDirPath, stage.getDirPath(), copiedFiles);
+				} catch (ServiceException e) {
+					// The staged copies of these files, if any, are outdated anyway, so the backup copies them again
+					fsService.removeFiles(stage.getDirPath(), copiedFiles);
+					throw e;
+				}
+				for(int i : copied)
+					stage.staged(dirPath + "/" + files.get(i), states.get(i), sizes.get(i));
+			}
+			logger.debug("Pre-staged {} of {} files ({} bytes) of {}", copied.size(), files.size(), bytes, dirPath);
+		} finally {
+			osCommand.removeDirectoryContent(batchDirPath);
+		}
+		if(rateLimit > 0) {
+			long due = start + bytes * 1000 / rateLimit;
+			long now = System.currentTimeMillis();
+			if(due > now)
+				Thread.sleep(due - now);
+		}
+		return true;
+	}
+
+	private synchronized PreStage getStage(String dirPath) throws Exception {
+		if(claimed.contains(dirPath))
+			return null;
+		PreStage stage = stages.get(dirPath);
+		if(stage == null) {
+			String stageDirPath = DPUtil.getBackupTempDirectory(Constant.PLUGIN_NAME, "prestage-" + DigestUtils.sha1Hex(dirPath));
+			OSCommand osCommand = new OSCommand();
+			osCommand.createDirectories(stageDirPath);
+			osCommand.removeDirectoryContent(stageDirPath);
+			osCommand.chmod(stageDirPath, 600, false);
+			stage = new PreStage(dirPath, stageDirPath);
+			stages.put(dirPath, stage);
+		}
+		return stage;
+	}
+
+	private boolean isBusy() {
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		double limit = maxLoad > 0 ? maxLoad : Runtime.getRuntime().availableProcessors();
+		if(load >= limit) {
+			logger.debug("Not pre-staging, since the load average {} is above {}", load, limit);
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.CompressionStats;
+import com.mf.dp.sample.fs.model.RestorePlan;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.util.ExceptionUtil;
+
+/**
+ * Plans the restore of a chain of incremental backups so that every file is copied
+ * only once.
+ *
+ * An incremental backup of SampleFS holds the whole content of each file changed since
+ * the previous backup, so the newest copy of a file in the chain supersedes all older
+ * ones. Applying the incremental backups one after another gives the same end state, but
+ * copies a file as many times as it changed. The planner walks the chain newest-first
+ * instead and picks each file from the first (i.e. newest) backup that contains it.
+ *
+ * As a result, the sets of files picked from the backups are disjoint, and the plan can
+ * be carried out in any order, e.g. by several workers at once.
+ *
+ * A large file may be held as a block delta instead (see {@link BlockDelta}), which only
+ * makes sense on top of the older versions of the file. So the deltas of a file are
+ * collected up to its newest whole copy in the chain, if any, and applied to it in order,
+ * once all the whole files are in place.
+ *
+ * A file stored as chunks (see {@link StagedFileDeduplicator}) counts as a whole copy held by
+ * the backup whose manifest lists it, although its chunks may come from older backups.
+ */
+@Component
+public class RestorePlanner {
+
+	private static Logger logger = LoggerFactory.getLogger(RestorePlanner.class);
+
+	@Autowired
+	private FSService fsService;
+
+	@Autowired
+	private StagedFileCompressor stagedFileCompressor;
+
+	@Autowired
+	private StagedFileDeduplicator stagedFileDeduplicator;
+
+	/**
+	 * Returns the plan for the given incremental backup directories, which must be
+	 * in the order of the chain (oldest first).
+	 */
+	public RestorePlan plan(List<String> incrBackupDirPaths) throws ServiceException {
+		RestorePlan plan = new RestorePlan();
+		Set<String> planned = new HashSet<>();
+		long superseded = 0;
+		for(int i = incrBackupDirPaths.size() - 1; i >= 0; i--) {
+			String incrBackupDirPath = incrBackupDirPaths.get(i);
+			List<String> files = new ArrayList<>();
+			boolean deduplicated = stagedFileDeduplicator.isDeduplicated(incrBackupDirPath);
+			for(String file : fsService.listFiles(incrBackupDirPath)) {
+				if(deduplicated && file.startsWith(StagedFileDeduplicator.DIR_NAME + "/")) {
+					continue;
+				} else if(file.endsWith(BlockDelta.SUFFIX) && fsService.isBlockDelta(incrBackupDirPath + "/" + file)) {
+					String target = file.substring(0, file.length() - BlockDelta.SUFFIX.length());
+					if(planned.contains(target))
+						superseded++;
+					else
+						plan.getDeltaChains().computeIfAbsent(target, t -> new ArrayList<>()).add(0, incrBackupDirPath + "/" + file);
+				} else if(planned.add(StringUtils.removeEnd(file, BlockCompressor.SUFFIX)))
+					files.add(file);
+				else
+					superseded++;
+			}
+			plan.getFilesBySource().put(incrBackupDirPath, files);
+			
+			// A file stored as chunks is a whole copy as well
+			List<String> chunkedFiles = new ArrayList<>();
+			for(String file : stagedFileDeduplicator.listFiles(incrBackupDirPath)) {
+				if(planned.add(file))
+					chunkedFiles.add(file);
+				else
+					superseded++;
+			}
+			if(!chunkedFiles.isEmpty())
+				plan.getChunkedFilesBySource().put(incrBackupDirPath, chunkedFiles);
+		}
+		planned.addAll(plan.getDeltaChains().keySet());
+		plan.setFileCount(planned.size());
+		plan.setSupersededCount(superseded);
+		logger.info("Planned the restore of {} files from {} incremental backups, skipping {} superseded copies",
+				plan.getFileCount(), incrBackupDirPaths.size(), plan.getSupersededCount());
+		return plan;
+	}
+
+	/**
+	 * Drops the files not selected by the given predicate on their relative paths from the plan.
+	 */
+	public void retain(RestorePlan plan, Predicate<String> selected) {
+		Set<String> retained = new HashSet<>();
+		for(Map.Entry<String, List<String>> source : plan.getFilesBySource().entrySet()) {
+			source.setValue(source.getValue().stream()
+					.filter(file -> selected.test(StringUtils.removeEnd(file, BlockCompressor.SUFFIX)))
+					.collect(Collectors.toList()));
+			source.getValue().forEach(file -> retained.add(StringUtils.removeEnd(file, BlockCompressor.SUFFIX)));
+		}
+		for(Map.Entry<String, List<String>> source : plan.getChunkedFilesBySource().entrySet()) {
+			source.setValue(source.getValue().stream()
+					.filter(selected)
+					.collect(Collectors.toList()));
+			retained.addAll(source.getValue());
+		}
+		plan.getDeltaChains().keySet().removeIf(selected.negate());
+		retained.addAll(plan.getDeltaChains().keySet());
+		plan.setFileCount(retained.size());
+	}
+
+	/**
+	 * Copies (or moves) the planned files to the restore directory on the given number of
+	 * workers. The files of each incremental backup are split into parts, so that the workers
+	 * share the load even if most of the files come from one backup.
+	 */
+	public void apply(RestorePlan plan, String restoreDirPath, boolean move, int workers)
+			throws ServiceException, InterruptedException {
+		int partSize = (int) Math.max(1, (plan.getFileCount() + workers * 4L - 1) / (workers * 4L));
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			// The parts share parent directories, which concurrent copies would fail to create
+			// at the same time, so they are all created beforehand
+			Set<String> dirs = new TreeSet<>();
+			for(List<String> files : plan.getFilesBySource().values()) {
+				for(String file : files) {
+					int slash = file.lastIndexOf('/');
+					if(slash > 0)
+						dirs.add(file.substring(0, slash));
+				}
+			}
+			if(!dirs.isEmpty())
+				fsService.createDirectories(restoreDirPath, dirs);
+			
+			List<Future<?>> parts = new ArrayList<>();
+			for(Map.Entry<String, List<String>> source : plan.getFilesBySource().entrySet()) {
+				List<String> files = source.getValue();
+				for(int from = 0; from < files.size(); from += partSize) {
+					List<String> part = files.subList(from, Math.min(files.size(), from + partSize));
+					parts.add(executor.submit(() -> {
+						logger.debug("Copying {} files from {}", part.size(), source.getKey());
+						if(move)
+							fsService.moveFiles(source.getKey(), restoreDirPath, part);
+						else
+							fsService.copyFiles(source.getKey(), restoreDirPath, part);
+					}));
+				}
+			}
+			logger.info("Applying {} parts of the restore plan with {} workers", parts.size(), workers);
+			for(Future<?> part : parts)
+				part.get();
+			
+			// The files stored as chunks are rebuilt from the chunks of any of the backups
+			if(!plan.getChunkedFilesBySource().isEmpty()) {
+				Map<Long, String> chunkStores = stagedFileDeduplicator.findChunkStores(new ArrayList<>(plan.getFilesBySource().keySet()));
+				long rebuilt = 0;
+				for(Map.Entry<String, List<String>> source : plan.getChunkedFilesBySource().entrySet()) {
+					Set<String> files = new HashSet<>(source.getValue());
+					rebuilt += stagedFileDeduplicator.restoreFiles(source.getKey(), restoreDirPath, chunkStores, files::contains, executor).getFiles();
+				}
+				logger.info("Rebuilt {} files from chunks", rebuilt);
+			}
+			
+			// The compressed files are decompressed in place, in parts as well
+			List<String> compressed = plan.getFilesBySource().values().stream()
+					.flatMap(List::stream)
+					.filter(file -> file.endsWith(BlockCompressor.SUFFIX))
+					.map(file -> restoreDirPath + "/" + file)
+					.collect(Collectors.toList());
+			List<Future<CompressionStats>> decompressions = new ArrayList<>();
+			for(int from = 0; from < compressed.size(); from += partSize) {
+				List<String> part = compressed.subList(from, Math.min(compressed.size(), from + partSize));
+				decompressions.add(executor.submit(() -> stagedFileCompressor.decompress(part)));
+			}
+			long decompressedBytes = 0;
+			for(Future<CompressionStats> decompression : decompressions)
+				decompressedBytes += decompression.get().getBytes();
+			if(!compressed.isEmpty())
+				logger.info("Decompressed {} files to {} bytes", compressed.size(), decompressedBytes);
+			
+			// The deltas go on top of the whole files, so only once these are all in place
+			List<Future<?>> chains = new ArrayList<>();
+			for(Map.Entry<String, List<String>> chain : plan.getDeltaChains().entrySet()) {
+				chains.add(executor.submit(() -> {
+					logger.debug("Applying {} block deltas to {}", chain.getValue().size(), chain.getKey());
+					fsService.applyDeltas(restoreDirPath + "/" + chain.getKey(), chain.getValue());
+				}));
+			}
+			for(Future<?> chain : chains)
+				chain.get();
+		} catch (ExecutionException e) {
+			throw ExceptionUtil.convertToServiceException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
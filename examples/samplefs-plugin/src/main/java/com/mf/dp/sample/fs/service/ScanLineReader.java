@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the lines of a file state scan (see {@link FileStateIndex}) from a stream.
+ *
+ * The reader keeps the current line in its internal buffer and exposes it by offsets,
+ * so that it does not allocate anything per line. The buffer only grows when a single
+ * line does not fit into it. A line of an index may end with an additional content hash
+ * field (see {@link ContentHasher}), which is skipped when locating the other fields.
+ */
+final class ScanLineReader {
+
+	private static final int FIELD_COUNT = 5;
+	private static final byte[] HASH_PREFIX = ContentHasher.PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+	private final InputStream in;
+	private byte[] buf = new byte[64 * 1024];
+	private int limit;
+	// Start of the next line
+	private int pos;
+	private int lineStart;
+	private int lineEnd;
+	private boolean eof;
+	// Offsets of the TABs separating the fields of the current line
+	private final int[] tabs = new int[FIELD_COUNT - 1];
+
+	ScanLineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Advances to the next line, skipping malformed ones.
+	 * Returns false at the end of the stream.
+	 */
+	boolean next() throws IOException {
+		while(true) {
+			int nl = indexOfNewline(pos);
+			while(nl < 0) {
+				if(eof) {
+					if(pos >= limit)
+						return false;
+					// Last line without a trailing newline
+					nl = limit;
+					break;
+				}
+				fill();
+				nl = indexOfNewline(pos);
+			}
+			lineStart = pos;
+			lineEnd = nl;
+			pos = nl + 1;
+			if(locateTabs())
+				return true;
+		}
+	}
+
+	byte[] buffer() {
+		return buf;
+	}
+
+	int lineStart() {
+		return lineStart;
+	}
+
+	int lineEnd() {
+		return lineEnd;
+	}
+
+	int pathEnd() {
+		return tabs[0];
+	}
+
+	void writeLine(OutputStream out) throws IOException {
+		out.write(buf, lineStart, lineEnd - lineStart);
+		out.write('\n');
+	}
+
+	long size() {
+		long value = 0;
+		for(int i = tabs[0] + 1; i < tabs[1]; i++)
+			value = value * 10 + (buf[i] - '0');
+		return value;
+	}
+
+	/**
+	 * Modification time in milliseconds, parsed from the Linux time with fractional
+	 * part (e.g. 1674547200.1234567890).
+	 */
+	long modTime() {
+		long seconds = 0;
+		long millis = 0;
+		int digits = -1;
+		for(int i = tabs[1] + 1; i < tabs[2]; i++) {
+			byte b = buf[i];
+			if(b == '.') {
+				digits = 0;
+			} else if(digits < 0) {
+				seconds = seconds * 10 + (b - '0');
+			} else if(digits < 3) {
+				millis = millis * 10 + (b - '0');
+				digits++;
+			}
+		}
+		for(; digits < 3; digits++)
+			millis *= 10;
+		return seconds * 1000L + millis;
+	}
+
+	private int indexOfNewline(int from) {
+		for(int i = from; i < limit; i++) {
+			if(buf[i] == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	// Moves the partial line to the front of the buffer and reads more data
+	private void fill() throws IOException {
+		int partial = limit - pos;
+		if(pos == 0 && partial == buf.length) {
+			byte[] grown = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, grown, 0, partial);
+			buf = grown;
+		} else if(pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, partial);
+		}
+		limit = partial;
+		pos = 0;
+		int n = in.read(buf, limit, buf.length - limit);
+		if(n < 0)
+			eof = true;
+		else
+			limit += n;
+	}
+
+	// Locates the field separators from the end, since the path itself may contain a TAB
+	private boolean locateTabs() {
+		int end = lineEnd;
+		int hashTab = lastIndexOfTab(lineEnd);
+		if(hashTab >= 0 && isContentHash(hashTab + 1))
+			end = hashTab;
+		int found = 0;
+		for(int i = end - 1; i >= lineStart && found < tabs.length; i--) {
+			if(buf[i] == '\t')
+				tabs[tabs.length - 1 - found++] = i;
+		}
+		return found == tabs.length && tabs[0] > lineStart;
+	}
+
+	private int lastIndexOfTab(int end) {
+		for(int i = end - 1; i >= lineStart; i--) {
+			if(buf[i] == '\t')
+				return i;
+		}
+		return -1;
+	}
+
+	// Whether the field from the given offset to the end of the line is a content hash
+	private boolean isContentHash(int start) {
+		if(lineEnd - start <= HASH_PREFIX.length)
+			return false;
+		for(int i = 0; i < HASH_PREFIX.length; i++) {
+			if(buf[start + i] != HASH_PREFIX[i])
+				return false;
+		}
+		return true;
+	}
+}
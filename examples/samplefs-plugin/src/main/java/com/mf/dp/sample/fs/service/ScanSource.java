@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A running scan of a directory, which writes the file states (in the format of
+ * {@link FileStateIndex}, in no particular order) to its output.
+ */
+interface ScanSource extends AutoCloseable {
+
+	InputStream getOutput();
+
+	/**
+	 * Waits for the scan to complete. Throws an exception if the scan failed.
+	 */
+	void waitFor() throws IOException, InterruptedException;
+
+	/**
+	 * Stops the scan if it is still running.
+	 */
+	@Override
+	void close();
+}
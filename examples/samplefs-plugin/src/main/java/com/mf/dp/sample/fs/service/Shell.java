@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+/**
+ * Helpers to build the command lines run with {@code /bin/sh -c}, e.g. through
+ * {@code OSCommand}, which runs them with <em>sudo</em>.
+ *
+ * The paths of files and directories come from the backed-up data, i.e. from any
+ * user of the host, so they must never be interpolated into a command line as they
+ * are, not even within double quotes, in which the shell still expands {@code $(...)}
+ * and backquotes.
+ */
+final class Shell {
+
+	private Shell() {
+	}
+
+	/**
+	 * Returns the given string single-quoted for the shell, so that it is passed on as a
+	 * single word, literally.
+	 */
+	static String quote(String value) {
+		return "'" + value.replace("'", "'\\''") + "'";
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.mf.dp.uic.command.BaseCommand;
+import com.mf.dp.uic.command.OSCommand;
+
+/**
+ * A regular file in a staging directory, with the attributes to restore it with once it
+ * has been stored in another form (see {@link StagedFileCompressor}).
+ */
+final class StagedFile {
+
+	private static final String FIND = "/usr/bin/find";
+
+	// Path relative to the staging directory
+	final String path;
+	final long size;
+	// Size, mode, owner and modification time, as held by a compressed file
+	final Map<String, String> header = new LinkedHashMap<>();
+
+	// Parses a line of the listing (see list)
+	private StagedFile(String line) {
+		String[] fields = line.split("\t", 6);
+		this.path = fields[5];
+		this.size = Long.parseLong(fields[0]);
+		header.put("length", fields[0]);
+		header.put("mode", fields[1]);
+		header.put("owner", fields[2] + " " + fields[3]);
+		// Nanoseconds, rather than the 10 fractional digits of %T@
+		header.put("mtime", fields[4].length() > 10 ? fields[4].substring(0, fields[4].length() - 1) : fields[4]);
+	}
+
+	/**
+	 * Lists the regular files in the given staging directory through {@code OSCommand}, since
+	 * <em>dpuic</em> may not be allowed to read it.
+	 */
+	static List<StagedFile> list(String dirPath) throws Exception {
+		String out = new OSCommand().exec(BaseCommand.withShell(new StringBuilder(FIND)
+				.append(' ')
+				.append(Shell.quote(dirPath))
+				.append(" -type f -printf \"%s\\t%m\\t%U\\t%G\\t%T@\\t%P\\n\"")
+				.toString()));
+		return Arrays.stream(out.split("\n"))
+				.filter(line -> !line.isEmpty())
+				.map(StagedFile::new)
+				.collect(Collectors.toList());
+	}
+}
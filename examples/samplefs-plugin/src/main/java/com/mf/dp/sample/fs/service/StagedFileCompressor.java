@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.CompressionStats;
+import com.mf.dp.uic.command.BaseCommand;
+import com.mf.dp.uic.command.OSCommand;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.util.ExceptionUtil;
+
+/**
+ * Compresses the files staged by an incremental backup before they are transferred, and
+ * decompresses them when they are restored.
+ *
+ * Each staged file worth compressing is replaced by a compressed file with the same path
+ * plus {@link BlockCompressor#SUFFIX}, which also holds the attributes of the original file.
+ * Files smaller than the minimum size, files whose extension tells that they are compressed
+ * already and files whose first bytes have a high entropy are left as they are, as are the
+ * block deltas of large files (see {@link BlockDelta}).
+ *
+ * The compressed files are written by <em>dpuic</em> into a work directory, and copied into
+ * the staging directory by the copy script through {@code OSCommand}, i.e. with <em>sudo</em>,
+ * in batches of about 1GB of staged files, so that the work directory never holds the whole
+ * backup. The files that <em>dpuic</em> cannot read or write itself are read with {@code cat}
+ * or written with {@code tee} through the configured command prefix (e.g. {@code sudo -n}).
+ */
+@Component
+public class StagedFileCompressor {
+
+	private static final long BATCH_SIZE = 1L << 30;
+	private static final String TEMP_SUFFIX = BlockCompressor.SUFFIX + "-tmp";
+
+	private static Logger logger = LoggerFactory.getLogger(StagedFileCompressor.class);
+
+	@Autowired
+	private FSService fsService;
+
+	@Value("${samplefs.compression.enabled:false}")
+	private boolean enabled;
+
+	// Number of threads compressing blocks; 0 means the number of processors
+	@Value("${samplefs.compression.parallelism:0}")
+	private int parallelism;
+
+	// Bytes compressed at a time, between 64KB and 4MB
+	@Value("${samplefs.compression.block-size:4194304}")
+	private int blockSize;
+
+	// Smaller files are not worth compressing
+	@Value("${samplefs.compression.min-size:65536}")
+	private long minSize;
+
+	// Bits per byte of the first 64KB of a file above which it is not compressed; 8 is random data
+	@Value("${samplefs.compression.max-entropy:7.5}")
+	private double maxEntropy;
+
+	// Extensions of the files that are compressed already
+	@Value("${samplefs.compression.skip-extensions:gz,tgz,bz2,xz,zst,lz4,zip,7z,rar,jar,jpg,jpeg,png,gif,mp3,mp4,mkv,mov,docx,xlsx,pptx}")
+	private String skipExtensions;
+
+	// Prefix (by default "sudo -n") of the commands reading or writing the files dpuic has no access to
+	@Value("${samplefs.fsservice.stream.command-prefix:sudo -n}")
+	private String streamCommandPrefix;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Compresses the files staged in the given directory, using the given work directory,
+	 * which is removed afterwards. If this fails, some of the files are left uncompressed,
+	 * but each file is staged in one form or the other.
+	 */
+	public CompressionStats compress(String dirPath, String workDirPath) throws ServiceException {
+		long start = System.currentTimeMillis();
+		Set<String> compressedExtensions = Arrays.stream(skipExtensions.split(","))
+				.map(extension -> extension.trim().toLowerCase(Locale.ROOT))
+				.collect(Collectors.toSet());
+		Path workDir = Paths.get(workDirPath);
+		CompressionStats stats = new CompressionStats();
+		List<StagedFile> batch = new ArrayList<>();
+		List<BlockCompressor.Job> jobs = new ArrayList<>();
+		try(BlockCompressor compressor = new BlockCompressor(parallelism, blockSize)) {
+			long batchSize = 0;
+			List<StagedFile> files = StagedFile.list(dirPath);
+			Set<String> paths = files.stream().map(file -> file.path).collect(Collectors.toSet());
+			for(StagedFile file : files) {
+				// A staged file named like the compressed file would be overwritten by it
+				if(file.size < minSize || file.path.endsWith(BlockDelta.SUFFIX) || file.path.endsWith(BlockCompressor.SUFFIX)
+						|| paths.contains(file.path + BlockCompressor.SUFFIX)
+						|| file.path.startsWith(StagedFileDeduplicator.DIR_NAME + "/")
+						|| compressedExtensions.contains(FilenameUtils.getExtension(file.path).toLowerCase(Locale.ROOT))) {
+					stats.setSkippedFiles(stats.getSkippedFiles() + 1);
+					continue;
+				}
+				
+				Path compressedFile = workDir.resolve(file.path + BlockCompressor.SUFFIX);
+				BlockCompressor.Job job;
+				try(InputStream in = StreamingCommand.openInput(streamCommandPrefix, dirPath + "/" + file.path)) {
+					job = compressor.add(in, () -> {
+						Files.createDirectories(compressedFile.getParent());
+						return new BufferedOutputStream(Files.newOutputStream(compressedFile));
+					}, file.header, maxEntropy);
+				} catch (IOException e) {
+					logger.debug("Could not compress {}", file.path, e);
+					job = null;
+				}
+				if(job == null) {
+					stats.setSkippedFiles(stats.getSkippedFiles() + 1);
+					continue;
+				}
+				batch.add(file);
+				jobs.add(job);
+				batchSize += file.size;
+				if(batchSize >= BATCH_SIZE) {
+					replaceBatch(compressor, dirPath, workDir, batch, jobs, stats);
+					batchSize = 0;
+				}
+			}
+			replaceBatch(compressor, dirPath, workDir, batch, jobs, stats);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		} finally {
+			FileUtils.deleteQuietly(workDir.toFile());
+		}
+		stats.setMillis(System.currentTimeMillis() - start);
+		logger.info("Compressed {} staged files from {} to {} bytes in {} ms, leaving {} files as they are",
+				stats.getFiles(), stats.getBytes(), stats.getCompressedBytes(), stats.getMillis(), stats.getSkippedFiles());
+		return stats;
+	}
+
+	/**
+	 * Decompresses the compressed files of the given incremental backup directory, once they
+	 * have been copied (or moved) to the restore directory along with the other files.
+	 */
+	public CompressionStats decompressStagedFiles(String incrBackupDirPath, String restoreDirPath) throws ServiceException {
+		return decompress(fsService.listFiles(incrBackupDirPath).stream()
+				.filter(relativePath -> relativePath.endsWith(BlockCompressor.SUFFIX))
+				.map(relativePath -> restoreDirPath + "/" + relativePath)
+				.collect(Collectors.toList()));
+	}
+
+	/**
+	 * Replaces each of the given compressed files with the original file and its attributes.
+	 */
+	public CompressionStats decompress(List<String> compressedFilePaths) throws ServiceException {
+		long start = System.currentTimeMillis();
+		CompressionStats stats = new CompressionStats();
+		for(String compressedFilePath : compressedFilePaths) {
+			String filePath = StringUtils.removeEnd(compressedFilePath, BlockCompressor.SUFFIX);
+			String tempFilePath = filePath + TEMP_SUFFIX;
+			try {
+				Map<String, String> header;
+				long compressedBytes;
+				try(CountingInputStream in = new CountingInputStream(StreamingCommand.openInput(streamCommandPrefix, compressedFilePath));
+					OutputStream out = StreamingCommand.openOutput(streamCommandPrefix, tempFilePath)) {
+					header = BlockCompressor.decompress(in, out);
+					compressedBytes = in.getByteCount();
+				}
+				if(header == null) {
+					logger.info("{} is not a compressed file, leaving it as it is", compressedFilePath);
+					new OSCommand().exec(List.of("rm", "-f", "--", tempFilePath));
+					continue;
+				}
+				new OSCommand().exec(BaseCommand.withShell(replaceCommand(tempFilePath, filePath, compressedFilePath, header)));
+				stats.setFiles(stats.getFiles() + 1);
+				stats.setBytes(stats.getBytes() + Long.parseLong(header.getOrDefault("length", "0")));
+				stats.setCompressedBytes(stats.getCompressedBytes() + compressedBytes);
+			} catch (Exception e) {
+				try {
+					new OSCommand().exec(List.of("rm", "-f", "--", tempFilePath));
+				} catch (Exception cleanup) {
+					logger.warn("Could not remove {}", tempFilePath, cleanup);
+				}
+				throw ExceptionUtil.convertToServiceException(e);
+			}
+		}
+		stats.setMillis(System.currentTimeMillis() - start);
+		return stats;
+	}
+
+	// Waits for the files of the batch to be compressed, copies them into the staging directory
+	// and removes the original files. A file that was not read up to its listed size, e.g. since
+	// cat failed, or whose compressed file could not be written, is left as it is.
+	private void replaceBatch(BlockCompressor compressor, String dirPath, Path workDir, List<StagedFile> batch,
+			List<BlockCompressor.Job> jobs, CompressionStats stats) throws IOException {
+		compressor.flush();
+		List<String> compressed = new ArrayList<>();
+		List<String> originals = new ArrayList<>();
+		for(int i = 0; i < batch.size(); i++) {
+			StagedFile file = batch.get(i);
+			BlockCompressor.Job job = jobs.get(i);
+			if(!job.isDone() || job.getLength() != file.size) {
+				logger.debug("Leaving {} uncompressed", file.path);
+				stats.setSkippedFiles(stats.getSkippedFiles() + 1);
+				continue;
+			}
+			compressed.add(file.path + BlockCompressor.SUFFIX);
+			originals.add(file.path);
+			stats.setFiles(stats.getFiles() + 1);
+			stats.setBytes(stats.getBytes() + job.getLength());
+			stats.setCompressedBytes(stats.getCompressedBytes() + job.getCompressedLength());
+		}
+		if(!compressed.isEmpty()) {
+			fsService.copyFiles(workDir.toString(), dirPath, compressed);
+			fsService.removeFiles(dirPath, originals);
+		}
+		FileUtils.deleteQuietly(workDir.toFile());
+		batch.clear();
+		jobs.clear();
+	}
+
+	// Moves the decompressed file into place with the attributes of the original file. The paths
+	// and the header come from the backed-up data, so they are all quoted.
+	private static String replaceCommand(String tempFilePath, String filePath, String compressedFilePath, Map<String, String> header) {
+		String temp = Shell.quote(tempFilePath);
+		StringBuilder command = new StringBuilder();
+		if(header.containsKey("owner"))
+			command.append("chown ").append(Shell.quote(header.get("owner").replace(' ', ':'))).append(" -- ").append(temp).append(" && ");
+		if(header.containsKey("mode"))
+			command.append("chmod ").append(Shell.quote(header.get("mode"))).append(" -- ").append(temp).append(" && ");
+		if(header.containsKey("mtime"))
+			command.append("touch -m -d ").append(Shell.quote("@" + header.get("mtime"))).append(" -- ").append(temp).append(" && ");
+		return command.append("mv -f -- ").append(temp).append(' ').append(Shell.quote(filePath))
+				.append(" && rm -f -- ").append(Shell.quote(compressedFilePath))
+				.toString();
+	}
+}
@@ -0,0 +1,580 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import com.mf.dp.sample.fs.model.DedupStats;
+import com.mf.dp.uic.command.BaseCommand;
+import com.mf.dp.uic.command.OSCommand;
+import com.mf.dp.uic.exception.ServiceException;
+import com.mf.dp.uic.process.ProcessConfigurator;
+import com.mf.dp.uic.util.ExceptionUtil;
+
+/**
+ * Stores the files staged by an incremental backup as content-addressed chunks, so that
+ * data already held by the backup chain is referenced rather than sent again, and rebuilds
+ * the files from the chunks on restore.
+ *
+ * The staged files are cut into chunks by {@link ContentDefinedChunker}, which are named by
+ * their SHA-256 hash. A chunk that neither this backup nor a previous one of the chain stores
+ * yet is added to the {@code .samplefs-dedup/chunks} directory of the staging directory. The
+ * staged files are then replaced by the manifest of the version, {@code .samplefs-dedup/manifest}:
+ *
+ * <pre>
+ * SFDEDUP 1
+ * version &lt;backup time&gt;
+ * file TAB &lt;length&gt; TAB &lt;mode&gt; TAB &lt;uid&gt; &lt;gid&gt; TAB &lt;mtime&gt; TAB &lt;path&gt;
+ * chunk TAB &lt;SHA-256&gt; TAB &lt;length&gt; TAB &lt;version holding the chunk&gt;
+ * ...
+ * </pre>
+ *
+ * where each file is followed by its chunks in order. Which chunks the chain holds is told by
+ * a {@link ChunkIndex} next to the file state index, along with the list of the versions that
+ * were transferred. The index starts anew with each full backup, since the chunks of the
+ * previous chain are not restored along with the new one.
+ *
+ * Like the compressed files (see {@link StagedFileCompressor}), the new chunks are written by
+ * <em>dpuic</em> into a work directory, and copied into the staging directory by the copy
+ * script in batches. The staged files are only removed once the manifest is in place, so if
+ * this fails, they are transferred as they are.
+ */
+@Component
+public class StagedFileDeduplicator {
+
+	/**
+	 * Directory of the chunks and the manifest, in a staging directory or an incremental backup.
+	 */
+	public static final String DIR_NAME = ".samplefs-dedup";
+
+	private static final String MANIFEST = DIR_NAME + "/manifest";
+	private static final String CHUNK_DIR = DIR_NAME + "/chunks";
+	private static final String MANIFEST_START = "SFDEDUP 1";
+	private static final String INDEX_FILE_SUFFIX = ".chunks";
+	private static final String VERSIONS_FILE_SUFFIX = ".chunks.versions";
+	private static final String TEMP_SUFFIX = ".sfdedup-tmp";
+	private static final long BATCH_SIZE = 1L << 30;
+	// Files rebuilt by a single command, and chunks concatenated by a single cat
+	private static final int REBUILD_BATCH_SIZE = 1000;
+	private static final int CAT_BATCH_SIZE = 256;
+
+	private static Logger logger = LoggerFactory.getLogger(StagedFileDeduplicator.class);
+
+	@Autowired
+	private FSService fsService;
+
+	@Value("${samplefs.dedup.enabled:false}")
+	private boolean enabled;
+
+	// Number of threads hashing chunks; 0 means the number of processors
+	@Value("${samplefs.dedup.parallelism:0}")
+	private int parallelism;
+
+	// Average size of the chunks, a power of 2
+	@Value("${samplefs.dedup.chunk-size:1048576}")
+	private int chunkSize;
+
+	// Smaller files are not worth a chunk of their own
+	@Value("${samplefs.dedup.min-size:65536}")
+	private long minSize;
+
+	// New chunks held in memory before they are written into the chunk index
+	@Value("${samplefs.dedup.index.max-pending:262144}")
+	private int maxPendingChunks;
+
+	// Prefix (by default "sudo -n") of the commands reading the files dpuic has no access to
+	@Value("${samplefs.fsservice.stream.command-prefix:sudo -n}")
+	private String streamCommandPrefix;
+
+	// A chunk being hashed
+	private static final class Chunk {
+		private final byte[] data;
+		private final Future<byte[]> hash;
+
+		private Chunk(byte[] data, Future<byte[]> hash) {
+			this.data = data;
+			this.hash = hash;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Stores the files staged in the given directory by the backup of the given version (i.e.
+	 * its time) as chunks, using the given work directory, which is removed afterwards. The
+	 * chunks held by the committed versions of the given file state index are referenced.
+	 * If this fails, the staged files are left as they are.
+	 */
+	public DedupStats deduplicate(String dirPath, String workDirPath, Path indexFile, long version) throws ServiceException {
+		long start = System.currentTimeMillis();
+		int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		Path workDir = Paths.get(workDirPath);
+		DedupStats stats = new DedupStats();
+		List<String> deduplicated = new ArrayList<>();
+		List<String> batch = new ArrayList<>();
+		boolean replacing = false;
+		List<StagedFile> files;
+		try {
+			files = StagedFile.list(dirPath);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		// The chunks and the manifest would be mixed up with the files of a directory of the same name
+		if(files.stream().anyMatch(file -> file.path.startsWith(DIR_NAME + "/"))) {
+			logger.info("Leaving the staged files as they are, since {} holds a directory {}", dirPath, DIR_NAME);
+			stats.setSkippedFiles(files.size());
+			return stats;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			FileUtils.deleteQuietly(workDir.toFile());
+			Files.createDirectories(workDir.resolve(CHUNK_DIR));
+			long batchSize = 0;
+			try(ChunkIndex index = ChunkIndex.open(getChunkIndexFile(indexFile), readCommittedVersions(indexFile), version, maxPendingChunks);
+				BufferedWriter manifest = Files.newBufferedWriter(workDir.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+				manifest.write(MANIFEST_START + "\nversion " + version + "\n");
+				for(StagedFile file : files) {
+					if(file.size < minSize || file.path.endsWith(BlockDelta.SUFFIX)) {
+						stats.setSkippedFiles(stats.getSkippedFiles() + 1);
+						continue;
+					}
+					StringBuilder entry = new StringBuilder("file\t").append(file.size)
+							.append('\t').append(file.header.get("mode"))
+							.append('\t').append(file.header.get("owner"))
+							.append('\t').append(file.header.get("mtime"))
+							.append('\t').append(file.path).append('\n');
+					DedupStats fileStats = new DedupStats();
+					try(InputStream in = StreamingCommand.openInput(streamCommandPrefix, dirPath + "/" + file.path)) {
+						store(in, executor, threads * 2, index, workDir, version, entry, batch, fileStats);
+					} catch (IOException e) {
+						// The chunks stored so far are merely not referenced by any file
+						logger.debug("Could not store {} as chunks", file.path, e);
+						fileStats.setBytes(-1);
+					}
+					if(fileStats.getBytes() != file.size) {
+						stats.setSkippedFiles(stats.getSkippedFiles() + 1);
+						continue;
+					}
+					manifest.write(entry.toString());
+					deduplicated.add(file.path);
+					stats.setFiles(stats.getFiles() + 1);
+					stats.setBytes(stats.getBytes() + fileStats.getBytes());
+					stats.setChunks(stats.getChunks() + fileStats.getChunks());
+					stats.setNewChunks(stats.getNewChunks() + fileStats.getNewChunks());
+					stats.setNewBytes(stats.getNewBytes() + fileStats.getNewBytes());
+					batchSize += fileStats.getNewBytes();
+					if(batchSize >= BATCH_SIZE) {
+						copyBatch(dirPath, workDir, batch);
+						batchSize = 0;
+					}
+				}
+			}
+			
+			if(deduplicated.isEmpty()) {
+				removeChunks(dirPath);
+			} else {
+				batch.add(MANIFEST);
+				copyBatch(dirPath, workDir, batch);
+				// From here on, the manifest stands for the staged files, even if some are left
+				replacing = true;
+				fsService.removeFiles(dirPath, deduplicated);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			if(!replacing)
+				removeChunks(dirPath);
+			throw ExceptionUtil.convertToServiceException(e);
+		} catch (Exception e) {
+			if(!replacing)
+				removeChunks(dirPath);
+			throw ExceptionUtil.convertToServiceException(e);
+		} finally {
+			executor.shutdownNow();
+			FileUtils.deleteQuietly(workDir.toFile());
+		}
+		stats.setMillis(System.currentTimeMillis() - start);
+		logger.info("Stored {} staged files of {} bytes as {} chunks, {} of them new with {} bytes, in {} ms, leaving {} files as they are",
+				stats.getFiles(), stats.getBytes(), stats.getChunks(), stats.getNewChunks(), stats.getNewBytes(),
+				stats.getMillis(), stats.getSkippedFiles());
+		return stats;
+	}
+
+	// Cuts the given file into chunks, hashing them on the executor with at most the given number
+	// in flight, and appends the chunks to the manifest entry of the file. The new chunks are
+	// written into the work directory and added to the batch to copy.
+	private void store(InputStream in, ExecutorService executor, int maxInFlight, ChunkIndex index, Path workDir,
+			long version, StringBuilder entry, List<String> batch, DedupStats fileStats) throws IOException, InterruptedException {
+		ContentDefinedChunker chunker = new ContentDefinedChunker(in, chunkSize);
+		Deque<Chunk> inFlight = new ArrayDeque<>();
+		byte[] data;
+		while((data = chunker.next()) != null) {
+			byte[] chunkData = data;
+			inFlight.add(new Chunk(chunkData, executor.submit(() -> sha256(chunkData))));
+			if(inFlight.size() >= maxInFlight)
+				store(inFlight.poll(), index, workDir, version, entry, batch, fileStats);
+		}
+		while(!inFlight.isEmpty())
+			store(inFlight.poll(), index, workDir, version, entry, batch, fileStats);
+	}
+
+	private void store(Chunk chunk, ChunkIndex index, Path workDir, long version, StringBuilder entry,
+			List<String> batch, DedupStats fileStats) throws IOException, InterruptedException {
+		byte[] hash;
+		try {
+			hash = chunk.hash.get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		String name = Hex.encodeHexString(hash);
+		long holder = index.lookup(hash);
+		if(holder < 0) {
+			String chunkPath = getChunkPath(name);
+			Path chunkFile = workDir.resolve(chunkPath);
+			Files.createDirectories(chunkFile.getParent());
+			Files.write(chunkFile, chunk.data);
+			index.add(hash);
+			batch.add(chunkPath);
+			holder = version;
+			fileStats.setNewChunks(fileStats.getNewChunks() + 1);
+			fileStats.setNewBytes(fileStats.getNewBytes() + chunk.data.length);
+		}
+		entry.append("chunk\t").append(name).append('\t').append(chunk.data.length).append('\t').append(holder).append('\n');
+		fileStats.setChunks(fileStats.getChunks() + 1);
+		fileStats.setBytes(fileStats.getBytes() + chunk.data.length);
+	}
+
+	// Copies the files of the batch from the work directory into the staging directory
+	private void copyBatch(String dirPath, Path workDir, List<String> batch) throws IOException {
+		if(!batch.isEmpty())
+			fsService.copyFiles(workDir.toString(), dirPath, batch);
+		for(String path : batch)
+			Files.deleteIfExists(workDir.resolve(path));
+		batch.clear();
+	}
+
+	private void removeChunks(String dirPath) {
+		try {
+			new OSCommand().removeDirectoryAndContent(dirPath + "/" + DIR_NAME);
+		} catch (Exception e) {
+			logger.warn("Could not remove the chunks from {}", dirPath, e);
+		}
+	}
+
+	/**
+	 * Returns the paths of the files stored as chunks in the given staging directory, i.e. those
+	 * listed in its manifest.
+	 */
+	public List<String> listFiles(String dirPath) throws ServiceException {
+		List<String> files = new ArrayList<>();
+		try {
+			readManifest(dirPath, (version, file, chunks) -> files.add(file[4]), false);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		return files;
+	}
+
+	/**
+	 * Records that the given version was transferred, so that the next backups reference the
+	 * chunks it stores.
+	 */
+	public void commit(Path indexFile, long version) throws IOException {
+		Set<Long> versions = readCommittedVersions(indexFile);
+		versions.add(version);
+		Path versionsFile = getVersionsFile(indexFile);
+		Path tempFile = versionsFile.resolveSibling(versionsFile.getFileName() + ".tmp");
+		Files.write(tempFile, versions.stream()
+				.sorted()
+				.map(String::valueOf)
+				.collect(Collectors.toList()), StandardCharsets.UTF_8);
+		Files.move(tempFile, versionsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Committed the chunks of version {} to {}", version, getChunkIndexFile(indexFile));
+	}
+
+	/**
+	 * Removes the chunk index of the given file state index. Must be called before a full backup,
+	 * since the next incremental backup cannot reference the chunks of the previous chain.
+	 */
+	public void clear(Path indexFile) throws IOException {
+		boolean removed = Files.deleteIfExists(getVersionsFile(indexFile));
+		removed |= Files.deleteIfExists(getChunkIndexFile(indexFile));
+		if(removed)
+			logger.info("Removed the chunk index {}", getChunkIndexFile(indexFile));
+	}
+
+	private Set<Long> readCommittedVersions(Path indexFile) throws IOException {
+		Set<Long> versions = new HashSet<>();
+		try {
+			for(String line : Files.readAllLines(getVersionsFile(indexFile), StandardCharsets.UTF_8)) {
+				if(!line.trim().isEmpty())
+					versions.add(Long.parseLong(line.trim()));
+			}
+		} catch (NoSuchFileException e) {
+			// No version was committed since the last full backup
+		}
+		return versions;
+	}
+
+	private static Path getChunkIndexFile(Path indexFile) {
+		return indexFile.resolveSibling(indexFile.getFileName() + INDEX_FILE_SUFFIX);
+	}
+
+	private static Path getVersionsFile(Path indexFile) {
+		return indexFile.resolveSibling(indexFile.getFileName() + VERSIONS_FILE_SUFFIX);
+	}
+
+	private static String getChunkPath(String name) {
+		return CHUNK_DIR + "/" + name.substring(0, 2) + "/" + name;
+	}
+
+	/**
+	 * Returns the chunk directories of the versions among the given incremental backup
+	 * directories (or directories the chunks of an incremental backup were retained in).
+	 */
+	public Map<Long, String> findChunkStores(List<String> dirPaths) throws ServiceException {
+		Map<Long, String> stores = new HashMap<>();
+		try {
+			for(String dirPath : dirPaths)
+				readManifest(dirPath, (version, file, chunks) -> stores.put(version, dirPath + "/" + CHUNK_DIR), true);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		return stores;
+	}
+
+	/**
+	 * Tells whether the given incremental backup directory stores files as chunks, i.e. whether
+	 * its {@value #DIR_NAME} directory holds a manifest rather than files of the backed-up directory.
+	 */
+	public boolean isDeduplicated(String incrBackupDirPath) throws ServiceException {
+		return !findChunkStores(List.of(incrBackupDirPath)).isEmpty();
+	}
+
+	/**
+	 * Moves the chunks of the given incremental backup directory into a subdirectory of the given
+	 * directory, so that the next incremental backups can be restored after it was removed.
+	 */
+	public void retainChunks(String incrBackupDirPath, String retainDirPath) throws ServiceException {
+		if(!isDeduplicated(incrBackupDirPath))
+			return;
+		String targetDirPath = retainDirPath + "/" + Paths.get(incrBackupDirPath).getFileName();
+		try {
+			new OSCommand().exec(BaseCommand.withShell("[ ! -d " + Shell.quote(incrBackupDirPath + "/" + DIR_NAME) + " ] || { mkdir -p "
+					+ Shell.quote(targetDirPath) + " && mv " + Shell.quote(incrBackupDirPath + "/" + DIR_NAME) + " " + Shell.quote(targetDirPath) + "/; }"));
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+	}
+
+	/**
+	 * Rebuilds the files stored as chunks by the given incremental backup, once its other files
+	 * have been copied (or moved) to the restore directory, and removes the chunks copied along.
+	 * The chunks are looked up in the given directories of the chain (see {@link #findChunkStores(List)}).
+	 */
+	public DedupStats restoreStagedFiles(String incrBackupDirPath, String restoreDirPath, List<String> chainDirPaths) throws ServiceException {
+		if(!isDeduplicated(incrBackupDirPath))
+			return new DedupStats();
+		DedupStats stats = restoreFiles(incrBackupDirPath, restoreDirPath, findChunkStores(chainDirPaths), file -> true, null);
+		try {
+			new OSCommand().removeDirectoryAndContent(restoreDirPath + "/" + DIR_NAME);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		}
+		return stats;
+	}
+
+	/**
+	 * Rebuilds the selected files stored as chunks by the given incremental backup in the restore
+	 * directory, from the chunks of the given stores (see {@link #findChunkStores(List)}). The files
+	 * are rebuilt in batches by shell scripts run through {@code OSCommand}, on the given executor
+	 * if any. Each file gets the attributes it was staged with, and is checked for its length.
+	 */
+	public DedupStats restoreFiles(String incrBackupDirPath, String restoreDirPath, Map<Long, String> chunkStores,
+			Predicate<String> selected, ExecutorService executor) throws ServiceException {
+		long start = System.currentTimeMillis();
+		DedupStats stats = new DedupStats();
+		Deque<Future<?>> scripts = new ArrayDeque<>();
+		StringBuilder script = new StringBuilder();
+		int[] scriptFiles = new int[1];
+		try {
+			readManifest(incrBackupDirPath, (version, file, chunks) -> {
+				if(!selected.test(file[4]))
+					return;
+				appendRebuild(script, restoreDirPath, file, chunks, chunkStores);
+				stats.setFiles(stats.getFiles() + 1);
+				stats.setBytes(stats.getBytes() + Long.parseLong(file[0]));
+				stats.setChunks(stats.getChunks() + chunks.size());
+				if(++scriptFiles[0] >= REBUILD_BATCH_SIZE) {
+					runScript(script.toString(), executor, scripts);
+					script.setLength(0);
+					scriptFiles[0] = 0;
+				}
+			}, false);
+			if(scriptFiles[0] > 0)
+				runScript(script.toString(), executor, scripts);
+			while(!scripts.isEmpty())
+				scripts.poll().get();
+		} catch (ExecutionException e) {
+			throw ExceptionUtil.convertToServiceException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ExceptionUtil.convertToServiceException(e);
+		} catch (Exception e) {
+			throw ExceptionUtil.convertToServiceException(e);
+		} finally {
+			scripts.forEach(pending -> pending.cancel(true));
+		}
+		stats.setMillis(System.currentTimeMillis() - start);
+		if(stats.getFiles() > 0)
+			logger.info("Rebuilt {} files of {} bytes from {} chunks of {} in {} ms", stats.getFiles(), stats.getBytes(),
+					stats.getChunks(), incrBackupDirPath, stats.getMillis());
+		return stats;
+	}
+
+	// Appends the commands rebuilding the given file from its chunks to the script
+	private static void appendRebuild(StringBuilder script, String restoreDirPath, String[] file, List<String[]> chunks,
+			Map<Long, String> chunkStores) {
+		String filePath = restoreDirPath + "/" + file[4];
+		String tempFilePath = filePath + TEMP_SUFFIX;
+		script.append("mkdir -p ").append(Shell.quote(Paths.get(filePath).getParent().toString())).append('\n');
+		if(chunks.isEmpty())
+			script.append(": > ").append(Shell.quote(tempFilePath)).append('\n');
+		for(int from = 0; from < chunks.size(); from += CAT_BATCH_SIZE) {
+			script.append("cat");
+			for(String[] chunk : chunks.subList(from, Math.min(chunks.size(), from + CAT_BATCH_SIZE))) {
+				String store = chunkStores.get(Long.parseLong(chunk[2]));
+				if(store == null)
+					throw new ServiceException(HttpStatus.INTERNAL_SERVER_ERROR,
+							"The chunks of version " + chunk[2] + " of " + file[4] + " are not in the restored backup chain");
+				script.append(' ').append(Shell.quote(store + "/" + chunk[0].substring(0, 2) + "/" + chunk[0]));
+			}
+			script.append(from == 0 ? " > " : " >> ").append(Shell.quote(tempFilePath)).append('\n');
+		}
+		script.append("[ \"$(stat -c %s ").append(Shell.quote(tempFilePath)).append(")\" = ").append(file[0])
+				.append(" ] || { echo ").append(Shell.quote("Rebuilt " + filePath + " has the wrong length")).append(" >&2; exit 1; }\n")
+				.append("chown ").append(file[2].replace(' ', ':')).append(' ').append(Shell.quote(tempFilePath)).append('\n')
+				.append("chmod ").append(file[1]).append(' ').append(Shell.quote(tempFilePath)).append('\n')
+				.append("touch -m -d @").append(file[3]).append(' ').append(Shell.quote(tempFilePath)).append('\n')
+				.append("mv -f ").append(Shell.quote(tempFilePath)).append(' ').append(Shell.quote(filePath)).append('\n');
+	}
+
+	// Runs the given script with sh -e, on the executor if any, keeping a few scripts in flight
+	private static void runScript(String script, ExecutorService executor, Deque<Future<?>> scripts) throws Exception {
+		if(executor == null) {
+			runScript(script);
+			return;
+		}
+		scripts.add(executor.submit(() -> {
+			runScript(script);
+			return null;
+		}));
+		if(scripts.size() > 8)
+			scripts.poll().get();
+	}
+
+	private static void runScript(String script) throws Exception {
+		ProcessConfigurator configurator = ProcessConfigurator.create();
+		configurator.pipedToStdin(script);
+		configurator.command(BaseCommand.withShell("/bin/sh -e"));
+		new OSCommand().exec(configurator);
+	}
+
+	@FunctionalInterface
+	private interface ManifestVisitor {
+		/**
+		 * Gets the length, mode, owner, mtime and path of a file, and the hash, length and version
+		 * of each of its chunks; or only the version of the manifest, if only the header is read.
+		 */
+		void visit(long version, String[] file, List<String[]> chunks) throws Exception;
+	}
+
+	// Reads the manifest of the given staging or incremental backup directory, if it has one
+	private void readManifest(String dirPath, ManifestVisitor visitor, boolean headerOnly) throws Exception {
+		InputStream in;
+		try {
+			in = StreamingCommand.openInput(streamCommandPrefix, dirPath + "/" + MANIFEST);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+			String versionLine = MANIFEST_START.equals(reader.readLine()) ? reader.readLine() : null;
+			if(versionLine == null || !versionLine.startsWith("version "))
+				return;
+			long version = Long.parseLong(versionLine.substring("version ".length()).trim());
+			if(headerOnly) {
+				visitor.visit(version, null, null);
+				return;
+			}
+			String[] file = null;
+			List<String[]> chunks = new ArrayList<>();
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.startsWith("chunk\t")) {
+					chunks.add(Arrays.copyOfRange(line.split("\t"), 1, 4));
+				} else if(line.startsWith("file\t")) {
+					if(file != null)
+						visitor.visit(version, file, chunks);
+					file = Arrays.copyOfRange(line.split("\t", 6), 1, 6);
+					chunks = new ArrayList<>();
+				}
+			}
+			if(file != null)
+				visitor.visit(version, file, chunks);
+		}
+	}
+
+	private static byte[] sha256(byte[] data) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(data);
+	}
+}
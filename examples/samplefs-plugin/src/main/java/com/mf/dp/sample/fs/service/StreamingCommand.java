@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpStatus;
+
+import com.mf.dp.uic.exception.ServiceException;
+
+/**
+ * A shell command whose standard input and output are exchanged with the plugin
+ * as streams while it runs.
+ *
+ * {@code OSCommand} collects the whole output of a command into a string and only
+ * accepts a string as the input, which is not viable for the output of a scan over
+ * millions of files. This class starts the command with {@link ProcessBuilder}
+ * instead. Because of that, it does not use the <em>sudo</em> capability of the
+ * Unified Integration Controller environment; if the command needs privileges
+ * that <em>dpuic</em> does not have, they must be obtained through the configured
+ * command prefix (e.g. {@code sudo -n}).
+ */
+final class StreamingCommand implements AutoCloseable {
+
+	private static final int MAX_ERROR_LENGTH = 4096;
+
+	private final String command;
+	private final Process process;
+	private final File stderrFile;
+
+	private StreamingCommand(String command, Process process, File stderrFile) {
+		this.command = command;
+		this.process = process;
+		this.stderrFile = stderrFile;
+	}
+
+	static StreamingCommand start(String commandPrefix, String command) throws IOException {
+		String fullCommand = StringUtils.isBlank(commandPrefix) ? command : commandPrefix.trim() + " " + command;
+		// The error output goes to a file, so that the command can never block on it
+		File stderrFile = File.createTempFile("samplefs", ".err");
+		stderrFile.deleteOnExit();
+		try {
+			Process process = new ProcessBuilder("/bin/sh", "-c", fullCommand)
+					.redirectError(stderrFile)
+					.start();
+			return new StreamingCommand(fullCommand, process, stderrFile);
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(stderrFile);
+			throw e;
+		}
+	}
+
+	OutputStream getStdin() {
+		return process.getOutputStream();
+	}
+
+	InputStream getStdout() {
+		return process.getInputStream();
+	}
+
+	/**
+	 * Closes the standard input, waits for the command to complete and returns the
+	 * remaining standard output. Throws ServiceException if the command failed.
+	 */
+	String waitFor() throws IOException, InterruptedException {
+		IOUtils.closeQuietly(process.getOutputStream());
+		String out = IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8).trim();
+		int exitCode = process.waitFor();
+		if(exitCode != 0) {
+			throw new ServiceException(HttpStatus.INTERNAL_SERVER_ERROR,
+					String.format("Command '%s' failed with exit code %d: %s", command, exitCode, readError()));
+		}
+		return out;
+	}
+
+	@Override
+	public void close() {
+		if(process.isAlive()) {
+			process.destroy();
+			try {
+				if(!process.waitFor(10, TimeUnit.SECONDS))
+					process.destroyForcibly();
+			} catch (InterruptedException e) {
+				process.destroyForcibly();
+				Thread.currentThread().interrupt();
+			}
+		}
+		FileUtils.deleteQuietly(stderrFile);
+	}
+
+	/**
+	 * Opens the given file, or reads it with {@code cat} through the given command prefix if
+	 * <em>dpuic</em> cannot.
+	 */
+	static InputStream openInput(String commandPrefix, String filePath) throws IOException {
+		try {
+			return new BufferedInputStream(Files.newInputStream(Paths.get(filePath)));
+		} catch (AccessDeniedException e) {
+			StreamingCommand cat = start(commandPrefix, "cat -- " + Shell.quote(filePath));
+			return new FilterInputStream(new BufferedInputStream(cat.getStdout())) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						cat.close();
+					}
+				}
+			};
+		}
+	}
+
+	/**
+	 * Creates the given file, or writes it with {@code tee} through the given command prefix if
+	 * <em>dpuic</em> cannot.
+	 */
+	static OutputStream openOutput(String commandPrefix, String filePath) throws IOException {
+		try {
+			return new BufferedOutputStream(Files.newOutputStream(Paths.get(filePath)));
+		} catch (AccessDeniedException e) {
+			StreamingCommand tee = start(commandPrefix, "tee -- " + Shell.quote(filePath) + " > /dev/null");
+			return new FilterOutputStream(new BufferedOutputStream(tee.getStdin())) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						out.flush();
+						tee.waitFor();
+					} catch (InterruptedException ie) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					} finally {
+						tee.close();
+					}
+				}
+			};
+		}
+	}
+
+	private String readError() {
+		try(RandomAccessFile file = new RandomAccessFile(stderrFile, "r")) {
+			long length = file.length();
+			long start = Math.max(0, length - MAX_ERROR_LENGTH);
+			byte[] tail = new byte[(int) (length - start)];
+			file.seek(start);
+			file.readFully(tail);
+			return new String(tail, StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			return "";
+		}
+	}
+}
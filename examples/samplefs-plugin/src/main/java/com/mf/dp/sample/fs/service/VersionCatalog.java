@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Per-version catalog of the backed-up files, used to plan the restore of some of them.
+ *
+ * Every backup writes the catalog of the state of the directory at the time of the backup
+ * into the state directory of the application object (see {@link FileStateIndex}). It is a
+ * gzip-compressed text file with a header line identifying the backup, followed by one
+ * line per regular file, in the order of the file state index:
+ *
+ * <pre>
+ * TAB backupTime TAB sessionId
+ * path TAB size TAB mtime TAB backupTime TAB sessionId
+ * </pre>
+ *
+ * where the path is relative to the backed-up directory, and the backup time and session
+ * identify the backup holding the newest copy of the file. The path of the header is empty,
+ * which no file can have. A full backup holds all the
+ * files. An incremental backup holds the files it staged, and takes the backup of all the
+ * others over from the catalog of the previous backup, joining the two in a single pass
+ * over the sorted files.
+ *
+ * A restore of selected paths looks them up in the catalog of the session being restored,
+ * so that only the backup chain up to the newest backup holding any of them is received.
+ */
+@Component
+public class VersionCatalog {
+
+	static final String CATALOG_DIR					= "catalog";
+	private static final String CATALOG_FILE_SUFFIX	= ".cat.gz";
+	private static final String PENDING_FILE_SUFFIX	= ".new";
+
+	private static Logger logger = LoggerFactory.getLogger(VersionCatalog.class);
+
+	@Value("${samplefs.catalog.enabled:true}")
+	private boolean enabled;
+
+	// Catalogs kept per application object, the newest ones first
+	@Value("${samplefs.catalog.retention:64}")
+	private int retention;
+
+	/**
+	 * The newest backup holding any of the selected files, and the number of these files.
+	 */
+	public static class Selection {
+		private final long fileCount;
+		private final long backupTime;
+		private final String sessionId;
+
+		Selection(long fileCount, long backupTime, String sessionId) {
+			this.fileCount = fileCount;
+			this.backupTime = backupTime;
+			this.sessionId = sessionId;
+		}
+
+		public long getFileCount() {
+			return fileCount;
+		}
+
+		public long getBackupTime() {
+			return backupTime;
+		}
+
+		public String getSessionId() {
+			return sessionId;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public Path getCatalogFile(Path stateDir, String sessionId) {
+		return stateDir.resolve(CATALOG_DIR).resolve(FileStateIndex.toFileName(sessionId) + CATALOG_FILE_SUFFIX);
+	}
+
+	public Path getPendingCatalogFile(Path catalogFile) {
+		return catalogFile.resolveSibling(catalogFile.getFileName() + PENDING_FILE_SUFFIX);
+	}
+
+	/**
+	 * Writes the pending catalog of a backup from the given file state index, which describes
+	 * the directory at the time of the backup. {@code stagedFiles} holds the paths (relative to
+	 * the log directory) of the files staged by an incremental backup; it is null for a full backup.
+	 * The files of an incremental backup that are missing from the previous catalog, if any,
+	 * are attributed to this backup, which makes a restore receive more than needed at worst.
+	 * Returns the number of files in the catalog.
+	 */
+	public long write(Path indexFile, String dirPath, Path previousCatalogFile, List<String> stagedFiles,
+			long backupTime, String sessionId, Path pendingCatalogFile) throws IOException {
+		// A block delta or a compressed file stands for the file it applies to, or else for a file of the same name
+		Set<String> stagedPaths = stagedFiles == null ? null : stagedFiles.stream()
+				.flatMap(file -> Stream.of(file, StringUtils.removeEnd(StringUtils.removeEnd(file, BlockDelta.SUFFIX), BlockCompressor.SUFFIX)))
+				.collect(Collectors.toSet());
+		String prefix = StringUtils.removeEnd(dirPath, "/") + "/";
+		String version = backupTime + "\t" + sessionId;
+		Files.createDirectories(pendingCatalogFile.getParent());
+		long files = 0;
+		long inherited = 0;
+		try(BufferedReader index = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8);
+				CatalogReader previous = stagedPaths != null && previousCatalogFile != null && Files.exists(previousCatalogFile)
+						? new CatalogReader(previousCatalogFile) : null;
+				Writer catalog = newWriter(pendingCatalogFile)) {
+			catalog.write("\t" + version + "\n");
+			String line;
+			while((line = index.readLine()) != null) {
+				// The line may end with a content hash (see ContentHasher), after the 4 fields of the state
+				int last = line.lastIndexOf('\t');
+				String[] fields = split(last >= 0 && line.startsWith(ContentHasher.PREFIX, last + 1) ? line.substring(0, last) : line, 4);
+				if(fields == null || !fields[0].startsWith(prefix))
+					continue;
+				String path = fields[0].substring(prefix.length());
+				String fileVersion = version;
+				if(stagedPaths != null && !stagedPaths.contains(path)) {
+					String[] entry = previous != null ? previous.seek(path) : null;
+					if(entry != null) {
+						fileVersion = entry[3] + "\t" + entry[4];
+						inherited++;
+					}
+				}
+				catalog.write(path + "\t" + fields[1] + "\t" + fields[2] + "\t" + fileVersion + "\n");
+				files++;
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(pendingCatalogFile);
+			throw e;
+		}
+		logger.info("Wrote the catalog {} of {} files, {} of them held by earlier backups", pendingCatalogFile, files, inherited);
+		return files;
+	}
+
+	/**
+	 * Writes the pending catalog of a synthetic full backup, which holds all the files of the
+	 * catalog of the last backup consolidated into it. Returns the number of files.
+	 */
+	public long writeConsolidated(Path previousCatalogFile, long backupTime, String sessionId, Path pendingCatalogFile) throws IOException {
+		String version = backupTime + "\t" + sessionId;
+		Files.createDirectories(pendingCatalogFile.getParent());
+		long files = 0;
+		try(CatalogReader previous = new CatalogReader(previousCatalogFile);
+				Writer catalog = newWriter(pendingCatalogFile)) {
+			catalog.write("\t" + version + "\n");
+			String[] entry;
+			while((entry = previous.next()) != null) {
+				catalog.write(entry[0] + "\t" + entry[1] + "\t" + entry[2] + "\t" + version + "\n");
+				files++;
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(pendingCatalogFile);
+			throw e;
+		}
+		logger.info("Wrote the catalog {} of {} consolidated files", pendingCatalogFile, files);
+		return files;
+	}
+
+	public void commit(Path pendingCatalogFile, Path catalogFile) throws IOException {
+		Files.move(pendingCatalogFile, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		prune(catalogFile.getParent());
+	}
+
+	public void discard(Path pendingCatalogFile) {
+		try {
+			if(Files.deleteIfExists(pendingCatalogFile))
+				logger.info("Discarded the pending catalog {}", pendingCatalogFile);
+		} catch (IOException e) {
+			logger.warn("Could not discard the pending catalog {}", pendingCatalogFile, e);
+		}
+	}
+
+	/**
+	 * Returns the newest backup holding any of the files selected by the given predicate on
+	 * their relative paths, or null if there is no catalog of the given session.
+	 */
+	public Selection select(Path catalogFile, Predicate<String> selected) throws IOException {
+		if(!Files.exists(catalogFile))
+			return null;
+		long files = 0;
+		long newestTime = Long.MIN_VALUE;
+		String newestSessionId = null;
+		try(CatalogReader catalog = new CatalogReader(catalogFile)) {
+			String[] entry;
+			while((entry = catalog.next()) != null) {
+				if(!selected.test(entry[0]))
+					continue;
+				files++;
+				long time = Long.parseLong(entry[3]);
+				if(time > newestTime) {
+					newestTime = time;
+					newestSessionId = entry[4];
+				}
+			}
+		}
+		return new Selection(files, newestTime, newestSessionId);
+	}
+
+	/**
+	 * Returns the predicate matching the given paths, relative to the backed-up directory,
+	 * and everything below them.
+	 */
+	public static Predicate<String> toPathFilter(String[] paths) {
+		List<String> prefixes = Arrays.stream(paths)
+				.map(path -> StringUtils.strip(path, "/"))
+				.collect(Collectors.toList());
+		return path -> prefixes.stream().anyMatch(prefix -> prefix.isEmpty()
+				|| path.equals(prefix) || path.startsWith(prefix + "/"));
+	}
+
+	private static Writer newWriter(Path catalogFile) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(Files.newOutputStream(catalogFile), 64 * 1024), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns the catalogs of the given state directory, the newest first.
+	 */
+	List<Path> listCatalogFiles(Path stateDir) throws IOException {
+		Path catalogDir = stateDir.resolve(CATALOG_DIR);
+		if(!Files.isDirectory(catalogDir))
+			return new ArrayList<>();
+		try(Stream<Path> files = Files.list(catalogDir)) {
+			return files
+					.filter(file -> file.getFileName().toString().endsWith(CATALOG_FILE_SUFFIX))
+					.sorted(Comparator.comparing((Path file) -> file.toFile().lastModified()).reversed())
+					.collect(Collectors.toList());
+		}
+	}
+
+	private void prune(Path catalogDir) {
+		try {
+			List<Path> catalogs = listCatalogFiles(catalogDir.getParent());
+			for(Path catalog : catalogs.subList(Math.min(catalogs.size(), Math.max(1, retention)), catalogs.size())) {
+				Files.deleteIfExists(catalog);
+				logger.debug("Removed the expired catalog {}", catalog);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not remove the expired catalogs in {}", catalogDir, e);
+		}
+	}
+
+	// Splits a line into the path and the given number of fields following it, or returns null if
+	// there are fewer. The fields are taken from the end, since the path itself may contain a TAB.
+	static String[] split(String line, int fieldCount) {
+		String[] fields = new String[fieldCount + 1];
+		int end = line.length();
+		for(int i = fieldCount; i > 0; i--) {
+			int tab = line.lastIndexOf('\t', end - 1);
+			if(tab <= 0)
+				return null;
+			fields[i] = line.substring(tab + 1, end);
+			end = tab;
+		}
+		fields[0] = line.substring(0, end);
+		return fields;
+	}
+
+	// Compares the paths the same way as the lines starting with them are sorted in the index
+	static int compare(String path1, String path2) {
+		int i = 0;
+		int j = 0;
+		while(true) {
+			int c1 = i < path1.length() ? path1.codePointAt(i) : '\t';
+			int c2 = j < path2.length() ? path2.codePointAt(j) : '\t';
+			if(c1 != c2 || i >= path1.length() || j >= path2.length())
+				return Integer.compare(c1, c2);
+			i += Character.charCount(c1);
+			j += Character.charCount(c2);
+		}
+	}
+
+	static class CatalogReader implements AutoCloseable {
+		private final BufferedReader reader;
+		private final long backupTime;
+		private final String sessionId;
+		private String[] entry;
+
+		CatalogReader(Path catalogFile) throws IOException {
+			this.reader = new BufferedReader(new InputStreamReader(
+					new GZIPInputStream(Files.newInputStream(catalogFile), 64 * 1024), StandardCharsets.UTF_8));
+			String[] header = new String[0];
+			try {
+				String line = reader.readLine();
+				if(line != null)
+					header = line.split("\t", 3);
+				if(header.length < 3 || !header[0].isEmpty())
+					throw new IOException("Not a catalog: " + catalogFile);
+			} catch (IOException e) {
+				reader.close();
+				throw e;
+			}
+			this.backupTime = Long.parseLong(header[1]);
+			this.sessionId = header[2];
+		}
+
+		// Of the backup that wrote the catalog
+		long getBackupTime() {
+			return backupTime;
+		}
+
+		String getSessionId() {
+			return sessionId;
+		}
+
+		String[] current() {
+			return entry;
+		}
+
+		String[] next() throws IOException {
+			String line;
+			do {
+				line = reader.readLine();
+				entry = line != null ? split(line, 4) : null;
+			} while(line != null && entry == null);
+			return entry;
+		}
+
+		// Skips to the given path, which must not precede the last one sought
+		String[] seek(String path) throws IOException {
+			if(entry == null && next() == null)
+				return null;
+			while(entry != null && compare(entry[0], path) < 0)
+				next();
+			return entry != null && entry[0].equals(path) ? entry : null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
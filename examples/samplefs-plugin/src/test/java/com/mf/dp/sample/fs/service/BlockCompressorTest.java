@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class BlockCompressorTest {
+
+	private static final int BLOCK_SIZE = BlockCompressor.MIN_BLOCK_SIZE;
+
+	private final Random random = new Random(1);
+
+	@Test
+	void filesCompressedConcurrentlyRoundTrip() throws Exception {
+		List<byte[]> contents = Arrays.asList(
+				new byte[0],
+				text(100),
+				text(3 * BLOCK_SIZE),
+				// Blocks that do not get smaller are stored as they are
+				concat(text(BLOCK_SIZE), random(BLOCK_SIZE + 17), text(5)),
+				text(7 * BLOCK_SIZE + 1));
+		List<ByteArrayOutputStream> outputs = new ArrayList<>();
+		List<BlockCompressor.Job> jobs = new ArrayList<>();
+		try(BlockCompressor compressor = new BlockCompressor(4, BLOCK_SIZE)) {
+			for(int i = 0; i < contents.size(); i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				outputs.add(out);
+				jobs.add(compressor.add(new ByteArrayInputStream(contents.get(i)), () -> out, header(contents.get(i).length), 7.5));
+			}
+			compressor.flush();
+		}
+
+		for(int i = 0; i < contents.size(); i++) {
+			BlockCompressor.Job job = jobs.get(i);
+			byte[] compressed = outputs.get(i).toByteArray();
+			assertTrue(job.isDone());
+			assertEquals(contents.get(i).length, job.getLength());
+			assertEquals(compressed.length, job.getCompressedLength());
+			
+			ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+			assertEquals(header(contents.get(i).length), BlockCompressor.decompress(new ByteArrayInputStream(compressed), decompressed));
+			assertArrayEquals(contents.get(i), decompressed.toByteArray());
+		}
+		assertTrue(jobs.get(2).getCompressedLength() < contents.get(2).length / 2);
+	}
+
+	@Test
+	void randomDataIsNotCompressed() throws Exception {
+		try(BlockCompressor compressor = new BlockCompressor(1, BLOCK_SIZE)) {
+			assertNull(compressor.add(new ByteArrayInputStream(random(2 * BLOCK_SIZE)), () -> {
+				throw new AssertionError("opened the output of random data");
+			}, header(2 * BLOCK_SIZE), 7.5));
+		}
+	}
+
+	@Test
+	void fileNamedLikeCompressedFileIsNotDecompressed() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertNull(BlockCompressor.decompress(new ByteArrayInputStream(text(1000)), out));
+		assertEquals(0, out.size());
+	}
+
+	@Test
+	void corruptedBlockIsRejected() throws Exception {
+		byte[] content = text(2 * BLOCK_SIZE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(BlockCompressor compressor = new BlockCompressor(1, BLOCK_SIZE)) {
+			compressor.add(new ByteArrayInputStream(content), () -> out, header(content.length), 7.5);
+			compressor.flush();
+		}
+		byte[] compressed = out.toByteArray();
+		compressed[compressed.length - 20] ^= 0x55;
+		assertThrows(IOException.class,
+				() -> BlockCompressor.decompress(new ByteArrayInputStream(compressed), new ByteArrayOutputStream()));
+	}
+
+	private static Map<String, String> header(long length) {
+		Map<String, String> header = new LinkedHashMap<>();
+		header.put("length", String.valueOf(length));
+		header.put("mode", "640");
+		header.put("owner", "1000 1000");
+		header.put("mtime", "1700000000.123456789");
+		return header;
+	}
+
+	private byte[] text(int length) {
+		StringBuilder text = new StringBuilder();
+		while(text.length() < length)
+			text.append("line ").append(random.nextInt(1000)).append(" of a compressible file\n");
+		return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), length);
+	}
+
+	private byte[] random(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] part : parts)
+			out.writeBytes(part);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+@EnabledOnOs(OS.LINUX)
+class BlockDeltaTest {
+
+	private static final int BLOCK_SIZE = 4096;
+	private static final Path APPLY_DELTA_SCRIPT = Paths.get("src/assembly/dist/bin/apply_delta.sh");
+
+	@TempDir
+	Path tempDir;
+
+	private final Random random = new Random(1);
+
+	@Test
+	void deltasRecreateEveryVersion() throws Exception {
+		Path file = tempDir.resolve("large file.img");
+		byte[] v1 = bytes(10 * BLOCK_SIZE + 100);
+		// Two blocks changed apart from each other, and the file grown
+		byte[] v2 = Arrays.copyOf(v1, 12 * BLOCK_SIZE);
+		overwrite(v2, 2 * BLOCK_SIZE + 5, 10);
+		overwrite(v2, 7 * BLOCK_SIZE, BLOCK_SIZE);
+		overwrite(v2, 10 * BLOCK_SIZE, 2 * BLOCK_SIZE);
+		// The file shrunk, with the last block cut short
+		byte[] v3 = Arrays.copyOf(v2, 5 * BLOCK_SIZE - 7);
+		overwrite(v3, 0, 1);
+
+		List<Path> deltas = new ArrayList<>();
+		Path signature = tempDir.resolve("none.sig");
+		long[] changed = new long[3];
+		int version = 0;
+		for(byte[] content : Arrays.asList(v1, v2, v3)) {
+			Files.write(file, content);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(1700000000000L + version * 1000L + 123));
+			Path newSignature = tempDir.resolve(version + ".sig");
+			Path delta = tempDir.resolve(version + BlockDelta.SUFFIX);
+			changed[version++] = BlockDelta.write(file, signature, newSignature, delta, BLOCK_SIZE);
+			deltas.add(delta);
+			signature = newSignature;
+		}
+		assertEquals(v1.length, changed[0]);
+		assertEquals(4L * BLOCK_SIZE, changed[1]);
+		assertEquals(2L * BLOCK_SIZE - 7, changed[2]);
+
+		// The whole chain, and every delta on top of the previous version
+		Path restored = tempDir.resolve("restored/large file.img");
+		applyDeltas(restored, deltas);
+		assertArrayEquals(v3, Files.readAllBytes(restored));
+		assertEquals(Files.getLastModifiedTime(file), Files.getLastModifiedTime(restored));
+		assertEquals(Files.getPosixFilePermissions(file), Files.getPosixFilePermissions(restored));
+
+		applyDeltas(restored, deltas.subList(0, 1));
+		assertArrayEquals(v1, Files.readAllBytes(restored));
+		applyDeltas(restored, deltas.subList(1, 2));
+		assertArrayEquals(v2, Files.readAllBytes(restored));
+		applyDeltas(restored, deltas.subList(2, 3));
+		assertArrayEquals(v3, Files.readAllBytes(restored));
+	}
+
+	@Test
+	void deltaWithoutValidSignatureHoldsWholeFile() throws Exception {
+		Path file = tempDir.resolve("file");
+		byte[] content = bytes(3 * BLOCK_SIZE);
+		Files.write(file, content);
+		Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r-----"));
+		Path signature = tempDir.resolve("file.sig");
+		BlockDelta.write(file, tempDir.resolve("none.sig"), signature, tempDir.resolve("first" + BlockDelta.SUFFIX), BLOCK_SIZE);
+
+		// A signature of another block size does not count
+		Path delta = tempDir.resolve("file" + BlockDelta.SUFFIX);
+		assertEquals(content.length, BlockDelta.write(file, signature, tempDir.resolve("new.sig"), delta, BLOCK_SIZE * 2));
+
+		// So it replaces whatever is there
+		Path restored = tempDir.resolve("restored");
+		Files.write(restored, bytes(5 * BLOCK_SIZE));
+		applyDeltas(restored, Arrays.asList(delta));
+		assertArrayEquals(content, Files.readAllBytes(restored));
+		assertEquals(PosixFilePermissions.fromString("rw-r-----"), Files.getPosixFilePermissions(restored));
+	}
+
+	@Test
+	void fileNamedLikeDeltaIsNotEvaluated() throws Exception {
+		// The end of the file is an arithmetic expression running a command, in place of the offset
+		Path file = tempDir.resolve("notes" + BlockDelta.SUFFIX);
+		Files.write(file, "notes 1+a[$(touch pwned)] \n".getBytes(StandardCharsets.US_ASCII));
+		Path restored = tempDir.resolve("restored");
+		Files.write(restored, bytes(BLOCK_SIZE));
+		byte[] content = Files.readAllBytes(restored);
+
+		assertNotEquals(0, runApplyDeltas(restored, Arrays.asList(file)));
+		assertFalse(Files.exists(tempDir.resolve("pwned")));
+		assertArrayEquals(content, Files.readAllBytes(restored));
+	}
+
+	private void applyDeltas(Path target, List<Path> deltas) throws IOException, InterruptedException {
+		assertTrue(runApplyDeltas(target, deltas) == 0, "apply_delta.sh failed");
+	}
+
+	private int runApplyDeltas(Path target, List<Path> deltas) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<>(Arrays.asList("bash", APPLY_DELTA_SCRIPT.toAbsolutePath().toString(), target.toString()));
+		deltas.forEach(delta -> command.add(delta.toString()));
+		return new ProcessBuilder(command).directory(tempDir.toFile()).inheritIO().start().waitFor();
+	}
+
+	private byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private void overwrite(byte[] content, int offset, int length) {
+		byte[] bytes = bytes(length);
+		System.arraycopy(bytes, 0, content, offset, length);
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.mf.dp.sample.fs.model.CatalogMatch;
+import com.mf.dp.sample.fs.model.CatalogSearchResult;
+
+class CatalogSearchTest {
+
+	private final FileStateIndex fileStateIndex = new FileStateIndex();
+	private final VersionCatalog versionCatalog = new VersionCatalog();
+	private final CatalogSearch catalogSearch = new CatalogSearch();
+
+	@TempDir
+	Path tempDir;
+
+	private Path stateDir;
+
+	@BeforeEach
+	void setUp() {
+		ReflectionTestUtils.setField(fileStateIndex, "indexDir", tempDir.toString());
+		ReflectionTestUtils.setField(versionCatalog, "retention", 64);
+		ReflectionTestUtils.setField(catalogSearch, "fileStateIndex", fileStateIndex);
+		ReflectionTestUtils.setField(catalogSearch, "versionCatalog", versionCatalog);
+		stateDir = fileStateIndex.getStateDirectory("app", "1", "host");
+	}
+
+	@Test
+	void searchMergesCatalogs() throws Exception {
+		Path full = writeCatalog(Arrays.asList("a/x.txt", "a/y.log", "b/x.txt"), null, null, 1000, "full");
+		writeCatalog(Arrays.asList("a/x.txt", "b/x.txt", "c/z.txt"), full, Arrays.asList("c/z.txt"), 2000, "incr");
+
+		// A deleted file is still found in the backups that have it
+		assertEquals(Arrays.asList("a/y.log [full]"), search("y.log", 100));
+		assertEquals(Arrays.asList("a/x.txt [incr, full]", "b/x.txt [incr, full]", "c/z.txt [incr]"), search("*.txt", 100));
+		// A glob with a slash matches the whole path
+		assertEquals(Arrays.asList("a/x.txt [incr, full]", "a/y.log [full]"), search("a/*", 100));
+		assertEquals(Arrays.asList("a/x.txt [incr, full]", "b/x.txt [incr, full]"), search("x.t", 100));
+		assertEquals(new ArrayList<>(), search("nothing", 100));
+
+		CatalogSearchResult result = catalogSearch.search("app", "1", null, "*.txt", 2);
+		assertEquals(2, result.getMatches().size());
+		assertTrue(result.isTruncated());
+		assertEquals(Arrays.asList("incr", "full"),
+				result.getVersions().stream().map(version -> version.getSessionId()).collect(Collectors.toList()));
+	}
+
+	@Test
+	void searchUpdatesIndexWithNewAndRemovedCatalogs() throws Exception {
+		Path full = writeCatalog(Arrays.asList("a", "b"), null, null, 1000, "full");
+		assertEquals(Arrays.asList("a [full]"), search("a", 100));
+
+		Path incr = writeCatalog(Arrays.asList("a", "c"), full, Arrays.asList("c"), 2000, "incr");
+		assertEquals(Arrays.asList("a [incr, full]", "b [full]", "c [incr]"), search("*", 100));
+
+		// Expired catalogs give their slots up
+		Files.delete(full);
+		writeCatalog(Arrays.asList("c", "d"), incr, Arrays.asList("d"), 3000, "incr2");
+		assertEquals(Arrays.asList("a [incr]", "c [incr2, incr]", "d [incr2]"), search("*", 100));
+		assertTrue(search("b", 100).isEmpty());
+	}
+
+	// Returns the matches as "path [sessions]"
+	private List<String> search(String pattern, int limit) {
+		List<String> matches = new ArrayList<>();
+		for(CatalogMatch match : catalogSearch.search("app", "1", "host", pattern, limit).getMatches())
+			matches.add(match.getPath() + " " + match.getSessionIds());
+		return matches;
+	}
+
+	private Path writeCatalog(List<String> files, Path previousCatalogFile, List<String> stagedFiles, long backupTime, String sessionId)
+			throws IOException {
+		List<String> lines = new ArrayList<>();
+		for(String file : files)
+			lines.add("/d/" + file + "\t1\t1.0\t1.0\t1");
+		Path indexFile = tempDir.resolve(sessionId + ".idx");
+		Files.write(indexFile, lines, StandardCharsets.UTF_8);
+		Path catalogFile = versionCatalog.getCatalogFile(stateDir, sessionId);
+		Path pendingCatalogFile = versionCatalog.getPendingCatalogFile(catalogFile);
+		versionCatalog.write(indexFile, "/d", previousCatalogFile, stagedFiles, backupTime, sessionId, pendingCatalogFile);
+		versionCatalog.commit(pendingCatalogFile, catalogFile);
+		// The catalogs are told apart by their modification time
+		Files.setLastModifiedTime(catalogFile, FileTime.fromMillis(backupTime * 1000));
+		return catalogFile;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+@EnabledOnOs(OS.LINUX)
+class CopyFilesScriptTest {
+
+	private static final Path COPY_FILES_SCRIPT = Paths.get("src/assembly/dist/bin/copy_files.sh");
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void parallelBatchesCopyEveryFile() throws Exception {
+		// Batches of a single file, whose neighbours share the same new parent directories,
+		// so that the concurrent batches race to create these
+		Path srcDir = tempDir.resolve("src");
+		List<String> files = new ArrayList<>();
+		for(int i = 0; i < 2000; i++)
+			files.add(srcDir.resolve("d" + i / 5 + "/e/f/g/h/file " + i + ".txt").toString());
+		for(String file : files)
+			writeFile(Paths.get(file));
+
+		Path dstDir = tempDir.resolve("dst");
+		assertEquals(new Result(0, "2000"), copyFiles(srcDir, dstDir, "16", "1", files));
+		for(String file : files) {
+			Path src = Paths.get(file);
+			Path dst = dstDir.resolve(srcDir.relativize(src));
+			assertArrayEquals(Files.readAllBytes(src), Files.readAllBytes(dst), file);
+			assertEquals(Files.getLastModifiedTime(src), Files.getLastModifiedTime(dst), file);
+		}
+	}
+
+	@Test
+	void failedFilesAreNotCounted() throws Exception {
+		Path srcDir = tempDir.resolve("src");
+		List<String> files = new ArrayList<>();
+		for(int i = 0; i < 10; i++)
+			files.add(srcDir.resolve("d/file" + i).toString());
+		for(String file : files)
+			writeFile(Paths.get(file));
+		files.add(4, srcDir.resolve("d/missing").toString());
+
+		Path dstDir = tempDir.resolve("dst");
+		Result result = copyFiles(srcDir, dstDir, "2", "4", files);
+		assertNotEquals(0, result.exitCode);
+		assertEquals("10", result.out);
+		assertFalse(Files.exists(dstDir.resolve("d/missing")));
+	}
+
+	@Test
+	void namesAreNotInterpreted() throws Exception {
+		Path srcDir = tempDir.resolve("src");
+		String name = "$(touch pwned) `touch pwned` 'x\" -f";
+		Path file = srcDir.resolve("-d/" + name);
+		writeFile(file);
+
+		Path dstDir = tempDir.resolve("dst");
+		List<String> files = new ArrayList<>();
+		files.add(file.toString());
+		assertEquals(new Result(0, "1"), copyFiles(srcDir, dstDir, "1", "1", files));
+		assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(dstDir.resolve("-d/" + name)));
+		assertFalse(Files.exists(srcDir.resolve("pwned")));
+		assertFalse(Files.exists(Paths.get("pwned")));
+	}
+
+	private static class Result {
+		private final int exitCode;
+		private final String out;
+
+		Result(int exitCode, String out) {
+			this.exitCode = exitCode;
+			this.out = out;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof Result && ((Result) other).exitCode == exitCode && ((Result) other).out.equals(out);
+		}
+
+		@Override
+		public int hashCode() {
+			return exitCode * 31 + out.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return "exit code " + exitCode + ", output " + out;
+		}
+	}
+
+	private static Result copyFiles(Path srcDir, Path dstDir, String parallelism, String batchSize, List<String> files)
+			throws IOException, InterruptedException {
+		Process process = new ProcessBuilder("bash", COPY_FILES_SCRIPT.toString(), srcDir.toString(), dstDir.toString(),
+				parallelism, batchSize, "copy")
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		process.getOutputStream().write((String.join("\n", files) + "\n").getBytes(StandardCharsets.UTF_8));
+		process.getOutputStream().close();
+		String out = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+		return new Result(process.waitFor(), out);
+	}
+
+	private static void writeFile(Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, file.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+		Files.setLastModifiedTime(file, FileTime.fromMillis(1700000000000L + file.hashCode()));
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileStateIndexTest {
+
+	// Paths whose order differs between a plain string sort and the byte order of the lines
+	private static final List<String> PATHS = Arrays.asList(
+			"/d/a", "/d/a b", "/d/a-b", "/d/a.b", "/d/a/b", "/d/a/b/c", "/d/a0", "/d/B",
+			"/d/é", "/d/zéz", "/d/中", "/d/😀", "/d/～");
+
+	private final FileStateIndex fileStateIndex = new FileStateIndex();
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	@EnabledOnOs(OS.LINUX)
+	void mergeSortsLikeSortCommand() throws Exception {
+		List<String> lines = PATHS.stream().map(FileStateIndexTest::line).collect(Collectors.toList());
+		Collections.shuffle(lines, new Random(1));
+		Path scanFile = tempDir.resolve("scan");
+		Files.write(scanFile, lines, StandardCharsets.UTF_8);
+		Path sortedFile = tempDir.resolve("sorted");
+		ProcessBuilder sort = new ProcessBuilder("sort", "-o", sortedFile.toString(), scanFile.toString());
+		sort.environment().put("LC_ALL", "C");
+		assertEquals(0, sort.inheritIO().start().waitFor());
+		
+		assertEquals(Files.readAllLines(sortedFile), Files.readAllLines(writeIndex(lines)));
+	}
+
+	@Test
+	void findLocatesEveryIndexedPath() throws Exception {
+		Path indexFile = writeIndex(PATHS.stream().map(FileStateIndexTest::line).collect(Collectors.toList()));
+		try(MappedFileStateIndex index = MappedFileStateIndex.open(indexFile)) {
+			for(String path : PATHS) {
+				byte[] line = line(path).getBytes(StandardCharsets.UTF_8);
+				int pathEnd = path.getBytes(StandardCharsets.UTF_8).length;
+				long offset = index.find(line, 0, pathEnd);
+				assertTrue(offset >= 0, path);
+				assertTrue(index.matchesLine(offset, line, 0, line.length), path);
+				assertTrue(index.containsLine(line, 0, line.length, pathEnd), path);
+			}
+			for(String path : Arrays.asList("/d", "/d/", "/d/a/", "/d/a/b/", "/d/a.", "/d/A", "/d/zz", "/d/é/x", "/e")) {
+				byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+				assertEquals(-1, index.find(bytes, 0, bytes.length), path);
+			}
+		}
+	}
+
+	@Test
+	void findTellsChangedStates() throws Exception {
+		Path indexFile = writeIndex(Arrays.asList("/d/a\t1\t10.0\t10.0\t1", "/d/b\t2\t20.0\t20.0\t2\tx:ab"));
+		try(MappedFileStateIndex index = MappedFileStateIndex.open(indexFile)) {
+			assertTrue(containsLine(index, "/d/a\t1\t10.0\t10.0\t1"));
+			assertFalse(containsLine(index, "/d/a\t1\t11.0\t10.0\t1"));
+			assertFalse(containsLine(index, "/d/a\t1\t10.0\t10.0\t12"));
+			// The content hash of the index is not part of the state
+			assertTrue(containsLine(index, "/d/b\t2\t20.0\t20.0\t2"));
+			assertFalse(containsLine(index, "/d/c\t2\t20.0\t20.0\t2"));
+		}
+	}
+
+	@Test
+	void mergeReplacesAndDeletesLines() throws Exception {
+		Path indexFile = writeIndex(Arrays.asList(line("/d/a"), line("/d/b/c"), line("/d/b/d"), line("/d/e"), line("/d/f")));
+		Path pendingIndexFile = tempDir.resolve("files.idx.new");
+		// b turned from a directory into a file, e changed, f was deleted and g was added
+		Set<String> replaced = Set.of("/d/b", "/d/e", "/d/f");
+		fileStateIndex.merge(indexFile, pendingIndexFile,
+				path -> replaced.contains(path) || path.startsWith("/d/b/"),
+				(line("/d/g") + "\n" + "/d/e\t9\t9.0\t9.0\t9\n" + line("/d/b") + "\n").getBytes(StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList(line("/d/a"), line("/d/b"), "/d/e\t9\t9.0\t9.0\t9", line("/d/g")),
+				Files.readAllLines(pendingIndexFile));
+	}
+
+	@Test
+	void mergeReplacesAndDeletesHashedLines() throws Exception {
+		// With content-based change detection, the lines end with the content hash
+		Path indexFile = writeIndex(Arrays.asList(hashed("/d/a"), hashed("/d/b/c"), hashed("/d/e"), hashed("/d/f")));
+		Path pendingIndexFile = tempDir.resolve("files.idx.new");
+		Set<String> replaced = Set.of("/d/b", "/d/e", "/d/f");
+		fileStateIndex.merge(indexFile, pendingIndexFile,
+				path -> replaced.contains(path) || path.startsWith("/d/b/"),
+				("/d/e\t9\t9.0\t9.0\t9\txxh64:0000000000000009\n").getBytes(StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList(hashed("/d/a"), "/d/e\t9\t9.0\t9.0\t9\txxh64:0000000000000009"),
+				Files.readAllLines(pendingIndexFile));
+	}
+
+	@Test
+	void selectChangedFilesAgainstIndex() throws Exception {
+		Path indexFile = writeIndex(Arrays.asList(line("/d/a"), line("/d/b"), line("/d/c")));
+		String scan = line("/d/c") + "\n" + "/d/b\t1\t2.0\t2.0\t7\n" + line("/d/new") + "\n" + line("/d/a") + "\n";
+		ByteArrayOutputStream scanCopy = new ByteArrayOutputStream();
+		ByteArrayOutputStream changedFiles = new ByteArrayOutputStream();
+		long selected = fileStateIndex.selectChangedFiles(new ByteArrayInputStream(scan.getBytes(StandardCharsets.UTF_8)),
+				scanCopy, indexFile, 0, changedFiles);
+		assertEquals(2, selected);
+		assertEquals("/d/b\n/d/new\n", changedFiles.toString(StandardCharsets.UTF_8));
+		assertEquals(scan, scanCopy.toString(StandardCharsets.UTF_8));
+	}
+
+	private Path writeIndex(List<String> lines) throws IOException {
+		Path emptyFile = Files.createFile(tempDir.resolve("empty-" + System.nanoTime()));
+		Path indexFile = tempDir.resolve("files-" + System.nanoTime() + ".idx");
+		fileStateIndex.merge(emptyFile, indexFile, path -> false,
+				(String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+		return indexFile;
+	}
+
+	private static boolean containsLine(MappedFileStateIndex index, String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		return index.containsLine(bytes, 0, bytes.length, line.indexOf('\t'));
+	}
+
+	private static String hashed(String path) {
+		return line(path) + "\t" + ContentHasher.PREFIX + String.format("%016x", path.hashCode());
+	}
+
+	private static String line(String path) {
+		return path + "\t" + path.length() + "\t1700000000.1234567890\t1700000000.1234567890\t" + (path.hashCode() & 0xffff);
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.mf.dp.sample.fs.model.RestorePlan;
+
+class RestorePlannerTest {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	// Lists and checks the files within the JVM rather than with OS commands
+	private static class LocalFSService extends FSService {
+		@Override
+		public List<String> listFiles(String dirPath) {
+			Path dir = Path.of(dirPath);
+			try(Stream<Path> files = Files.walk(dir)) {
+				return files.filter(Files::isRegularFile)
+						.map(file -> dir.relativize(file).toString())
+						.sorted()
+						.collect(Collectors.toList());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public boolean isBlockDelta(String filePath) {
+			try(RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+				byte[] trailer = new byte[BlockDelta.TRAILER_LENGTH - 1];
+				if(file.length() < BlockDelta.TRAILER_LENGTH)
+					return false;
+				file.seek(file.length() - BlockDelta.TRAILER_LENGTH);
+				file.readFully(trailer);
+				String offset = new String(trailer, StandardCharsets.US_ASCII);
+				if(!BlockDelta.isTrailer(offset))
+					return false;
+				byte[] magic = new byte[BlockDelta.MAGIC.length()];
+				file.seek(Long.parseLong(offset));
+				file.readFully(magic);
+				return BlockDelta.MAGIC.equals(new String(magic, StandardCharsets.US_ASCII));
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+
+	@TempDir
+	Path tempDir;
+
+	private final RestorePlanner restorePlanner = new RestorePlanner();
+
+	@BeforeEach
+	void setUp() {
+		StagedFileDeduplicator stagedFileDeduplicator = new StagedFileDeduplicator();
+		ReflectionTestUtils.setField(stagedFileDeduplicator, "streamCommandPrefix", "");
+		ReflectionTestUtils.setField(restorePlanner, "fsService", new LocalFSService());
+		ReflectionTestUtils.setField(restorePlanner, "stagedFileDeduplicator", stagedFileDeduplicator);
+	}
+
+	@Test
+	void collectsDeltasUpToTheNewestWholeCopy() throws Exception {
+		Path source = tempDir.resolve("source");
+		Files.createDirectories(source);
+		List<String> chain = Arrays.asList(incr("1"), incr("2"), incr("3"));
+		// a changes in 1 and 2; db is a delta chain; vm is copied as a whole in 2
+		write(chain.get(0), "a", "a1");
+		write(chain.get(1), "a", "a2");
+		writeDelta(source, chain.get(0), "data/db", "none.sig", "db1.sig");
+		writeDelta(source, chain.get(1), "data/db", "db1.sig", "db2.sig");
+		writeDelta(source, chain.get(2), "data/db", "db2.sig", "db3.sig");
+		writeDelta(source, chain.get(0), "vm", "none.sig", "vm1.sig");
+		write(chain.get(1), "vm", "vm2");
+		writeDelta(source, chain.get(2), "vm", "vm1.sig", "vm3.sig");
+
+		RestorePlan plan = restorePlanner.plan(chain);
+
+		assertEquals(Map.of(chain.get(0), List.of(), chain.get(1), List.of("a", "vm"), chain.get(2), List.of()),
+				plan.getFilesBySource());
+		assertEquals(Map.of(
+				"data/db", Arrays.asList(chain.get(0) + "/data/db.sfdelta", chain.get(1) + "/data/db.sfdelta", chain.get(2) + "/data/db.sfdelta"),
+				"vm", List.of(chain.get(2) + "/vm.sfdelta")),
+				plan.getDeltaChains());
+		assertEquals(3, plan.getFileCount());
+		// a and the delta of vm in 1
+		assertEquals(2, plan.getSupersededCount());
+	}
+
+	@Test
+	void restoresFilesNamedLikeDeltasAsFiles() throws Exception {
+		List<String> chain = Arrays.asList(incr("1"), incr("2"));
+		// Ends like a delta, but the offset does not lead to a manifest
+		write(chain.get(0), "notes.sfdelta", "x".repeat(40) + "00000000000000000000\n");
+		write(chain.get(1), "log.sfdelta", "line\n");
+
+		RestorePlan plan = restorePlanner.plan(chain);
+
+		assertEquals(Map.of(chain.get(0), List.of("notes.sfdelta"), chain.get(1), List.of("log.sfdelta")), plan.getFilesBySource());
+		assertEquals(Map.of(), plan.getDeltaChains());
+		assertEquals(2, plan.getFileCount());
+	}
+
+	@Test
+	void skipsTheChunkDirectoryOfDeduplicatedBackupsOnly() throws Exception {
+		List<String> chain = Arrays.asList(incr("1"), incr("2"));
+		// A directory of the backed-up tree that happens to have the name of the chunk directory
+		write(chain.get(0), StagedFileDeduplicator.DIR_NAME + "/notes", "notes");
+		write(chain.get(1), StagedFileDeduplicator.DIR_NAME + "/manifest",
+				"SFDEDUP 1\nversion 2\nfile\t5\t644\t0 0\t1.0\tbig\nchunk\t" + "0".repeat(64) + "\t5\t2\n");
+		write(chain.get(1), StagedFileDeduplicator.DIR_NAME + "/chunks/00/" + "0".repeat(64), "chunk");
+
+		RestorePlan plan = restorePlanner.plan(chain);
+
+		assertEquals(Map.of(chain.get(0), List.of(StagedFileDeduplicator.DIR_NAME + "/notes"), chain.get(1), List.of()),
+				plan.getFilesBySource());
+		assertEquals(Map.of(chain.get(1), List.of("big")), plan.getChunkedFilesBySource());
+		assertEquals(2, plan.getFileCount());
+	}
+
+	private String incr(String name) throws IOException {
+		return Files.createDirectories(tempDir.resolve("incr" + name)).toString();
+	}
+
+	private static void write(String dirPath, String relativePath, String content) throws IOException {
+		Path file = Path.of(dirPath, relativePath);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, content);
+	}
+
+	// Writes a delta of a new version of the source file against the given signature
+	private void writeDelta(Path source, String dirPath, String relativePath, String signature, String newSignature) throws IOException {
+		Path file = source.resolve(relativePath);
+		Files.createDirectories(file.getParent());
+		Files.writeString(file, newSignature.repeat(BLOCK_SIZE));
+		Path delta = Path.of(dirPath, relativePath + BlockDelta.SUFFIX);
+		Files.createDirectories(delta.getParent());
+		BlockDelta.write(file, source.resolve(signature), source.resolve(newSignature), delta, BLOCK_SIZE);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class ScanLineReaderTest {
+
+	@Test
+	void readsLinesWithAndWithoutContentHash() throws Exception {
+		ScanLineReader reader = reader("/d/a.txt\t12\t1700000000.1234567890\t1700000001.0\t42\txxh64:abcdef\n"
+				+ "/d/b\t7\t1700000002.5\t1700000002.5\t43\n");
+		assertTrue(reader.next());
+		assertEquals("/d/a.txt", path(reader));
+		assertEquals(12, reader.size());
+		assertEquals(1700000000123L, reader.modTime());
+		assertTrue(reader.next());
+		assertEquals("/d/b", path(reader));
+		assertEquals(7, reader.size());
+		assertEquals(1700000002500L, reader.modTime());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	void keepsTabsOfThePath() throws Exception {
+		ScanLineReader reader = reader("/d/a\tb\t3\t1.0\t1.0\t1\txxh64:0123456789abcdef\n/d/xxh64:\t4\t2.0\t2.0\t2");
+		assertTrue(reader.next());
+		assertEquals("/d/a\tb", path(reader));
+		assertEquals(3, reader.size());
+		// Last line without a trailing newline, whose path only looks like a hash
+		assertTrue(reader.next());
+		assertEquals("/d/xxh64:", path(reader));
+		assertEquals(4, reader.size());
+		assertFalse(reader.next());
+	}
+
+	@Test
+	void skipsMalformedLines() throws Exception {
+		ScanLineReader reader = reader("garbage\n/d/a\t1\t1.0\txxh64:ab\n\n/d/c\t5\t1.0\t1.0\t1\n");
+		assertTrue(reader.next());
+		assertEquals("/d/c", path(reader));
+		assertFalse(reader.next());
+	}
+
+	@Test
+	void writesWholeLines() throws Exception {
+		String line = "/d/a\t1\t1.0\t1.0\t1\txxh64:ab";
+		ScanLineReader reader = reader(line);
+		assertTrue(reader.next());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		reader.writeLine(out);
+		assertEquals(line + "\n", out.toString(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void growsForLongLines() throws Exception {
+		String path = "/d/" + "x".repeat(200 * 1024);
+		ScanLineReader reader = reader("/d/a\t1\t1.0\t1.0\t1\n" + path + "\t2\t1.0\t1.0\t1\txxh64:ab\n");
+		assertTrue(reader.next());
+		assertTrue(reader.next());
+		assertEquals(path, path(reader));
+		assertEquals(2, reader.size());
+		assertFalse(reader.next());
+	}
+
+	private static ScanLineReader reader(String lines) {
+		return new ScanLineReader(new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String path(ScanLineReader reader) {
+		return new String(reader.buffer(), reader.lineStart(), reader.pathEnd() - reader.lineStart(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2023 Micro Focus or one of its affiliates.
+ *
+ * Licensed under the MIT License (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/MIT
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mf.dp.sample.fs.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class VersionCatalogTest {
+
+	private final VersionCatalog versionCatalog = new VersionCatalog();
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void incrementalCatalogTakesUnstagedFilesOver() throws Exception {
+		Path full = writeCatalog(Arrays.asList("a", "a b", "a/b", "a/c", "d"), null, null, 1000, "full");
+		assertEquals(Arrays.asList(
+				"a\t1\t1.0\t1000\tfull", "a b\t1\t1.0\t1000\tfull", "a/b\t1\t1.0\t1000\tfull",
+				"a/c\t1\t1.0\t1000\tfull", "d\t1\t1.0\t1000\tfull"),
+				readCatalog(full));
+
+		// a/b changed, d was deleted and e added; a compressed file and a delta stand for their files
+		Path incr1 = writeCatalog(Arrays.asList("a", "a b", "a/b", "a/c", "e"), full,
+				Arrays.asList("a/b" + BlockCompressor.SUFFIX, "e"), 2000, "incr1");
+		Path incr2 = writeCatalog(Arrays.asList("a", "a b", "a/b", "a/c", "e"), incr1,
+				Arrays.asList("a b" + BlockDelta.SUFFIX), 3000, "incr2");
+		assertEquals(Arrays.asList(
+				"a\t1\t1.0\t1000\tfull", "a b\t1\t1.0\t3000\tincr2", "a/b\t1\t1.0\t2000\tincr1",
+				"a/c\t1\t1.0\t1000\tfull", "e\t1\t1.0\t2000\tincr1"),
+				readCatalog(incr2));
+
+		// A synthetic full backup holds all the files itself
+		Path consolidated = tempDir.resolve("consolidated.cat.gz");
+		assertEquals(5, versionCatalog.writeConsolidated(incr2, 4000, "synth", consolidated));
+		assertTrue(readCatalog(consolidated).stream().allMatch(line -> line.endsWith("\t4000\tsynth")));
+	}
+
+	@Test
+	void filesMissingFromPreviousCatalogBelongToTheBackup() throws Exception {
+		Path full = writeCatalog(Arrays.asList("b"), null, null, 1000, "full");
+		Path incr = writeCatalog(Arrays.asList("a", "b", "c"), full, new ArrayList<>(), 2000, "incr");
+		assertEquals(Arrays.asList("a\t1\t1.0\t2000\tincr", "b\t1\t1.0\t1000\tfull", "c\t1\t1.0\t2000\tincr"),
+				readCatalog(incr));
+	}
+
+	@Test
+	void selectFindsNewestBackupOfSelectedPaths() throws Exception {
+		Path full = writeCatalog(Arrays.asList("a/b", "a/c", "ab", "d/e"), null, null, 1000, "full");
+		Path incr = writeCatalog(Arrays.asList("a/b", "a/c", "ab", "d/e"), full, Arrays.asList("ab"), 2000, "incr");
+
+		VersionCatalog.Selection selection = versionCatalog.select(incr, VersionCatalog.toPathFilter(new String[] {"/a/"}));
+		assertEquals(2, selection.getFileCount());
+		assertEquals(1000, selection.getBackupTime());
+		assertEquals("full", selection.getSessionId());
+
+		selection = versionCatalog.select(incr, VersionCatalog.toPathFilter(new String[] {"d", "ab"}));
+		assertEquals(2, selection.getFileCount());
+		assertEquals("incr", selection.getSessionId());
+
+		assertEquals(4, versionCatalog.select(incr, VersionCatalog.toPathFilter(new String[] {"/"})).getFileCount());
+		assertEquals(0, versionCatalog.select(incr, VersionCatalog.toPathFilter(new String[] {"a/b/c"})).getFileCount());
+		assertNull(versionCatalog.select(tempDir.resolve("missing.cat.gz"), path -> true));
+	}
+
+	@Test
+	void pathsWithTabsKeepTheirFields() throws Exception {
+		// Hashed lines as written with content-based change detection
+		Path indexFile = tempDir.resolve("hashed.idx");
+		Files.write(indexFile, Arrays.asList(
+				"/d/a\t1\t1.0\t1.0\t1\txxh64:0123456789abcdef",
+				"/d/b\tc\t7\t7.0\t1.0\t2\txxh64:0123456789abcdef",
+				"/d/d\te\tf\t9\t9.0\t1.0\t3"), StandardCharsets.UTF_8);
+		Path full = tempDir.resolve("tabs.cat.gz");
+		assertEquals(3, versionCatalog.write(indexFile, "/d", null, null, 1000, "full", full));
+		assertEquals(Arrays.asList("a\t1\t1.0\t1000\tfull", "b\tc\t7\t7.0\t1000\tfull", "d\te\tf\t9\t9.0\t1000\tfull"),
+				readCatalog(full));
+
+		// The entries of the previous catalog are found by their whole paths
+		Path incr = tempDir.resolve("tabs-incr.cat.gz");
+		assertEquals(3, versionCatalog.write(indexFile, "/d", full, Arrays.asList("d\te\tf"), 2000, "incr", incr));
+		try(VersionCatalog.CatalogReader reader = new VersionCatalog.CatalogReader(incr)) {
+			assertEquals(Arrays.asList("b\tc", "7", "7.0", "1000", "full"), Arrays.asList(reader.seek("b\tc")));
+			assertEquals(Arrays.asList("d\te\tf", "9", "9.0", "2000", "incr"), Arrays.asList(reader.seek("d\te\tf")));
+		}
+		VersionCatalog.Selection selection = versionCatalog.select(incr, VersionCatalog.toPathFilter(new String[] {"b\tc"}));
+		assertEquals(1, selection.getFileCount());
+		assertEquals("full", selection.getSessionId());
+	}
+
+	@Test
+	void compareFollowsIndexOrder() {
+		Predicate<String[]> ordered = pair -> VersionCatalog.compare(pair[0], pair[1]) < 0 && VersionCatalog.compare(pair[1], pair[0]) > 0;
+		// The path ends with a TAB in the index, which sorts before any printable character
+		assertTrue(ordered.test(new String[] {"a", "a b"}));
+		assertTrue(ordered.test(new String[] {"a b", "a/b"}));
+		assertTrue(ordered.test(new String[] {"a/b", "a0"}));
+		assertTrue(ordered.test(new String[] {"B", "a"}));
+		assertTrue(ordered.test(new String[] {"z", "é"}));
+		assertTrue(ordered.test(new String[] {"～", "😀"}));
+		assertEquals(0, VersionCatalog.compare("a/é", "a/é"));
+	}
+
+	// Writes the catalog of a directory holding the given files (in any order), as of a full
+	// backup if stagedFiles is null
+	private Path writeCatalog(List<String> files, Path previousCatalogFile, List<String> stagedFiles, long backupTime, String sessionId)
+			throws IOException {
+		List<String> lines = new ArrayList<>();
+		for(String file : files)
+			lines.add("/d/" + file + "\t1\t1.0\t1.0\t1");
+		lines.sort((line1, line2) -> Arrays.compareUnsigned(line1.getBytes(StandardCharsets.UTF_8), line2.getBytes(StandardCharsets.UTF_8)));
+		Path indexFile = tempDir.resolve(sessionId + ".idx");
+		Files.write(indexFile, lines, StandardCharsets.UTF_8);
+		Path catalogFile = tempDir.resolve(sessionId + ".cat.gz");
+		assertEquals(files.size(), versionCatalog.write(indexFile, "/d", previousCatalogFile, stagedFiles, backupTime, sessionId, catalogFile));
+		return catalogFile;
+	}
+
+	private static List<String> readCatalog(Path catalogFile) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try(VersionCatalog.CatalogReader reader = new VersionCatalog.CatalogReader(catalogFile)) {
+			String[] entry;
+			while((entry = reader.next()) != null)
+				lines.add(String.join("\t", entry));
+		}
+		return lines;
+	}
+}